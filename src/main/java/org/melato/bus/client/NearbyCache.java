@@ -0,0 +1,220 @@
+/*-------------------------------------------------------------------------
+ * Copyright (c) 2012,2013, Alex Athanasopoulos.  All Rights Reserved.
+ * alex@melato.org
+ *-------------------------------------------------------------------------
+ * This file is part of Athens Next Bus
+ *
+ * Athens Next Bus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Athens Next Bus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Athens Next Bus.  If not, see <http://www.gnu.org/licenses/>.
+ *-------------------------------------------------------------------------
+ */
+package org.melato.bus.client;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.melato.bus.model.RStop;
+import org.melato.bus.model.RouteId;
+import org.melato.bus.model.RouteManager;
+import org.melato.bus.model.Stop;
+import org.melato.gps.Point2D;
+
+/**
+ * Reads and writes the nearby stops cache file, in a compact binary format.
+ * The file has a header, with a fingerprint of the route database and the location of the stops,
+ * followed by the route index, stop index, distance and symbol hash of each stop.
+ * Routes and stops are resolved through the RouteManager when the file is read,
+ * so a file written for a different route database is rejected when its fingerprint does not match,
+ * or when a stop's symbol has changed.
+ * Files are written to a unique temporary file, which is then renamed, so a reader never sees a partial file,
+ * and concurrent writers do not write to the same file.
+ * @author Alex Athanasopoulos
+ */
+class NearbyCache {
+  static final int MAGIC = 0x4E425943; // "NBYC"
+  static final int VERSION = 2;
+  static final int HEADER_SIZE = 28;
+  static final int ENTRY_SIZE = 16;
+  
+  private Point2D location;
+  private long fingerprint;
+  private int[] routes;
+  private int[] stopIndexes;
+  private float[] distances;
+  private int[] symbolHashes;
+
+  private NearbyCache() {
+  }
+  
+  public Point2D getLocation() {
+    return location;
+  }
+
+  /**
+   * Compute a fingerprint of the route database, from its version, if it has one, and its route ids, in order.
+   * The stop indexes of a file are valid only for the same routes.
+   */
+  static long fingerprint(RouteManager routeManager) {
+    List<RouteId> routeIds = routeManager.getRouteIds();
+    String version = routeManager.getVersion();
+    long h = version != null ? version.hashCode() : 0;
+    h = h * 1000003L + routeIds.size();
+    for( RouteId routeId: routeIds ) {
+      h = h * 1000003L + routeId.getName().hashCode();
+      h = h * 1000003L + routeId.getDirection().hashCode();
+    }
+    return h;
+  }
+  
+  private static int symbolHash(Stop stop) {
+    String symbol = stop.getSymbol();
+    return symbol != null ? symbol.hashCode() : 0;
+  }
+  
+  private static ByteBuffer readFile(File file, int maxSize) throws IOException {
+    FileInputStream in = new FileInputStream(file);
+    try {
+      FileChannel channel = in.getChannel();
+      int size = (int) Math.min(channel.size(), maxSize);
+      ByteBuffer buffer = ByteBuffer.allocate(size);
+      while( buffer.hasRemaining() ) {
+        if ( channel.read(buffer) < 0 )
+          break;
+      }
+      buffer.flip();
+      return buffer;
+    } finally {
+      in.close();
+    }
+  }
+  
+  /**
+   * Read a cache file.
+   * @param headerOnly If true, only the location is read.
+   * @return The cache, or null if the file does not exist or is not valid.
+   */
+  static NearbyCache read(File file, boolean headerOnly) {
+    if ( ! file.exists() )
+      return null;
+    try {
+      ByteBuffer buffer = readFile(file, headerOnly ? HEADER_SIZE : Integer.MAX_VALUE);
+      if ( buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC || buffer.getInt() != VERSION )
+        return null;
+      NearbyCache cache = new NearbyCache();
+      cache.fingerprint = buffer.getLong();
+      cache.location = new Point2D(buffer.getFloat(), buffer.getFloat());
+      int count = buffer.getInt();
+      if ( headerOnly )
+        return cache;
+      if ( count < 0 || buffer.remaining() != count * ENTRY_SIZE )
+        return null;
+      cache.routes = new int[count];
+      cache.stopIndexes = new int[count];
+      cache.distances = new float[count];
+      cache.symbolHashes = new int[count];
+      for( int i = 0; i < count; i++ ) {
+        cache.routes[i] = buffer.getInt();
+        cache.stopIndexes[i] = buffer.getInt();
+        cache.distances[i] = buffer.getFloat();
+        cache.symbolHashes[i] = buffer.getInt();
+      }
+      return cache;
+    } catch( IOException e ) {
+      return null;
+    }
+  }
+  
+  /**
+   * Resolve the cached stops.
+   * @param fingerprint The fingerprint of the RouteManager.
+   * @return The stops, or null if the cache does not match the routes of the RouteManager,
+   * or if only the header was read.
+   */
+  List<RStop> getStops(RouteManager routeManager, long fingerprint) {
+    if ( routes == null || fingerprint != this.fingerprint )
+      return null;
+    List<RouteId> routeIds = routeManager.getRouteIds();
+    int routeCount = routeIds.size();
+    List<RStop> stops = new ArrayList<RStop>(routes.length);
+    for( int i = 0; i < routes.length; i++ ) {
+      int route = routes[i];
+      if ( route < 0 || route >= routeCount )
+        return null;
+      Stop[] routeStops = routeManager.getStops(route);
+      int stopIndex = stopIndexes[i];
+      if ( stopIndex < 0 || stopIndex >= routeStops.length || symbolHash(routeStops[stopIndex]) != symbolHashes[i] )
+        return null;
+      RStop stop = new RStop(routeIds.get(route), routeStops[stopIndex]);
+      stop.setDistance(distances[i]);
+      stops.add(stop);
+    }
+    return stops;
+  }
+  
+  /**
+   * Write a cache file.  Stops whose route is not known to the RouteManager are skipped.
+   * @param fingerprint The fingerprint of the RouteManager.
+   */
+  static void write(File file, RouteManager routeManager, long fingerprint, Point2D location, List<RStop> stops) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + stops.size() * ENTRY_SIZE);
+    buffer.putInt(MAGIC);
+    buffer.putInt(VERSION);
+    buffer.putLong(fingerprint);
+    buffer.putFloat(location.getLat());
+    buffer.putFloat(location.getLon());
+    int countPosition = buffer.position();
+    buffer.putInt(0);
+    int count = 0;
+    for( RStop stop: stops ) {
+      int route = routeManager.getRouteIdx(stop.getRouteId());
+      if ( route < 0 )
+        continue;
+      buffer.putInt(route);
+      buffer.putInt(stop.getStopIndex());
+      buffer.putFloat(stop.getDistance());
+      buffer.putInt(symbolHash(stop.getStop()));
+      count++;
+    }
+    buffer.putInt(countPosition, count);
+    buffer.flip();
+    File tmp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+    FileOutputStream out = new FileOutputStream(tmp);
+    boolean written = false;
+    try {
+      FileChannel channel = out.getChannel();
+      while( buffer.hasRemaining() ) {
+        channel.write(buffer);
+      }
+      written = true;
+    } finally {
+      out.close();
+      if ( ! written ) {
+        tmp.delete();
+      }
+    }
+    if ( ! tmp.renameTo(file) ) {
+      // some file systems do not replace an existing file.
+      file.delete();
+      if ( ! tmp.renameTo(file) ) {
+        tmp.delete();
+        throw new IOException("cannot rename " + tmp);
+      }
+    }
+  }
+}
@@ -25,168 +25,301 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 
 import org.melato.bus.model.RStop;
 import org.melato.bus.model.Route;
-import org.melato.bus.model.RouteId;
 import org.melato.bus.model.RouteManager;
-import org.melato.client.Serialization;
+import org.melato.bus.model.cache.LruCache;
 import org.melato.gps.Earth;
 import org.melato.gps.Metric;
 import org.melato.gps.Point2D;
-import org.melato.util.AbstractListGrouper;
 
 /**
  * Provides access to nearby stops.
- * It caches the results to a file, so that subsequent calls from a nearby location are faster.
+ * It caches the stops around recent locations in memory, by grid cell.
+ * Each cell holds the stops within a radius of its center that covers the target distance
+ * from any point in the cell, so any query from the same cell is answered from it.
+ * It can also keep the last cell in a file, so that it survives restarts.
+ * It can be used by several threads.
  * @author Alex Athanasopoulos
  *
  */
 public class NearbyManager {
   static final float TARGET_DISTANCE = 1000f;
-  /** Extra distance to cache. */
-  static final float CACHE_DISTANCE = 100f;
-  /** The cache file for the nearby waypoints (markers) */
+  /** The default size of the side of a grid cell, in meters. */
+  public static final float DEFAULT_CELL_SIZE = 200f;
+  /** The default number of cells to keep in memory. */
+  public static final int DEFAULT_CELL_CACHE_SIZE = 32;
+  /** The cache file for the stops of the last cell, and the cell center. */
   static final String NEARBY_FILE = "nearby.dat";
-  /**
-   * The cache file for the location used for the nearby waypoints.
-   * It is a GPX file containing a single waypoint.
-   * */
-  static final String LOCATION_FILE = "location.dat";
-  static final String LAT = "lat";
-  static final String LON = "lon";
   
   private RouteManager routeManager;
   private File          cacheDir;
+  private float cellSize;
+  private float cellLat;
+  /** The radius around the center of a cell that is cached. */
+  private float cellRadius;
+  private LruCache<Long,CellStops> cellCache;
+  private volatile Point2D lastLocation;
+  /** The fingerprint of the route database, for the cache file.  Computed when first needed. */
+  private volatile Long fingerprint;
+  /** Whether the location of the cache file is known, in fileLocation. */
+  private volatile boolean fileChecked;
+  /** The cell center of the stops in the cache file, or null if there is no valid file. */
+  private volatile Point2D fileLocation;
   
-  public NearbyManager(RouteManager routeManager, File cacheDir) {
+  /** The stops within a radius of the center of a grid cell. */
+  static class CellStops {
+    final Point2D center;
+    final List<RStop> stops;
+    CellStops(Point2D center, List<RStop> stops) {
+      this.center = center;
+      this.stops = stops;
+    }
+  }
+  
+  private LruCache.Loader<Long,CellStops> cellLoader = new LruCache.Loader<Long,CellStops>() {
+    @Override
+    public CellStops load(Long key) {
+      return loadCell(key);
+    }
+  };
+  
+  /**
+   * @param cacheDir The directory for the cache file, or null to cache only in memory.
+   * @param cellSize The size of the side of a grid cell, in meters.
+   * @param cacheSize The maximum number of cells to keep in memory.
+   */
+  public NearbyManager(RouteManager routeManager, File cacheDir, float cellSize, int cacheSize) {
     super();
     this.routeManager = routeManager;
     this.cacheDir = cacheDir;
+    this.cellSize = cellSize;
+    cellLat = Earth.latitudeForDistance(cellSize);
+    // covers the target distance from any point of the cell, since the half diagonal is cellSize * 0.71
+    cellRadius = TARGET_DISTANCE + cellSize;
+    cellCache = new LruCache<Long,CellStops>(cacheSize);
+  }
+
+  public NearbyManager(RouteManager routeManager, File cacheDir) {
+    this(routeManager, cacheDir, DEFAULT_CELL_SIZE, DEFAULT_CELL_CACHE_SIZE);
+  }
+  
+  /** Create a manager that caches only in memory. */
+  public NearbyManager(RouteManager routeManager) {
+    this(routeManager, null);
   }
 
+  /** The cache of cells, for setting its capacity, or clearing it. */
+  public LruCache<Long,?> getCellCache() {
+    return cellCache;
+  }
+  
+  /** The last location that was queried, or the center of the cell in the cache file. */
   public Point2D getLastLocation() {
-    File file = new File(cacheDir, LOCATION_FILE );
-    Point2D location = null;
-    if ( file.exists() ) {
-      location = (Point2D) Serialization.read(Point2D.class, file);
-      if ( location == null )
-        file.delete();      
+    Point2D location = lastLocation;
+    if ( location == null && cacheDir != null ) {
+      location = getFileLocation(new File(cacheDir, NEARBY_FILE));
     }
     return location;
   }
   
-  private void setLastLocation(Point2D location) {
-    File file = new File(cacheDir, LOCATION_FILE );
-    try {
-      Serialization.write(location,  file);
-    } catch( IOException e ) {
+  /** Get the cell center of the cache file.  Only the header is read, and only the first time. */
+  private Point2D getFileLocation(File file) {
+    if ( ! fileChecked ) {
+      NearbyCache cache = NearbyCache.read(file, true);
+      fileLocation = cache != null ? cache.getLocation() : null;
+      fileChecked = true;
     }
+    return fileLocation;
   }
-      
-  private RStop[] filterDistance(List<RStop> waypoints, Point2D target) {
-    Metric metric = routeManager.getMetric();
-    RStop[] array = waypoints.toArray(new RStop[0]);
-    for( RStop r: array) {
-      r.setDistance(metric.distance(r.getStop(), target));
+  
+  private float cellLon(int row) {
+    return Earth.longitudeForDistance(cellSize, (row + 0.5f) * cellLat);
+  }
+  
+  private long cellKey(Point2D location) {
+    int row = (int) Math.floor(location.getLat() / cellLat);
+    int col = (int) Math.floor(location.getLon() / cellLon(row));
+    return ((long) row << 32) | (col & 0xffffffffL);
+  }
+  
+  private Point2D cellCenter(long key) {
+    int row = (int) (key >> 32);
+    int col = (int) key;
+    return new Point2D((row + 0.5f) * cellLat, (col + 0.5f) * cellLon(row));
+  }
+  
+  private long getFingerprint() {
+    Long f = fingerprint;
+    if ( f == null ) {
+      f = NearbyCache.fingerprint(routeManager);
+      fingerprint = f;
     }
-    Arrays.sort(array);
-    int size = 0;
-    for( ; size < array.length; size++ ) {
-      if ( array[size].getDistance() > TARGET_DISTANCE )
-        break;
+    return f;
+  }
+  
+  private CellStops loadCell(long key) {
+    Point2D center = cellCenter(key);
+    List<RStop> stops = null;
+    File file = cacheDir != null ? new File(cacheDir, NEARBY_FILE) : null;
+    if ( file != null ) {
+      // read the whole file only if it has this cell.
+      Point2D location = getFileLocation(file);
+      if ( location != null && Earth.distance(location, center) < 1f ) {
+        NearbyCache cache = NearbyCache.read(file, false);
+        // another thread may have replaced the file since.
+        if ( cache != null && Earth.distance(cache.getLocation(), center) < 1f ) {
+          // null if the cache is for a different route database.
+          stops = cache.getStops(routeManager, getFingerprint());
+        }
+      }
     }
-    RStop[] result = new RStop[size];
-    for( int i = 0; i < size; i++ ) {
-      result[i] = array[i];
+    if ( stops == null ) {
+      stops = new ArrayList<RStop>();
+      routeManager.findNearbyStops(center, cellRadius, stops);
+      if ( file != null ) {
+        try {
+          NearbyCache.write(file, routeManager, getFingerprint(), center, stops);
+          fileLocation = center;
+          fileChecked = true;
+        } catch( IOException e ) {
+        }
+      }
     }
-    return result;
+    return new CellStops(center, stops);
   }
   
-  private List<RStop> readCache(Point2D location) {
-    Point2D lastLocation = getLastLocation();
-    File file = new File(cacheDir, NEARBY_FILE ); 
-    if ( lastLocation != null && Earth.distance(lastLocation, location) < CACHE_DISTANCE ) {
-      RStop[] markers = (RStop[]) Serialization.read(RStop[].class, file);
-      if ( markers != null ) {
-        return Arrays.asList(markers);
-      } else {
-        file.delete();
+  /** Copy the stops that are within a distance from a point, and sort them by distance.
+   * The cached stops are shared, so they are not modified.
+   */
+  private RStop[] filterDistance(List<RStop> waypoints, Point2D target, float distance) {
+    Metric metric = routeManager.getMetric();
+    List<RStop> result = new ArrayList<RStop>();
+    for( RStop r: waypoints) {
+      float d = metric.distance(r.getStop(), target);
+      if ( d <= distance ) {
+        RStop stop = new RStop(r.getRouteId(), r.getStop());
+        stop.setDistance(d);
+        result.add(stop);
       }
     }
-    return null;
-  }
-
-  private void writeCache(List<RStop> list, Point2D location) {
-    File nearbyFile = new File(cacheDir, NEARBY_FILE );
-    RStop[] markers = list.toArray(new RStop[0]);
-    try {
-      Serialization.write( markers, nearbyFile );
-      setLastLocation(location);
-    } catch( IOException e ) {
-    }        
+    RStop[] array = result.toArray(new RStop[0]);
+    Arrays.sort(array);
+    return array;
   }
   
   public RStop[] getNearbyWaypoints(Point2D location) {
-    List<RStop> list = readCache(location);
-    if ( list == null ) {
-      list = new ArrayList<RStop>();
-      // not in cache.  filter the global list
-      routeManager.findNearbyStops(location, TARGET_DISTANCE + CACHE_DISTANCE, list);
-      writeCache(list, location);
+    return getNearbyWaypoints(location, TARGET_DISTANCE);
+  }
+    
+  /**
+   * Get the stops within a distance from a location, sorted by distance.
+   */
+  public RStop[] getNearbyWaypoints(Point2D location, float distance) {
+    return filterDistance(getCandidates(location, distance), location, distance);
+  }
+  
+  /**
+   * Get a superset of the stops within a distance from a location.
+   * The cell cache is used if the cached radius covers the distance.
+   */
+  private List<RStop> getCandidates(Point2D location, float distance) {
+    lastLocation = location;
+    if ( distance + cellSize * 0.71f <= cellRadius ) {
+      return cellCache.get(cellKey(location), cellLoader).stops;
     }
-    return filterDistance(list, location);
+    List<RStop> list = new ArrayList<RStop>();
+    routeManager.findNearbyStops(location, distance, list);
+    return list;
   }
     
-  class NearbyGrouper extends AbstractListGrouper<RStop> {
-    List<NearbyStop> nearby = new ArrayList<NearbyStop>();
-    Metric metric = routeManager.getMetric();
-    Map<RouteId,Route> map = routeManager.getRouteIndex();
-    Point2D location;
+  /** Reusable buffers for getNearby(), one set per thread. */
+  private static class Scratch {
+    float[] distances = new float[256];
+    long[] keys = new long[256];
     
-    public NearbyGrouper(Point2D location) {
-      super();
-      this.location = location;
+    void ensureCapacity(int n) {
+      if ( n > keys.length ) {
+        int capacity = Math.max(n, keys.length * 2);
+        distances = new float[capacity];
+        keys = new long[capacity];
+      }
     }
-
+  }
+  
+  private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
     @Override
-    protected boolean inSameGroup(RStop a, RStop b) {
-      return a.getRouteId().equals(b.getRouteId()) && a.getStopIndex() + 1 == b.getStopIndex();
+    protected Scratch initialValue() {
+      return new Scratch();
     }
-
-    @Override
-    protected void addGroup(List<RStop> group) {      
-      RStop minStop = null;
-      float minDistance = 0;
-      for( RStop stop: group ) {
-        if (minStop == null || stop.getDistance() < minDistance) {
-          minStop = stop;
-          minDistance = stop.getDistance();
+  };
+  
+  /* A sort key packs the route index, the stop index and the position of the stop in the candidate list. */
+  private static final int KEY_ROUTE_SHIFT = 36;
+  private static final int KEY_STOP_SHIFT = 20;
+  private static final int KEY_STOP_MASK = 0xFFFF;
+  private static final int KEY_INDEX_MASK = 0xFFFFF;
+  
+  /**
+   * Get the nearby stops, one for each group of consecutive stops of a route,
+   * sorted by distance and by next departure.
+   * Each group is represented by its nearest stop.
+   */
+  public NearbyStop[] getNearby(Point2D location) {
+    List<RStop> list = getCandidates(location, TARGET_DISTANCE);
+    Metric metric = routeManager.getMetric();
+    Scratch buffers = scratch.get();
+    int n = Math.min(list.size(), KEY_INDEX_MASK + 1);
+    buffers.ensureCapacity(n);
+    float[] distances = buffers.distances;
+    long[] keys = buffers.keys;
+    int count = 0;
+    for( int i = 0; i < n; i++ ) {
+      RStop stop = list.get(i);
+      float d = metric.distance(stop.getStop(), location);
+      if ( d > TARGET_DISTANCE )
+        continue;
+      int route = routeManager.getRouteIdx(stop.getRouteId());
+      int stopIndex = stop.getStopIndex();
+      if ( route < 0 || stopIndex > KEY_STOP_MASK )
+        continue;
+      distances[i] = d;
+      keys[count++] = ((long) route << KEY_ROUTE_SHIFT) | ((long) stopIndex << KEY_STOP_SHIFT) | i;
+    }
+    // sort by route and stop, so that consecutive stops of a route are adjacent.
+    Arrays.sort(keys, 0, count);
+    NearbyStop[] result = new NearbyStop[count];
+    int size = 0;
+    int k = 0;
+    while( k < count ) {
+      int route = (int) (keys[k] >>> KEY_ROUTE_SHIFT);
+      int stopIndex = (int) (keys[k] >>> KEY_STOP_SHIFT) & KEY_STOP_MASK;
+      int best = (int) keys[k] & KEY_INDEX_MASK;
+      for( k++; k < count; k++ ) {
+        long key = keys[k];
+        if ( (int) (key >>> KEY_ROUTE_SHIFT) != route || ((int) (key >>> KEY_STOP_SHIFT) & KEY_STOP_MASK) != stopIndex + 1 )
+          break;
+        stopIndex++;
+        int i = (int) key & KEY_INDEX_MASK;
+        if ( distances[i] < distances[best] ) {
+          best = i;
         }
       }
-      RouteId routeId = minStop.getRouteId();
-      Route route = map.get(routeId);
-      if ( route != null ) {
-        NearbyStop stop = new NearbyStop(minStop, route);
-        minStop.setDistance(metric.distance(minStop.getStop(),  location));
-        nearby.add(stop);
+      Route r = routeManager.getRoute(route);
+      if ( r != null ) {
+        RStop stop = list.get(best);
+        RStop nearest = new RStop(stop.getRouteId(), stop.getStop());
+        nearest.setDistance(distances[best]);
+        result[size++] = new NearbyStop(nearest, r);
       }
     }
-
-    public List<NearbyStop> getNearby() {
-      return nearby;
+    if ( size < result.length ) {
+      result = Arrays.copyOf(result, size);
     }
-  }
-  public NearbyStop[] getNearby(Point2D location) {
-    RStop[] waypoints = getNearbyWaypoints(location);
-    Arrays.sort(waypoints, new RStop.RouteComparator()); // sort by route/stop
-    NearbyGrouper grouper = new NearbyGrouper(location);
-    grouper.group(waypoints);
-    NearbyStop[] array = grouper.getNearby().toArray(new NearbyStop[0]);
     // sort them by distance and name.
-    Arrays.sort( array, new NearbyStop.Comparer() );
-    return array;
+    Arrays.sort( result, new NearbyStop.Comparer() );
+    return result;
   }
 
 }
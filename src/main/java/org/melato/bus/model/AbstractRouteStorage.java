@@ -21,9 +21,12 @@
 package org.melato.bus.model;
 
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.melato.bus.otp.OTPRequest;
 import org.melato.gps.Point2D;
@@ -108,6 +111,18 @@ public abstract class AbstractRouteStorage implements RouteStorage {
     return null;
   }
 
+  @Override
+  public Map<RouteId,DaySchedule> loadDaySchedules(Collection<RouteId> routeIds, Date date) {
+    Map<RouteId,DaySchedule> schedules = new HashMap<RouteId,DaySchedule>();
+    for( RouteId routeId: routeIds ) {
+      DaySchedule daySchedule = loadDaySchedule(routeId, date);
+      if ( daySchedule != null ) {
+        schedules.put(routeId, daySchedule);
+      }
+    }
+    return schedules;
+  }
+
   @Override
   public List<Agency> loadAgencies() {
     return Collections.emptyList();
@@ -122,4 +137,49 @@ public abstract class AbstractRouteStorage implements RouteStorage {
   public String getProperty(String name, String defaultValue) {
     return defaultValue;
   }
+
+  /** Adapts a RouteStopCallback to a RoutePointCallback, by copying the waypoints to reused buffers. */
+  private static class RoutePointAdapter implements RouteStopCallback {
+    private RoutePointCallback callback;
+    private Map<RouteId,Integer> indexes = new HashMap<RouteId,Integer>();
+    private float[] lat = new float[64];
+    private float[] lon = new float[64];
+    
+    RoutePointAdapter(List<RouteId> routeIds, RoutePointCallback callback) {
+      this.callback = callback;
+      for( int i = 0; i < routeIds.size(); i++ ) {
+        indexes.put(routeIds.get(i), i);
+      }
+    }
+    
+    @Override
+    public void add(RouteId routeId, List<Point2D> waypoints) {
+      Integer index = indexes.get(routeId);
+      if ( index == null )
+        return;
+      int count = waypoints.size();
+      if ( count > lat.length ) {
+        lat = new float[Math.max(count, lat.length * 2)];
+        lon = new float[lat.length];
+      }
+      for( int i = 0; i < count; i++ ) {
+        Point2D p = waypoints.get(i);
+        lat[i] = p.getLat();
+        lon[i] = p.getLon();
+      }
+      callback.addRoute(index, lat, lon, count);
+    }
+  }
+
+  /** Implemented with iterateAllRouteStops().  Storage that can avoid creating waypoints should override it. */
+  @Override
+  public void iterateAllRoutePoints(RoutePointCallback callback) {
+    iterateAllRouteStops(new RoutePointAdapter(loadRouteIds(), callback));
+  }
+
+  /** Implemented with iteratePrimaryRouteStops().  Storage that can avoid creating waypoints should override it. */
+  @Override
+  public void iteratePrimaryRoutePoints(RoutePointCallback callback) {
+    iteratePrimaryRouteStops(new RoutePointAdapter(loadRouteIds(), callback));
+  }
 }
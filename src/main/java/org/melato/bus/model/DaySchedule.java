@@ -23,7 +23,6 @@ package org.melato.bus.model;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
-import java.util.GregorianCalendar;
 
 
 /** Maintains departure information for one route and one day.
@@ -41,18 +40,59 @@ public class DaySchedule implements Comparable<DaySchedule> {
   public static final int MONDAY_THURSDAY = (MONDAY | TUESDAY | WEDNESDAY | THURSDAY );
   public static final int SATURDAY_SUNDAY = SATURDAY | SUNDAY;
   public static final int EVERYDAY = 127;
-  /** times are stored as minutes from midnight. */
+  /** times are stored as minutes from midnight.
+   * They are either in times, or in a compact form, in compactTimes.
+   */
   private int[] times;
+  private TimeList compactTimes;
   private ScheduleId scheduleId;
   /** Same as Schedule.dayChange */
   private int dayChange;
 
   
+  /** Get the times, in minutes from midnight.
+   * Compact times are decoded into a new array on each call.
+   */
   public int[] getTimes() {
+    if ( times == null )
+      return compactTimes.toArray();
     return times;
   }
   
+  /** The number of times. */
+  public int size() {
+    if ( times == null )
+      return compactTimes.size();
+    return times.length;
+  }
+  
+  /** Get the time at an index, without decoding the other times. */
+  public int get(int index) {
+    if ( times == null )
+      return compactTimes.get(index);
+    return times[index];
+  }
+  
+  /**
+   * Find the first time that is >= a given time, without decoding the times.
+   * Unlike getNextIndex(), it does not apply the dayChange.
+   * @return The index of the time, or size() if there is none.
+   */
+  public int findNext(int time) {
+    if ( times == null )
+      return compactTimes.findNext(time);
+    int pos = Arrays.binarySearch(times, time);
+    if ( pos < 0 )
+      return - (pos + 1);
+    // find the first of equal times.
+    while( pos > 0 && times[pos-1] == time )
+      pos--;
+    return pos;
+  }
+  
   public int getLastTime() {
+    if ( times == null )
+      return compactTimes.getLastTime();
     if ( times.length == 0 )
       return -1;
     return times[times.length-1];
@@ -60,6 +100,40 @@ public class DaySchedule implements Comparable<DaySchedule> {
 
   public void setTimes(int[] times) {
     this.times = times;
+    compactTimes = null;
+  }
+  
+  /** Replace the times with a compact form, to save memory.
+   * Times that run mostly at fixed headways are stored as headway segments,
+   * and other times are stored as a packed copy, shared through the pool.
+   * @param pool The pool of shared time lists, or null to not share them.
+   */
+  public void pack(PackedTimes.Pool pool) {
+    if ( times != null ) {
+      HeadwayTimes headwayTimes = new HeadwayTimes(times);
+      if ( headwayTimes.getSegmentCount() * 4 <= times.length ) {
+        compactTimes = headwayTimes;
+      } else {
+        compactTimes = pool != null ? pool.intern(times) : new PackedTimes(times);
+      }
+      times = null;
+    }
+  }
+  
+  /** Replace the times with a compact form, without sharing them. */
+  public void pack() {
+    pack(null);
+  }
+  
+  public boolean isPacked() {
+    return times == null;
+  }
+  
+  /** Get the headway segments of the times, if they are stored that way, or null. */
+  public HeadwayTimes getHeadways() {
+    if ( compactTimes instanceof HeadwayTimes )
+      return (HeadwayTimes) compactTimes;
+    return null;
   }
 
 
@@ -90,6 +164,12 @@ public class DaySchedule implements Comparable<DaySchedule> {
     this.scheduleId = scheduleId;
   }
 
+  public DaySchedule(TimeList times, ScheduleId scheduleId) {
+    super();
+    this.compactTimes = times;
+    this.scheduleId = scheduleId;
+  }
+
   /**
    * Convert a day-of-week to a days bitmap
    * @param dayOfWeek day of week, as per Calendar.DAY_OF_WEEK
@@ -108,9 +188,7 @@ public class DaySchedule implements Comparable<DaySchedule> {
     return null;
   }
   public static DaySchedule findSchedule(DaySchedule[] schedules, Date date) {
-    Calendar cal = new GregorianCalendar();
-    cal.setTime(date);
-    return findSchedule(schedules, cal.get(Calendar.DAY_OF_WEEK));
+    return findSchedule(schedules, ScheduleCalendar.getDefault().getDayOfWeek(date.getTime()));
   }
   
   /**
@@ -121,6 +199,21 @@ public class DaySchedule implements Comparable<DaySchedule> {
     if ( time < dayChange ) {
       time += 24 * 60;
     }
+    if ( times == null ) {
+      int size = compactTimes.size();
+      if ( size == 0 )
+        return -1;
+      int pos = compactTimes.findNext(time);
+      if ( pos == size )
+        return size - 1;
+      if ( pos == 0 )
+        return pos;
+      if ( compactTimes.get(pos) - time < time - compactTimes.get(pos-1) ) {
+        return pos;
+      } else {
+        return pos - 1;
+      }
+    }
     if ( times.length == 0 )
       return -1;
     int pos = Arrays.binarySearch(times, time);
@@ -147,6 +240,10 @@ public class DaySchedule implements Comparable<DaySchedule> {
     if ( time < dayChange ) {
       time += 24 * 60;
     }
+    if ( times == null ) {
+      int pos = compactTimes.findNext(time);
+      return pos < compactTimes.size() ? pos : -1;
+    }
     if ( times.length == 0 )
       return -1;
     int pos = Arrays.binarySearch(times, time);
@@ -172,6 +269,8 @@ public class DaySchedule implements Comparable<DaySchedule> {
   }
   
   public boolean containsTime(int time) {
+    if ( times == null )
+      return compactTimes.contains(time);
     int pos = Arrays.binarySearch(times, time);
     return pos >= 0;        
   }
@@ -0,0 +1,180 @@
+/*-------------------------------------------------------------------------
+ * Copyright (c) 2012,2013, Alex Athanasopoulos.  All Rights Reserved.
+ * alex@melato.org
+ *-------------------------------------------------------------------------
+ * This file is part of Athens Next Bus
+ *
+ * Athens Next Bus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Athens Next Bus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Athens Next Bus.  If not, see <http://www.gnu.org/licenses/>.
+ *-------------------------------------------------------------------------
+ */
+package org.melato.bus.model;
+
+import java.util.Arrays;
+
+/**
+ * Schedule times that are stored as segments of times at a fixed headway,
+ * as with GTFS frequencies.  Times that are not part of a run are stored as segments of one time.
+ * Searches are a binary search over the segments, and some arithmetic.
+ * @author Alex Athanasopoulos
+ */
+public class HeadwayTimes implements TimeList {
+  /** The minimum number of times with the same headway that make a segment. */
+  public static final int MIN_RUN = 4;
+  /** The first time of each segment. */
+  private int[] starts;
+  /** The time between consecutive times of each segment, or 0 for single times. */
+  private int[] headways;
+  /** The index of the first time of each segment, and the total size at the end. */
+  private int[] firstIndexes;
+
+  /**
+   * Find the segments of a list of times.
+   * @param times The times, sorted.
+   */
+  public HeadwayTimes(int[] times) {
+    int n = times.length;
+    int[] s = new int[n];
+    int[] h = new int[n];
+    int[] f = new int[n + 1];
+    int count = 0;
+    int i = 0;
+    while( i < n ) {
+      int j = i;
+      if ( i + 1 < n ) {
+        int headway = times[i + 1] - times[i];
+        if ( headway > 0 ) {
+          j = i + 1;
+          while( j + 1 < n && times[j + 1] - times[j] == headway ) {
+            j++;
+          }
+        }
+      }
+      s[count] = times[i];
+      f[count] = i;
+      if ( j - i + 1 >= MIN_RUN ) {
+        h[count] = times[i + 1] - times[i];
+        i = j + 1;
+      } else {
+        h[count] = 0;
+        i++;
+      }
+      count++;
+    }
+    f[count] = n;
+    starts = Arrays.copyOf(s, count);
+    headways = Arrays.copyOf(h, count);
+    firstIndexes = Arrays.copyOf(f, count + 1);
+  }
+  
+  /** The number of segments. */
+  public int getSegmentCount() {
+    return starts.length;
+  }
+
+  /** The first time of a segment. */
+  public int getSegmentStart(int segment) {
+    return starts[segment];
+  }
+  
+  /** The headway of a segment, or 0 if it has a single time. */
+  public int getSegmentHeadway(int segment) {
+    return headways[segment];
+  }
+  
+  /** The number of times in a segment. */
+  public int getSegmentSize(int segment) {
+    return firstIndexes[segment + 1] - firstIndexes[segment];
+  }
+
+  /** The last time of a segment. */
+  public int getSegmentEnd(int segment) {
+    return starts[segment] + (getSegmentSize(segment) - 1) * headways[segment];
+  }
+  
+  @Override
+  public int size() {
+    return firstIndexes[starts.length];
+  }
+  
+  /** Find the segment that contains an index. */
+  private int findSegment(int index) {
+    int low = 0;
+    int high = starts.length - 1;
+    while( low < high ) {
+      int mid = (low + high + 1) >>> 1;
+      if ( firstIndexes[mid] <= index ) {
+        low = mid;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return low;
+  }
+  
+  @Override
+  public int get(int index) {
+    int segment = findSegment(index);
+    return starts[segment] + (index - firstIndexes[segment]) * headways[segment];
+  }
+  
+  @Override
+  public int getLastTime() {
+    if ( starts.length == 0 )
+      return -1;
+    return getSegmentEnd(starts.length - 1);
+  }
+
+  @Override
+  public int findNext(int time) {
+    // find the first segment that ends at or after time.
+    int low = 0;
+    int high = starts.length;
+    while( low < high ) {
+      int mid = (low + high) >>> 1;
+      if ( getSegmentEnd(mid) < time ) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    if ( low == starts.length ) {
+      return size();
+    }
+    int start = starts[low];
+    if ( time <= start ) {
+      return firstIndexes[low];
+    }
+    int headway = headways[low];
+    return firstIndexes[low] + (time - start + headway - 1) / headway;
+  }
+  
+  @Override
+  public boolean contains(int time) {
+    int index = findNext(time);
+    return index < size() && get(index) == time;
+  }
+
+  @Override
+  public int[] toArray() {
+    int[] times = new int[size()];
+    for( int segment = 0; segment < starts.length; segment++ ) {
+      int time = starts[segment];
+      for( int i = firstIndexes[segment]; i < firstIndexes[segment + 1]; i++ ) {
+        times[i] = time;
+        time += headways[segment];
+      }
+    }
+    return times;
+  }
+}
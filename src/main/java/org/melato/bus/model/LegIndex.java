@@ -0,0 +1,135 @@
+/*-------------------------------------------------------------------------
+ * Copyright (c) 2012,2013, Alex Athanasopoulos.  All Rights Reserved.
+ * alex@melato.org
+ *-------------------------------------------------------------------------
+ * This file is part of Athens Next Bus
+ *
+ * Athens Next Bus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Athens Next Bus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Athens Next Bus.  If not, see <http://www.gnu.org/licenses/>.
+ *-------------------------------------------------------------------------
+ */
+package org.melato.bus.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.melato.bus.model.cache.LruCache;
+import org.melato.bus.plan.RouteLeg;
+
+/**
+ * An inverted index from stop symbol to the (route, stop position) pairs where the stop appears.
+ * The pairs of each symbol are sorted by route and position,
+ * so the legs between two stops are found by merging the two lists.
+ * The legs of recent stop pairs are cached.
+ * @author Alex Athanasopoulos
+ */
+public class LegIndex {
+  public static final int DEFAULT_CACHE_SIZE = 500;
+  private static final List<RouteLeg> NO_LEGS = Collections.emptyList();
+  private StopIndex stopIndex;
+  private SymbolTable symbols;
+  /** The (route, position) entries of each symbol id, sorted, as route << 32 | position. */
+  private long[][] entries;
+  /** The legs of recent stop pairs, keyed by symbol1 << 32 | symbol2. */
+  private LruCache<Long,List<RouteLeg>> cache;
+  
+  private LruCache.Loader<Long,List<RouteLeg>> loader = new LruCache.Loader<Long,List<RouteLeg>>() {
+    @Override
+    public List<RouteLeg> load(Long key) {
+      return findLegs((int) (key >>> 32), (int) key.longValue());
+    }
+  };
+
+  public LegIndex(StopIndex stopIndex, SymbolTable symbols, int cacheSize) {
+    this.stopIndex = stopIndex;
+    this.symbols = symbols;
+    cache = new LruCache<Long,List<RouteLeg>>(cacheSize);
+    int routeCount = symbols.getRouteCount();
+    int[] counts = new int[symbols.getSymbolCount()];
+    for( int r = 0; r < routeCount; r++ ) {
+      for( int s: symbols.getStopSymbols(r) ) {
+        counts[s]++;
+      }
+    }
+    entries = new long[counts.length][];
+    for( int s = 0; s < counts.length; s++ ) {
+      entries[s] = new long[counts[s]];
+      counts[s] = 0;
+    }
+    // routes and positions are visited in increasing order, so the entries come out sorted.
+    for( int r = 0; r < routeCount; r++ ) {
+      int[] stopSymbols = symbols.getStopSymbols(r);
+      for( int i = 0; i < stopSymbols.length; i++ ) {
+        int s = stopSymbols[i];
+        entries[s][counts[s]++] = ((long) r << 32) | i;
+      }
+    }
+  }
+
+  public LegIndex(StopIndex stopIndex, int cacheSize) {
+    this(stopIndex, new SymbolTable(stopIndex), cacheSize);
+  }
+
+  public LegIndex(StopIndex stopIndex) {
+    this(stopIndex, DEFAULT_CACHE_SIZE);
+  }
+
+  /**
+   * Find the legs that go from one stop to another.
+   * For each route that visits symbol1 and later symbol2, there is one leg
+   * from each visit of symbol1 to the first visit of symbol2 after it.
+   * @return An unmodifiable list of legs.
+   */
+  public List<RouteLeg> getLegs(String symbol1, String symbol2) {
+    int s1 = symbols.getSymbolIndex(symbol1);
+    int s2 = symbols.getSymbolIndex(symbol2);
+    if ( s1 < 0 || s2 < 0 ) {
+      return NO_LEGS;
+    }
+    return getLegs(s1, s2);
+  }
+  
+  /** Find the legs that go from one stop to another, by symbol id. */
+  public List<RouteLeg> getLegs(int symbol1, int symbol2) {
+    return cache.get(((long) symbol1 << 32) | symbol2, loader);
+  }
+  
+  private List<RouteLeg> findLegs(int symbol1, int symbol2) {
+    long[] a = entries[symbol1];
+    long[] b = entries[symbol2];
+    List<RouteLeg> legs = null;
+    int j = 0;
+    for( int i = 0; i < a.length; i++ ) {
+      int route = (int) (a[i] >>> 32);
+      // skip the entries of b that are in earlier routes, or at earlier positions.
+      while( j < b.length && b[j] <= a[i] ) {
+        j++;
+      }
+      if ( j == b.length )
+        break;
+      if ( (int) (b[j] >>> 32) == route ) {
+        if ( legs == null ) {
+          legs = new ArrayList<RouteLeg>();
+        }
+        Stop[] stops = stopIndex.getRouteStops(route);
+        legs.add(new RouteLeg(symbols.getRouteId(route), stops[(int) a[i]], stops[(int) b[j]]));
+      }
+    }
+    return legs == null ? NO_LEGS : Collections.unmodifiableList(legs);
+  }
+  
+  public LruCache<?,?> getCache() {
+    return cache;
+  }
+}
@@ -0,0 +1,67 @@
+/*-------------------------------------------------------------------------
+ * Copyright (c) 2012,2013, Alex Athanasopoulos.  All Rights Reserved.
+ * alex@melato.org
+ *-------------------------------------------------------------------------
+ * This file is part of Athens Next Bus
+ *
+ * Athens Next Bus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Athens Next Bus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Athens Next Bus.  If not, see <http://www.gnu.org/licenses/>.
+ *-------------------------------------------------------------------------
+ */
+package org.melato.bus.model;
+
+/**
+ * The next departures from several stops, as a table with one row per stop.
+ * The times are stored in one int array, with a fixed number of columns per row.
+ * @author Alex Athanasopoulos
+ */
+public class NextDepartures {
+  private RStop[] stops;
+  private int columns;
+  /** The departure times, in seconds from the midnight of the request date. */
+  int[] times;
+  /** The number of departures of each row. */
+  int[] counts;
+  
+  NextDepartures(RStop[] stops, int columns) {
+    this.stops = stops;
+    this.columns = columns;
+    times = new int[stops.length * columns];
+    counts = new int[stops.length];
+  }
+
+  /** The number of rows, one for each stop. */
+  public int size() {
+    return stops.length;
+  }
+  
+  public RStop getStop(int row) {
+    return stops[row];
+  }
+  
+  /** The number of departures found for a stop. */
+  public int getCount(int row) {
+    return counts[row];
+  }
+  
+  /**
+   * Get a departure time from a stop.
+   * @param row
+   * @param i The departure index, from 0 to getCount(row) - 1.
+   * @return The time in seconds from the midnight of the request date.
+   * Departures after midnight are larger than 24 hours.
+   */
+  public int getTime(int row, int i) {
+    return times[row * columns + i];
+  }
+}
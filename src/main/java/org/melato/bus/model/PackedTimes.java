@@ -0,0 +1,232 @@
+/*-------------------------------------------------------------------------
+ * Copyright (c) 2012,2013, Alex Athanasopoulos.  All Rights Reserved.
+ * alex@melato.org
+ *-------------------------------------------------------------------------
+ * This file is part of Athens Next Bus
+ *
+ * Athens Next Bus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Athens Next Bus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Athens Next Bus.  If not, see <http://www.gnu.org/licenses/>.
+ *-------------------------------------------------------------------------
+ */
+package org.melato.bus.model;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A compact, immutable, sorted list of schedule times.
+ * The times are stored as varint-coded differences from the previous time,
+ * mostly one byte per time instead of four.
+ * Every BLOCK_SIZE times, the absolute time and the byte position are also kept,
+ * so that searches do a binary search over the blocks and decode a single block.
+ * Equal lists can be shared, through a Pool.
+ * @author Alex Athanasopoulos
+ */
+public class PackedTimes implements TimeList {
+  public static final int BLOCK_SIZE = 16;
+  private int size;
+  private byte[] data;
+  /** The first time of each block. */
+  private int[] blockTimes;
+  /** The byte position of each block, after its first time. */
+  private int[] blockPositions;
+  private int lastTime;
+  private int hashCode;
+  
+  /**
+   * @param times The times, sorted.
+   */
+  public PackedTimes(int[] times) {
+    size = times.length;
+    int blocks = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    blockTimes = new int[blocks];
+    blockPositions = new int[blocks];
+    byte[] buf = new byte[size * 5];
+    int n = 0;
+    int previous = 0;
+    for( int i = 0; i < size; i++ ) {
+      int time = times[i];
+      if ( i % BLOCK_SIZE == 0 ) {
+        blockTimes[i / BLOCK_SIZE] = time;
+        blockPositions[i / BLOCK_SIZE] = n;
+      } else {
+        int delta = time - previous;
+        if ( delta < 0 ) {
+          throw new IllegalArgumentException( "times are not sorted" );
+        }
+        while( (delta & ~0x7F) != 0 ) {
+          buf[n++] = (byte) ((delta & 0x7F) | 0x80);
+          delta >>>= 7;
+        }
+        buf[n++] = (byte) delta;
+      }
+      previous = time;
+    }
+    data = Arrays.copyOf(buf, n);
+    lastTime = size > 0 ? times[size - 1] : -1;
+    hashCode = Arrays.hashCode(data) * 31 + Arrays.hashCode(blockTimes);
+  }
+
+  /**
+   * Shares equal time lists.
+   * Each RouteManager has its own pool, so the lists go away with the RouteManager.
+   */
+  public static class Pool {
+    private ConcurrentMap<PackedTimes,PackedTimes> lists = new ConcurrentHashMap<PackedTimes,PackedTimes>();
+    
+    /** Get a shared instance for the given times. */
+    public PackedTimes intern(int[] times) {
+      PackedTimes packed = new PackedTimes(times);
+      PackedTimes existing = lists.putIfAbsent(packed, packed);
+      return existing != null ? existing : packed;
+    }
+    
+    /** The number of distinct lists in the pool. */
+    public int size() {
+      return lists.size();
+    }
+  }
+  
+  @Override
+  public int size() {
+    return size;
+  }
+  
+  /** The number of bytes used for the times, not including the object headers. */
+  public int getByteSize() {
+    return data.length + 8 * blockTimes.length;
+  }
+
+  /** The last time, or -1 if there are no times. */
+  @Override
+  public int getLastTime() {
+    return lastTime;
+  }
+  
+  /** Decode all the times into a new array. */
+  @Override
+  public int[] toArray() {
+    int[] times = new int[size];
+    for( int b = 0; b < blockTimes.length; b++ ) {
+      decodeBlock(b, times, b * BLOCK_SIZE);
+    }
+    return times;
+  }
+  
+  /** Decode one block into an array.
+   * @return The number of times decoded.
+   */
+  private int decodeBlock(int block, int[] times, int offset) {
+    int count = Math.min(BLOCK_SIZE, size - block * BLOCK_SIZE);
+    int pos = blockPositions[block];
+    int time = blockTimes[block];
+    times[offset] = time;
+    for( int i = 1; i < count; i++ ) {
+      int delta = 0;
+      int shift = 0;
+      byte b;
+      do {
+        b = data[pos++];
+        delta |= (b & 0x7F) << shift;
+        shift += 7;
+      } while( b < 0 );
+      time += delta;
+      times[offset + i] = time;
+    }
+    return count;
+  }
+  
+  /** Get the time at an index. */
+  @Override
+  public int get(int index) {
+    int block = index / BLOCK_SIZE;
+    int pos = blockPositions[block];
+    int time = blockTimes[block];
+    for( int i = index % BLOCK_SIZE; i > 0; i-- ) {
+      int delta = 0;
+      int shift = 0;
+      byte b;
+      do {
+        b = data[pos++];
+        delta |= (b & 0x7F) << shift;
+        shift += 7;
+      } while( b < 0 );
+      time += delta;
+    }
+    return time;
+  }
+
+  /**
+   * Find the first time that is >= a given time.
+   * @return The index of the time, or size() if there is none.
+   */
+  @Override
+  public int findNext(int time) {
+    // find the last block that starts before time.
+    int low = 0;
+    int high = blockTimes.length;
+    while( low < high ) {
+      int mid = (low + high) >>> 1;
+      if ( blockTimes[mid] < time ) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    int block = low - 1;
+    if ( block < 0 ) {
+      return 0;
+    }
+    int pos = blockPositions[block];
+    int t = blockTimes[block];
+    int count = Math.min(BLOCK_SIZE, size - block * BLOCK_SIZE);
+    for( int i = 1; i < count; i++ ) {
+      int delta = 0;
+      int shift = 0;
+      byte b;
+      do {
+        b = data[pos++];
+        delta |= (b & 0x7F) << shift;
+        shift += 7;
+      } while( b < 0 );
+      t += delta;
+      if ( t >= time ) {
+        return block * BLOCK_SIZE + i;
+      }
+    }
+    return block * BLOCK_SIZE + count;
+  }
+  
+  @Override
+  public boolean contains(int time) {
+    int index = findNext(time);
+    return index < size && get(index) == time;
+  }
+  
+  @Override
+  public int hashCode() {
+    return hashCode;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if ( this == obj )
+      return true;
+    if ( ! (obj instanceof PackedTimes))
+      return false;
+    PackedTimes p = (PackedTimes) obj;
+    return size == p.size && hashCode == p.hashCode
+        && Arrays.equals(blockTimes, p.blockTimes) && Arrays.equals(data, p.data);
+  }
+}
@@ -0,0 +1,68 @@
+/*-------------------------------------------------------------------------
+ * Copyright (c) 2012,2013, Alex Athanasopoulos.  All Rights Reserved.
+ * alex@melato.org
+ *-------------------------------------------------------------------------
+ * This file is part of Athens Next Bus
+ *
+ * Athens Next Bus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Athens Next Bus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Athens Next Bus.  If not, see <http://www.gnu.org/licenses/>.
+ *-------------------------------------------------------------------------
+ */
+package org.melato.bus.model;
+
+import org.melato.gps.Earth;
+import org.melato.gps.Metric;
+import org.melato.gps.Point2D;
+
+/**
+ * An equirectangular projection around a fixed center.
+ * Longitude differences are scaled by the cosine of the latitude of the center, which is computed once,
+ * so a distance is a few multiplications and a square root.
+ * It is accurate for the distances within a city.
+ * Distance comparisons can skip the square root, by comparing squared distances with squared radii.
+ * It is immutable.
+ * @author Alex Athanasopoulos
+ */
+public class ProjectedMetric implements Metric {
+  private Point2D center;
+  /** Meters per degree of latitude. */
+  private float kLat;
+  /** Meters per degree of longitude, at the center. */
+  private float kLon;
+  
+  public ProjectedMetric(Point2D center) {
+    this.center = center;
+    kLat = 1000f / Earth.latitudeForDistance(1000f);
+    kLon = 1000f / Earth.longitudeForDistance(1000f, center.getLat());
+  }
+  
+  public Point2D getCenter() {
+    return center;
+  }
+  
+  /** The squared distance between two points, in square meters. */
+  public float distanceSquared(float lat1, float lon1, float lat2, float lon2) {
+    float y = (lat2 - lat1) * kLat;
+    float x = (lon2 - lon1) * kLon;
+    return x * x + y * y;
+  }
+  
+  public float distanceSquared(Point2D p1, Point2D p2) {
+    return distanceSquared(p1.getLat(), p1.getLon(), p2.getLat(), p2.getLon());
+  }
+  
+  @Override
+  public float distance(Point2D p1, Point2D p2) {
+    return (float) Math.sqrt(distanceSquared(p1, p2));
+  }
+}
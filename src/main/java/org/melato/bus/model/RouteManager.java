@@ -23,18 +23,20 @@ package org.melato.bus.model;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import org.melato.bus.model.cache.LruCache;
 import org.melato.bus.model.cache.RoutePointCache;
 import org.melato.bus.model.cache.ScheduleCache;
 import org.melato.bus.otp.OTPRequest;
 import org.melato.bus.plan.RouteLeg;
 import org.melato.gps.Earth;
-import org.melato.gps.GlobalDistance;
-import org.melato.gps.LocalDistance;
 import org.melato.gps.Metric;
 import org.melato.gps.Point2D;
 import org.melato.progress.ProgressGenerator;
@@ -50,34 +52,127 @@ import org.melato.util.VariableSubstitution;
 public class RouteManager {
   private RouteStorage storage;
   
-  private List<RouteId> allRouteIds;
-  private List<Route> allRoutes;
-  private List<Route> primaryRoutes;
-  private Agency[] allAgencies;
-  private Map<RouteId,Route> routeIndex;
-  private RouteId cachedRouteId;
-  private Route   cachedRoute;
-  private Stop[]  cachedStops;
-  private Schedule cachedSchedule;
-  
-  private RoutePointCache pointCache;
-  private ScheduleCache scheduleCache;
+  /* The lazily loaded lists below are published through volatile fields,
+   * once fully constructed, and are never modified afterwards.
+   * Readers can use them without locking.
+   */
+  private volatile List<RouteId> allRouteIds;
+  private volatile RouteList allRoutes;
+  private volatile List<Route> primaryRoutes;
+  private volatile Agency[] allAgencies;
+  /** The default number of routes to cache, for each of routes, stops, and schedules. */
+  public static final int DEFAULT_CACHE_SIZE = 200;
+  private LruCache<RouteId,Route> routeCache;
+  private LruCache<RouteId,Stop[]> stopsCache;
+  private LruCache<RouteId,Schedule> schedulesCache;
+  
+  private volatile RoutePointCache pointCache;
+  private volatile ScheduleCache scheduleCache;
+  private volatile StopIndex stopIndex;
+  private volatile LegIndex legIndex;
+  private volatile SymbolTable symbolTable;
+  /** The routes, in the order of getRouteIds(). */
+  private volatile Route[] routeArray;
+  private volatile Map<RouteId,Integer> routeIdxMap;
+  private volatile ProjectedMetric metric;
+  private volatile boolean packSchedules;
+  /** Shares equal time lists among the packed schedules of this RouteManager. */
+  private PackedTimes.Pool timesPool = new PackedTimes.Pool();
+  
+  private LruCache.Loader<RouteId,Route> routeLoader = new LruCache.Loader<RouteId,Route>() {
+    @Override
+    public Route load(RouteId routeId) {
+      return storage.loadRoute(routeId);
+    }
+  };
+  private LruCache.Loader<RouteId,Stop[]> stopsLoader = new LruCache.Loader<RouteId,Stop[]>() {
+    @Override
+    public Stop[] load(RouteId routeId) {
+      return storage.loadStops(routeId).toArray(new Stop[0]);
+    }
+  };
+  private LruCache.Loader<RouteId,Schedule> scheduleLoader = new LruCache.Loader<RouteId,Schedule>() {
+    @Override
+    public Schedule load(RouteId routeId) {
+      Schedule schedule = storage.loadSchedule(routeId);
+      if ( schedule != null && packSchedules ) {
+        schedule.pack(timesPool);
+      }
+      return schedule;
+    }
+  };
+  
+  /** An immutable list of all routes, with an index by route id. */
+  private static class RouteList {
+    final List<Route> routes;
+    final Map<RouteId,Route> index;
     
-  public RouteManager(RouteStorage storage) {
+    RouteList(List<Route> routes) {
+      this.routes = routes;
+      Map<RouteId,Route> index = new HashMap<RouteId,Route>();
+      for(Route route: routes) {
+        index.put(route.getRouteId(), route);            
+      }
+      this.index = Collections.unmodifiableMap(index);
+    }
+  }
+    
+  public RouteManager(RouteStorage storage, int cacheSize) {
     super();
     this.storage = storage;
+    routeCache = new LruCache<RouteId,Route>(cacheSize);
+    stopsCache = new LruCache<RouteId,Stop[]>(cacheSize);
+    schedulesCache = new LruCache<RouteId,Schedule>(cacheSize);
+  }
+  
+  public RouteManager(RouteStorage storage) {
+    this(storage, DEFAULT_CACHE_SIZE);
+  }
+  
+  /** Keep cached schedules in packed form, which uses less memory but decodes times on each getTimes().
+   * It applies to schedules loaded afterwards.
+   */
+  public void setPackSchedules(boolean packSchedules) {
+    this.packSchedules = packSchedules;
+  }
+  
+  /** Set the maximum number of routes to cache, for each of routes, stops, and schedules. */
+  public void setCacheSize(int cacheSize) {
+    routeCache.setCapacity(cacheSize);
+    stopsCache.setCapacity(cacheSize);
+    schedulesCache.setCapacity(cacheSize);
+  }
+  
+  public LruCache<RouteId,Route> getRouteCache() {
+    return routeCache;
+  }
+
+  public LruCache<RouteId,Stop[]> getStopsCache() {
+    return stopsCache;
+  }
+
+  public LruCache<RouteId,Schedule> getSchedulesCache() {
+    return schedulesCache;
   }
   
   public RoutePointCache getPointCache() {
     if ( pointCache == null) {
-      pointCache = new RoutePointCache(this);
+      synchronized(this) {
+        if ( pointCache == null) {
+          pointCache = new RoutePointCache(this);
+        }
+      }
     }
     return pointCache;
   }
   
   public ScheduleCache getScheduleCache() {
     if ( scheduleCache == null) {
-      scheduleCache = new ScheduleCache(this);
+      synchronized(this) {
+        if ( scheduleCache == null) {
+          scheduleCache = new ScheduleCache(this);
+        }
+      }
     }
     return scheduleCache;
   }
@@ -86,19 +181,22 @@ public class RouteManager {
     return Arrays.asList(list.toArray(new Route[list.size()]));
   }
   
-  public List<Route> getRoutes() {
-    if ( allRoutes == null ) {
+  private RouteList getRouteList() {
+    RouteList list = allRoutes;
+    if ( list == null ) {
       synchronized( this ) {
-        if ( allRoutes == null ) {
-          allRoutes = compact(storage.loadRoutes());
-          routeIndex = new HashMap<RouteId,Route>();
-          for(Route route: allRoutes) {
-            routeIndex.put(route.getRouteId(), route);            
-          }
+        list = allRoutes;
+        if ( list == null ) {
+          list = new RouteList(compact(storage.loadRoutes()));
+          allRoutes = list;
         }
       }
     }
-    return allRoutes;
+    return list;
+  }
+  
+  public List<Route> getRoutes() {
+    return getRouteList().routes;
   }
 
   public List<Route> getRoutesForAgency(String name) {
@@ -114,69 +212,89 @@ public class RouteManager {
   }
 
   public List<RouteId> getRouteIds() {
-    if ( allRouteIds == null ) {
+    List<RouteId> routeIds = allRouteIds;
+    if ( routeIds == null ) {
       synchronized( this ) {
-        if ( allRouteIds == null ) {
-          if ( allRoutes != null ) {
-            allRouteIds = AbstractRouteStorage.extractRouteIds(allRoutes); 
+        routeIds = allRouteIds;
+        if ( routeIds == null ) {
+          RouteList routes = allRoutes;
+          if ( routes != null ) {
+            routeIds = AbstractRouteStorage.extractRouteIds(routes.routes); 
           } else {
-            allRouteIds = storage.loadRouteIds();
+            routeIds = Collections.unmodifiableList(storage.loadRouteIds());
           }
+          allRouteIds = routeIds;
         }
       }
     }
-    return allRouteIds;
+    return routeIds;
   }
 
   public Map<RouteId,Route> getRouteIndex() {
-    getRoutes();
-    return routeIndex;
+    return getRouteList().index;
   }
   
   public List<Route> getPrimaryRoutes() {
-    if ( primaryRoutes == null ) {
+    List<Route> routes = primaryRoutes;
+    if ( routes == null ) {
       synchronized(this) {
-        if ( primaryRoutes == null) {
-          primaryRoutes = compact(storage.loadPrimaryRoutes());
+        routes = primaryRoutes;
+        if ( routes == null) {
+          routes = compact(storage.loadPrimaryRoutes());
+          primaryRoutes = routes;
         }
       }
     }
-    return primaryRoutes;
+    return routes;
   }
   
   public Route getRoute(RouteId routeId) {
-    synchronized(this) {
-      if ( isCached(routeId) && cachedRoute != null) {
-        return cachedRoute;
-      }
+    RouteList routes = allRoutes;
+    if (routes != null) {
+      return routes.index.get(routeId);
     }
-    Route route = null;
-    if (allRoutes != null) {
-      route = routeIndex.get(routeId);
-    } else {
-      route = storage.loadRoute(routeId);
-    }
-    synchronized(this) {
-      setCachedRouteId(routeId);
-      cachedRoute = route;
-    }
-    return route;
+    return routeCache.get(routeId, routeLoader);
   }
   
-  public Schedule getSchedule(RouteId routeId) {
-    synchronized(this) {
-      if ( isCached(routeId) && cachedSchedule != null) {
-        return cachedSchedule;
+  /** Get the index of a route in getRouteIds(), or -1 if there is no such route. */
+  public int getRouteIdx(RouteId routeId) {
+    Map<RouteId,Integer> map = routeIdxMap;
+    if ( map == null ) {
+      List<RouteId> routeIds = getRouteIds();
+      map = new HashMap<RouteId,Integer>(routeIds.size() * 2);
+      for( int i = 0; i < routeIds.size(); i++ ) {
+        map.put(routeIds.get(i), i);
       }
+      routeIdxMap = map;
     }
-    Schedule schedule = storage.loadSchedule(routeId);
-    synchronized(this) {
-      setCachedRouteId(routeId);
-      cachedSchedule = schedule;
+    Integer index = map.get(routeId);
+    return index != null ? index : -1;
+  }
+  
+  /** Get a route by its index in getRouteIds(). */
+  public Route getRoute(int routeIdx) {
+    Route[] routes = routeArray;
+    if ( routes == null ) {
+      List<RouteId> routeIds = getRouteIds();
+      Map<RouteId,Route> index = getRouteIndex();
+      routes = new Route[routeIds.size()];
+      for( int i = 0; i < routes.length; i++ ) {
+        routes[i] = index.get(routeIds.get(i));
+      }
+      routeArray = routes;
     }
-    return schedule;
+    return routes[routeIdx];
+  }
+  
+  public Schedule getSchedule(RouteId routeId) {
+    return schedulesCache.get(routeId, scheduleLoader);
   }    
 
+  /** Get the schedule of a route, by its index in getRouteIds(). */
+  public Schedule getSchedule(int routeIdx) {
+    return getSchedule(getRouteIds().get(routeIdx));
+  }
+
   public Schedule getSchedule(Route route) {
     return getSchedule(route.getRouteId());
   }
@@ -189,18 +307,42 @@ public class RouteManager {
     return storage.loadDaySchedule(routeId, date);
   }
   
-  private boolean isCached(RouteId routeId) {
-    return cachedRouteId != null && cachedRouteId.equals(routeId);
+  /** Get the day schedules of several routes, with one storage call.
+   * Routes that do not run that day are omitted.
+   */
+  public Map<RouteId,DaySchedule> getDaySchedules(Collection<RouteId> routeIds, Date date) {
+    return storage.loadDaySchedules(routeIds, date);
   }
-  private synchronized void setCachedRouteId(RouteId routeId) {
-    if ( ! isCached(routeId)) {
-      cachedRouteId = routeId;
-      cachedRoute = null;
-      cachedStops = null;
-      cachedSchedule = null;
+  
+  /**
+   * Get the next departures from several stops.
+   * The schedules of the stop routes that are not in the schedule cache are loaded together.
+   * @param stops
+   * @param date The time after which to look.
+   * @param count The maximum number of departures to get for each stop.
+   */
+  public NextDepartures getNextDepartures(Collection<RStop> stops, Date date, int count) {
+    Set<RouteId> routeIds = new LinkedHashSet<RouteId>();
+    for( RStop stop: stops ) {
+      routeIds.add(stop.getRouteId());
     }
+    ScheduleCache cache = getScheduleCache();
+    cache.load(routeIds, date);
+    NextDepartures departures = new NextDepartures(stops.toArray(new RStop[0]), count);
+    int[] times = departures.times;
+    for( int row = 0; row < departures.size(); row++ ) {
+      RStop stop = departures.getStop(row);
+      int offset = stop.getStop().getSecondsFromStart();
+      int start = row * count;
+      int n = cache.getNextTimes(stop.getRouteId(), date, offset, times, start, count);
+      for( int i = start; i < start + n; i++ ) {
+        times[i] = times[i] * 60 + offset;
+      }
+      departures.counts[row] = n;
+    }
+    return departures;
   }
-
+  
   /**
    * Get the list or stops for the route.
    * Each stop defines
@@ -212,23 +354,25 @@ public class RouteManager {
    *  - deviation - The statistical deviation from the stated duration
    * */
   public Stop[] getStops(RouteId routeId) {
-    synchronized(this) {
-      if ( isCached(routeId) && cachedStops != null) {
-        return cachedStops;
-      }
-    }
-    Stop[] stops = storage.loadStops(routeId).toArray(new Stop[0]);
-    synchronized(this) {
-      setCachedRouteId(routeId);
-      cachedStops = stops;
-    }
-    return stops;
+    return stopsCache.get(routeId, stopsLoader);
   }
 
   public Stop[] getStops(Route route) {
     return getStops(route.getRouteId());
   }
 
+  /**
+   * Get the stops of a route, by its index in getRouteIds().
+   * Uses the stop index, if it has been built.
+   */
+  public Stop[] getStops(int routeIdx) {
+    StopIndex index = stopIndex;
+    if ( index != null ) {
+      return index.getRouteStops(routeIdx);
+    }
+    return getStops(getRouteIds().get(routeIdx));
+  }
+
 
   public String getUri( Route route ) {
     return getUri(route.getRouteId());
@@ -249,24 +393,24 @@ public class RouteManager {
   
   static class DistanceFilter extends AbstractCollector<RStop> {
     Collection<RStop> result;
-    Metric metric;
+    ProjectedMetric metric;
     
     private Point2D center;
-    private float distance;
+    private float distanceSquared;
     
-    public DistanceFilter(Collection<RStop> result, Point2D center, float distance, Metric metric) {
+    public DistanceFilter(Collection<RStop> result, Point2D center, float distance, ProjectedMetric metric) {
       super();
       this.result = result;
       this.center = center;
-      this.distance = distance;
+      this.distanceSquared = distance * distance;
       this.metric = metric;
     }
 
     @Override
     public boolean add(RStop p) {
-      float d = metric.distance(center, p.getStop());
-      if ( d < distance ) {
-        p.setDistance(d);
+      float d2 = metric.distanceSquared(center, p.getStop());
+      if ( d2 < distanceSquared ) {
+        p.setDistance((float) Math.sqrt(d2));
         result.add(p);
         size++;
         return true;
@@ -281,19 +425,68 @@ public class RouteManager {
           collector);
   }
   
+  /**
+   * Get the spatial index of all (route,stop) combinations.
+   * The index is built the first time, by loading the stops of all routes.
+   */
+  public StopIndex getStopIndex() {
+    StopIndex index = stopIndex;
+    if ( index == null ) {
+      synchronized(this) {
+        index = stopIndex;
+        if ( index == null ) {
+          List<RouteId> routeIds = getRouteIds();
+          Stop[][] stops = new Stop[routeIds.size()][];
+          ProgressGenerator progress = ProgressGenerator.get();
+          progress.setLimit(stops.length);
+          for( int i = 0; i < stops.length; i++ ) {
+            progress.setPosition(i);
+            stops[i] = storage.loadStops(routeIds.get(i)).toArray(new Stop[0]);
+          }
+          index = new StopIndex(routeIds.toArray(new RouteId[0]), stops);
+          stopIndex = index;
+        }
+      }
+    }
+    return index;
+  }
+  
+  /** Return true if the stop index has been built. */
+  public boolean hasStopIndex() {
+    return stopIndex != null;
+  }
+  
   /**
    * Find all (route,stop) combinations within a certain radius from a point.
+   * Uses the stop index, if it has been built, otherwise it asks the storage.
    * @param point
    * @param distance
    * @return
    */
   public void findNearbyStops(Point2D point, float distance, Collection<RStop> result) {
-    DistanceFilter filter = new DistanceFilter(result, point, distance, getMetric());
+    StopIndex index = stopIndex;
+    if ( index != null ) {
+      index.findNearby(point, distance, getMetric(), result);
+      return;
+    }
+    DistanceFilter filter = new DistanceFilter(result, point, distance, getProjectedMetric());
     float latDiff = Earth.latitudeForDistance(distance);
     float lonDiff = Earth.longitudeForDistance(distance, point.getLat());
     storage.iterateNearbyStops(point, latDiff, lonDiff, filter);
   }
 
+  /**
+   * Find the nearest (route,stop) combinations to a point, using the stop index.
+   * @param point
+   * @param k The maximum number of stops to return.
+   * @param maxDistance The maximum distance of the returned stops.
+   * @return The nearest stops, sorted by distance.
+   */
+  public RStop[] findNearestStops(Point2D point, int k, float maxDistance) {
+    return getStopIndex().findNearest(point, k, maxDistance, getMetric());
+  }
+
+
   
 
   public void iterateAllRouteStops(RouteStopCallback callback) {
@@ -305,8 +498,69 @@ public class RouteManager {
   public void iteratePrimaryRouteStops(RouteStopCallback callback) {
     storage.iteratePrimaryRouteStops(callback);
   }
+
+  /**
+   * Iterate over the stop coordinates of all routes, without creating Point2D objects.
+   * The route index is the index of the route in getRouteIds().
+   */
+  public void iterateAllRoutePoints(RoutePointCallback callback) {
+    ProgressGenerator progress = ProgressGenerator.get();
+    progress.setLimit( getRouteIds().size() );
+    storage.iterateAllRoutePoints(callback);
+  }
+
+  public void iteratePrimaryRoutePoints(RoutePointCallback callback) {
+    storage.iteratePrimaryRoutePoints(callback);
+  }
+  
+  /**
+   * Get the leg index, building it, and the stop index, if needed.
+   * Once built, getLegsBetween() uses it instead of the storage.
+   */
+  public LegIndex getLegIndex() {
+    LegIndex index = legIndex;
+    if ( index == null ) {
+      synchronized(this) {
+        index = legIndex;
+        if ( index == null ) {
+          index = new LegIndex(getStopIndex(), getSymbolTable(), LegIndex.DEFAULT_CACHE_SIZE);
+          legIndex = index;
+        }
+      }
+    }
+    return index;
+  }
   
+  /**
+   * Get the table of dense route and stop symbol ids, building it, and the stop index, if needed.
+   */
+  public SymbolTable getSymbolTable() {
+    SymbolTable table = symbolTable;
+    if ( table == null ) {
+      synchronized(this) {
+        table = symbolTable;
+        if ( table == null ) {
+          table = new SymbolTable(getStopIndex());
+          symbolTable = table;
+        }
+      }
+    }
+    return table;
+  }
+  
+  public boolean hasLegIndex() {
+    return legIndex != null;
+  }
+  
+  /**
+   * Get the legs that go from one stop to another.
+   * Uses the leg index, if it has been built, otherwise it asks the storage.
+   */
   public List<RouteLeg> getLegsBetween(String stop1, String stop2) {
+    LegIndex index = legIndex;
+    if ( index != null ) {
+      return index.getLegs(stop1, stop2);
+    }
     return storage.loadLegsBetween(stop1, stop2);
   }
 
@@ -331,23 +585,37 @@ public class RouteManager {
     return storage.getProperty(RouteStorage.PROPERTY_UPLOAD_URL, null);
   }
   
+  /** Get the version of the route data, or null if the database does not have one. */
+  public String getVersion() {
+    return storage.getProperty(RouteStorage.PROPERTY_VERSION, null);
+  }
+  
   public void setOtpDefaults(OTPRequest request) {
     storage.applyOtpDefaults(request);
   }
 
-  public Metric getMetric() {
-    Point2D center = getCenter();
-    if ( center != null ) {
-      return new LocalDistance(center);
+  /**
+   * Get the metric for distances in the covered area.
+   * It is created once, for the center of the area.
+   */
+  public ProjectedMetric getProjectedMetric() {
+    ProjectedMetric m = metric;
+    if ( m == null ) {
+      m = new ProjectedMetric(getCenter());
+      metric = m;
     }
-    return new GlobalDistance();
+    return m;
+  }
+  
+  public Metric getMetric() {
+    return getProjectedMetric();
   }
   
   public void benchmark() {
-    iterateAllRouteStops(new RouteStopCallback() {
+    iterateAllRoutePoints(new RoutePointCallback() {
 
       @Override
-      public void add(RouteId routeId, List<Point2D> waypoints) {
+      public void addRoute(int routeIndex, float[] lat, float[] lon, int count) {
       }
       
     });
@@ -358,14 +626,17 @@ public class RouteManager {
   }  
 
   public Agency[] getAgencies() {
-    if ( allAgencies == null ) {
+    Agency[] agencies = allAgencies;
+    if ( agencies == null ) {
       synchronized( this ) {
-        if ( allAgencies == null ) {
-          allAgencies = storage.loadAgencies().toArray(new Agency[0]);
+        agencies = allAgencies;
+        if ( agencies == null ) {
+          agencies = storage.loadAgencies().toArray(new Agency[0]);
+          allAgencies = agencies;
         }
       }
     }
-    return allAgencies;
+    return agencies;
   }
   
   public Agency getAgency(String name) {
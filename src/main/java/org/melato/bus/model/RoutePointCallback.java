@@ -0,0 +1,36 @@
+/*-------------------------------------------------------------------------
+ * Copyright (c) 2012,2013, Alex Athanasopoulos.  All Rights Reserved.
+ * alex@melato.org
+ *-------------------------------------------------------------------------
+ * This file is part of Athens Next Bus
+ *
+ * Athens Next Bus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Athens Next Bus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Athens Next Bus.  If not, see <http://www.gnu.org/licenses/>.
+ *-------------------------------------------------------------------------
+ */
+package org.melato.bus.model;
+
+/**
+ * Receives the stop coordinates of routes, without creating Point2D objects.
+ * The arrays are reused between calls, so they are only valid during a call.
+ * @author Alex Athanasopoulos
+ */
+public interface RoutePointCallback {
+  /**
+   * @param routeIndex The index of the route in RouteStorage.loadRouteIds().
+   * @param lat The latitudes of the route stops.
+   * @param lon The longitudes of the route stops.
+   * @param count The number of stops.  The arrays may be longer.
+   */
+  void addRoute(int routeIndex, float[] lat, float[] lon, int count);
+}
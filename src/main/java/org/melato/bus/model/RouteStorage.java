@@ -23,6 +23,7 @@ package org.melato.bus.model;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 import org.melato.bus.otp.OTPRequest;
 import org.melato.bus.plan.RouteLeg;
@@ -36,6 +37,8 @@ import org.melato.gps.Point2D;
 public interface RouteStorage {
   public static final String PROPERTY_UPLOAD_URL = "upload_url";
   public static final String ZOOM_LEVEL = "zoom_level";
+  /** The version of the route data, if the database has one.  It tells whether cached data belongs to the database. */
+  public static final String PROPERTY_VERSION = "version";
   /** Load a list of all route Ids. */
   List<RouteId> loadRouteIds();
 
@@ -56,6 +59,11 @@ public interface RouteStorage {
   
   DaySchedule loadDaySchedule(RouteId routeId, Date date);
   
+  /** Load the day schedules of several routes for a date, in one call.
+   * Routes that do not run that day are omitted from the result.
+   */
+  Map<RouteId,DaySchedule> loadDaySchedules(Collection<RouteId> routeIds, Date date);
+  
   /** Load a route's stops. */
   List<Stop> loadStops(RouteId routeId);
   /** Iterate over all stops that are within a certain latitude and longitude difference from a point.
@@ -66,6 +74,11 @@ public interface RouteStorage {
   void iterateAllRouteStops(RouteStopCallback callback);
   void iteratePrimaryRouteStops(RouteStopCallback callback);
 
+  /** Iterate over the stop coordinates of all routes, reusing coordinate buffers. */
+  void iterateAllRoutePoints(RoutePointCallback callback);
+  /** Iterate over the stop coordinates of the primary routes, reusing coordinate buffers. */
+  void iteratePrimaryRoutePoints(RoutePointCallback callback);
+
   /** Iterate over all routes that are within a certain latitude and longitude difference from a point.
    * The waypoint's links should contain the relevant route-ids.
    * */
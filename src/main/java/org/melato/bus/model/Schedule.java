@@ -38,6 +38,8 @@ public class Schedule {
   /** The # of minutes after midnight where the schedule is still considered the previous day's schedule. */
   private int dayChange;
   private List<RouteException> exceptions = Collections.emptyList();
+  /** The resolution table for the schedule ids of our day schedules. */
+  private volatile ScheduleCalendar.Table calendarTable;
 
   static DecimalFormat d2Format = new DecimalFormat("00");
   
@@ -135,8 +137,16 @@ public class Schedule {
     return schedules;
   }
   
+  /** Pack the times of all day schedules, sharing equal time lists with other schedules through a pool. */
+  public void pack(PackedTimes.Pool pool) {
+    for( DaySchedule daySchedule: schedules ) {
+      daySchedule.pack(pool);
+    }
+  }
+  
   public void setSchedules(DaySchedule[] schedules) {
     this.schedules = schedules;
+    calendarTable = null;
   }
 
   public DaySchedule getSchedule1(ScheduleId id) {
@@ -171,17 +181,25 @@ public class Schedule {
     return DaySchedule.findSchedule(schedules, cal.get(Calendar.DAY_OF_WEEK));
   }
     
-  public DaySchedule getSchedule(Date date) {
-    Calendar cal = new GregorianCalendar();
-    cal.setTime(date);
-    cal.add(Calendar.MINUTE, -dayChange); // shift the day back.
-    int dateId = DateId.dateId(cal);
-    for( DaySchedule daySchedule: schedules) {
-      if (daySchedule.matchesDateId(dateId)) {
-        return daySchedule;
+  private ScheduleCalendar.Table getCalendarTable() {
+    ScheduleCalendar calendar = ScheduleCalendar.getDefault();
+    ScheduleCalendar.Table table = calendarTable;
+    if ( table == null || table.getCalendar() != calendar ) {
+      DaySchedule[] schedules = this.schedules;
+      ScheduleId[] scheduleIds = new ScheduleId[schedules.length];
+      for( int i = 0; i < schedules.length; i++ ) {
+        scheduleIds[i] = schedules[i].getScheduleId();
       }
+      table = calendar.getTable(scheduleIds);
+      calendarTable = table;
     }
-    return DaySchedule.findSchedule(schedules, cal.get(Calendar.DAY_OF_WEEK));
+    return table;
+  }
+  
+  public DaySchedule getSchedule(Date date) {
+    // dayChange shifts the day back.
+    int index = getCalendarTable().find(dayChange, date.getTime());
+    return index >= 0 ? schedules[index] : null;
   }
   
   public List<RouteException> getExceptions(ScheduleId scheduleId) {
@@ -251,12 +269,7 @@ public class Schedule {
   
   /** Get the time in seconds since midnight */
   public static int getSeconds( Date date ) {
-    Calendar cal = new GregorianCalendar();
-    cal.setTime(date);
-    int hour = cal.get(Calendar.HOUR_OF_DAY);
-    int minute = cal.get(Calendar.MINUTE);
-    int second = cal.get(Calendar.SECOND);
-    return 60 * (hour * 60 + minute) + second;
+    return ScheduleCalendar.getDefault().getSeconds(date.getTime());
   }
 
   /** Get the time in minutes since midnight */
@@ -0,0 +1,248 @@
+/*-------------------------------------------------------------------------
+ * Copyright (c) 2012,2013, Alex Athanasopoulos.  All Rights Reserved.
+ * alex@melato.org
+ *-------------------------------------------------------------------------
+ * This file is part of Athens Next Bus
+ *
+ * Athens Next Bus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Athens Next Bus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Athens Next Bus.  If not, see <http://www.gnu.org/licenses/>.
+ *-------------------------------------------------------------------------
+ */
+package org.melato.bus.model;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.melato.util.DateId;
+
+/**
+ * A precomputed calendar for a range of days around today, used to resolve schedules by date quickly.
+ * For each day it keeps the start time in epoch milliseconds, the date id, the day of the week
+ * and the time zone offset, so that dates are resolved with a binary search and some arithmetic,
+ * instead of a new Calendar.
+ * It also keeps resolution tables that give the schedule to use for each day.
+ * Tables are shared by all schedules that have the same list of schedule ids.
+ * Dates outside the range are resolved with a Calendar, as before.
+ * @author Alex Athanasopoulos
+ */
+public class ScheduleCalendar {
+  private static final long DAY_MILLIS = 24 * 3600 * 1000L;
+  private static int pastDays = 7;
+  private static int futureDays = 60;
+  private static volatile ScheduleCalendar defaultCalendar;
+  
+  private TimeZone timeZone;
+  /** The start of each day, and the start of the day after the last, in epoch milliseconds. */
+  private long[] dayStart;
+  private int[] dateIds;
+  /** The day of the week, as in Calendar.DAY_OF_WEEK */
+  private byte[] dayOfWeek;
+  /** The time zone offset at the start of each day. */
+  private int[] startOffset;
+  /** Whether the time zone offset changes during each day. */
+  private boolean[] offsetChanges;
+  private ConcurrentMap<List<ScheduleId>,Table> tables = new ConcurrentHashMap<List<ScheduleId>,Table>();
+
+  /** The schedule to use for each day of the calendar, for a list of schedule ids. */
+  public static class Table {
+    private ScheduleCalendar calendar;
+    private ScheduleId[] scheduleIds;
+    /** The index of the schedule id for each day, or -1. */
+    private short[] index;
+    
+    Table(ScheduleCalendar calendar, ScheduleId[] scheduleIds) {
+      this.calendar = calendar;
+      this.scheduleIds = scheduleIds;
+      int days = calendar.dateIds.length;
+      index = new short[days];
+      for( int day = 0; day < days; day++ ) {
+        index[day] = (short) resolve(scheduleIds, calendar.dateIds[day], calendar.dayOfWeek[day]);
+      }
+    }
+    
+    public ScheduleCalendar getCalendar() {
+      return calendar;
+    }
+    
+    /**
+     * Find the schedule for a time.
+     * @param dayChange The minutes after midnight that still belong to the previous day.
+     * @param millis The time, in epoch milliseconds.
+     * @return The index of the schedule id, or -1.
+     */
+    public int find(int dayChange, long millis) {
+      long shifted = millis - dayChange * 60000L;
+      int day = calendar.findDay(shifted);
+      if ( day >= 0 ) {
+        return index[day];
+      }
+      Calendar cal = new GregorianCalendar(calendar.timeZone);
+      cal.setTimeInMillis(shifted);
+      return resolve(scheduleIds, DateId.dateId(cal), cal.get(Calendar.DAY_OF_WEEK));
+    }
+  }
+
+  /**
+   * Find the schedule for a date, among schedules for specific dates and for days of the week.
+   * Specific dates take precedence.
+   * @return The index of the matching schedule id, or -1.
+   */
+  public static int resolve(ScheduleId[] scheduleIds, int dateId, int dayOfWeek) {
+    for( int i = 0; i < scheduleIds.length; i++ ) {
+      if (scheduleIds[i].matchesDateId(dateId)) {
+        return i;
+      }
+    }
+    for( int i = 0; i < scheduleIds.length; i++ ) {
+      if (scheduleIds[i].matchesDayOfWeek(dayOfWeek)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+  
+  /**
+   * @param timeZone
+   * @param millis A time in the first day.
+   * @param days The number of days.
+   */
+  public ScheduleCalendar(TimeZone timeZone, long millis, int days) {
+    this.timeZone = timeZone;
+    dayStart = new long[days + 1];
+    dateIds = new int[days];
+    dayOfWeek = new byte[days];
+    startOffset = new int[days];
+    offsetChanges = new boolean[days];
+    Calendar cal = new GregorianCalendar(timeZone);
+    cal.setTimeInMillis(millis);
+    cal.set(Calendar.HOUR_OF_DAY, 0);
+    cal.set(Calendar.MINUTE, 0);
+    cal.set(Calendar.SECOND, 0);
+    cal.set(Calendar.MILLISECOND, 0);
+    for( int day = 0; day < days; day++ ) {
+      dayStart[day] = cal.getTimeInMillis();
+      dateIds[day] = DateId.dateId(cal);
+      dayOfWeek[day] = (byte) cal.get(Calendar.DAY_OF_WEEK);
+      cal.add(Calendar.DATE, 1);
+    }
+    dayStart[days] = cal.getTimeInMillis();
+    for( int day = 0; day < days; day++ ) {
+      startOffset[day] = timeZone.getOffset(dayStart[day]);
+      offsetChanges[day] = dayStart[day + 1] - dayStart[day] != DAY_MILLIS
+          || timeZone.getOffset(dayStart[day + 1] - 1) != startOffset[day];
+    }
+  }
+
+  /**
+   * Set the range of days of the default calendar.
+   * @param past The days before today.
+   * @param future The days after today.
+   */
+  public static synchronized void setHorizon(int past, int future) {
+    pastDays = past;
+    futureDays = future;
+    defaultCalendar = null;
+  }
+  
+  /** Discard the default calendar, e.g. after a change of the default time zone. */
+  public static void reset() {
+    defaultCalendar = null;
+  }
+  
+  /** Get a calendar for the default time zone, around the current day.
+   * A new calendar is made when the current day moves forward.
+   */
+  public static ScheduleCalendar getDefault() {
+    ScheduleCalendar calendar = defaultCalendar;
+    long now = System.currentTimeMillis();
+    if ( calendar == null || now >= calendar.dayStart[Math.min(pastDays + 1, calendar.dateIds.length)] ) {
+      synchronized(ScheduleCalendar.class) {
+        calendar = defaultCalendar;
+        if ( calendar == null || now >= calendar.dayStart[Math.min(pastDays + 1, calendar.dateIds.length)] ) {
+          calendar = new ScheduleCalendar(TimeZone.getDefault(), now - pastDays * DAY_MILLIS, pastDays + 1 + futureDays);
+          defaultCalendar = calendar;
+        }
+      }
+    }
+    return calendar;
+  }
+  
+  /** Find the day that contains a time, or -1 if it is outside the calendar. */
+  public int findDay(long millis) {
+    if ( millis < dayStart[0] || millis >= dayStart[dayStart.length - 1] )
+      return -1;
+    int pos = Arrays.binarySearch(dayStart, millis);
+    if ( pos >= 0 )
+      return pos;
+    return -(pos + 1) - 1;
+  }
+  
+  /** The number of days in the calendar. */
+  public int size() {
+    return dateIds.length;
+  }
+  
+  /** Get the time in seconds since midnight, as shown on the clock. */
+  public int getSeconds(long millis) {
+    int day = findDay(millis);
+    if ( day < 0 ) {
+      Calendar cal = new GregorianCalendar(timeZone);
+      cal.setTimeInMillis(millis);
+      return 60 * (cal.get(Calendar.HOUR_OF_DAY) * 60 + cal.get(Calendar.MINUTE)) + cal.get(Calendar.SECOND);
+    }
+    if ( ! offsetChanges[day] ) {
+      return (int) ((millis - dayStart[day]) / 1000L);
+    }
+    return (int) ((millis + timeZone.getOffset(millis) - dayStart[day] - startOffset[day]) / 1000L);
+  }
+  
+  public int getDateId(long millis) {
+    int day = findDay(millis);
+    if ( day < 0 ) {
+      Calendar cal = new GregorianCalendar(timeZone);
+      cal.setTimeInMillis(millis);
+      return DateId.dateId(cal);
+    }
+    return dateIds[day];
+  }
+  
+  /** Get the day of the week, as in Calendar.DAY_OF_WEEK */
+  public int getDayOfWeek(long millis) {
+    int day = findDay(millis);
+    if ( day < 0 ) {
+      Calendar cal = new GregorianCalendar(timeZone);
+      cal.setTimeInMillis(millis);
+      return cal.get(Calendar.DAY_OF_WEEK);
+    }
+    return dayOfWeek[day];
+  }
+  
+  /** Get the resolution table for a list of schedule ids. */
+  public Table getTable(ScheduleId[] scheduleIds) {
+    List<ScheduleId> key = Arrays.asList(scheduleIds);
+    Table table = tables.get(key);
+    if ( table == null ) {
+      table = new Table(this, scheduleIds.clone());
+      Table existing = tables.putIfAbsent(Arrays.asList(table.scheduleIds), table);
+      if ( existing != null ) {
+        table = existing;
+      }
+    }
+    return table;
+  }
+}
@@ -20,11 +20,7 @@
  */
 package org.melato.bus.model;
 
-import java.util.Calendar;
 import java.util.Date;
-import java.util.GregorianCalendar;
-
-import org.melato.util.DateId;
 
 
 /** Contains information for choosing the right schedule. */
@@ -32,6 +28,7 @@ public class ScheduleSummary {
   private ScheduleId[] scheduleIds;
   /** The # of minutes after midnight where the schedule is still considered the previous day's schedule. */
   private int dayChange;
+  private volatile ScheduleCalendar.Table calendarTable;
 
 
   public ScheduleSummary(ScheduleId[] scheduleIds, int dayChange) {
@@ -45,22 +42,15 @@ public class ScheduleSummary {
   }
   
   public ScheduleId getScheduleId(Date date) {
-    Calendar cal = new GregorianCalendar();
-    cal.setTime(date);
-    cal.add(Calendar.MINUTE, -dayChange); // shift the day back.
-    int dateId = DateId.dateId(cal);
-    for( ScheduleId scheduleId: scheduleIds) {
-      if (scheduleId.matchesDateId(dateId)) {
-        return scheduleId;
-      }
-    }
-    int dayOfWeek = cal.get(Calendar.DAY_OF_WEEK);
-    for( ScheduleId scheduleId: scheduleIds) {
-      if (scheduleId.matchesDayOfWeek(dayOfWeek)) {
-        return scheduleId;
-      }
+    ScheduleCalendar calendar = ScheduleCalendar.getDefault();
+    ScheduleCalendar.Table table = calendarTable;
+    if ( table == null || table.getCalendar() != calendar ) {
+      table = calendar.getTable(scheduleIds);
+      calendarTable = table;
     }
-    return null;
+    // dayChange shifts the day back.
+    int index = table.find(dayChange, date.getTime());
+    return index >= 0 ? scheduleIds[index] : null;
   }
   
   public int getDayChange() {
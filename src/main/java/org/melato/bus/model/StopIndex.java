@@ -0,0 +1,398 @@
+/*-------------------------------------------------------------------------
+ * Copyright (c) 2012,2013, Alex Athanasopoulos.  All Rights Reserved.
+ * alex@melato.org
+ *-------------------------------------------------------------------------
+ * This file is part of Athens Next Bus
+ *
+ * Athens Next Bus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Athens Next Bus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Athens Next Bus.  If not, see <http://www.gnu.org/licenses/>.
+ *-------------------------------------------------------------------------
+ */
+package org.melato.bus.model;
+
+import java.util.Collection;
+
+import org.melato.gps.Earth;
+import org.melato.gps.Metric;
+import org.melato.gps.Point2D;
+
+/**
+ * An in-memory spatial index of all (route,stop) pairs.
+ * The stops are placed in a uniform grid of cells, about cellSize meters wide,
+ * so that a query only looks at the cells that overlap its search radius.
+ * The index is immutable and can be shared by several threads.
+ * @author Alex Athanasopoulos
+ */
+public class StopIndex {
+  /** The default cell size, in meters. */
+  public static final float DEFAULT_CELL_SIZE = 250f;
+  /** Limits the grid size, for networks that cover a large area. */
+  private static final int MAX_CELLS = 1 << 20;
+  private RouteId[] routeIds;
+  private Stop[][] stops;
+  /* The entries, sorted by cell.  Each entry is one stop of one route. */
+  private float[] lat;
+  private float[] lon;
+  private int[] route;
+  private int[] stop;
+  /** The first entry of each cell.  The entries of cell c are in [cellStart[c], cellStart[c+1]). */
+  private int[] cellStart;
+  private float latMin;
+  private float lonMin;
+  private float cellLat;
+  private float cellLon;
+  private int rows;
+  private int cols;
+
+  /**
+   * Create an index.
+   * @param routeIds The routes.
+   * @param stops The stops of each route, in the same order as routeIds.
+   * @param cellSize The grid cell size in meters.
+   */
+  public StopIndex(RouteId[] routeIds, Stop[][] stops, float cellSize) {
+    this.routeIds = routeIds;
+    this.stops = stops;
+    int n = 0;
+    float latMax = -Float.MAX_VALUE;
+    float lonMax = -Float.MAX_VALUE;
+    latMin = Float.MAX_VALUE;
+    lonMin = Float.MAX_VALUE;
+    for( Stop[] routeStops: stops ) {
+      for( Stop s: routeStops ) {
+        latMin = Math.min(latMin, s.getLat());
+        latMax = Math.max(latMax, s.getLat());
+        lonMin = Math.min(lonMin, s.getLon());
+        lonMax = Math.max(lonMax, s.getLon());
+        n++;
+      }
+    }
+    if ( n == 0 ) {
+      latMin = latMax = lonMin = lonMax = 0;
+    }
+    while(true) {
+      cellLat = Earth.latitudeForDistance(cellSize);
+      cellLon = Earth.longitudeForDistance(cellSize, (latMin + latMax) / 2);
+      rows = (int) ((latMax - latMin) / cellLat) + 1;
+      cols = (int) ((lonMax - lonMin) / cellLon) + 1;
+      if ( (long) rows * cols <= MAX_CELLS )
+        break;
+      // the area is too large for this cell size.
+      cellSize *= 2;
+    }
+    // counting sort of the entries by cell.
+    int[] cells = new int[n];
+    cellStart = new int[rows * cols + 1];
+    int k = 0;
+    for( Stop[] routeStops: stops ) {
+      for( Stop s: routeStops ) {
+        int cell = row(s.getLat()) * cols + col(s.getLon());
+        cells[k++] = cell;
+        cellStart[cell+1]++;
+      }
+    }
+    for( int c = 0; c < rows * cols; c++ ) {
+      cellStart[c+1] += cellStart[c];
+    }
+    int[] next = new int[rows * cols];
+    System.arraycopy(cellStart, 0, next, 0, next.length);
+    lat = new float[n];
+    lon = new float[n];
+    route = new int[n];
+    stop = new int[n];
+    k = 0;
+    for( int r = 0; r < stops.length; r++ ) {
+      Stop[] routeStops = stops[r];
+      for( int i = 0; i < routeStops.length; i++ ) {
+        int e = next[cells[k++]]++;
+        lat[e] = routeStops[i].getLat();
+        lon[e] = routeStops[i].getLon();
+        route[e] = r;
+        stop[e] = i;
+      }
+    }
+  }
+  
+  public StopIndex(RouteId[] routeIds, Stop[][] stops) {
+    this(routeIds, stops, DEFAULT_CELL_SIZE);
+  }
+  
+  private int row(float lat) {
+    return clamp((int) ((lat - latMin) / cellLat), rows);
+  }
+  
+  private int col(float lon) {
+    return clamp((int) ((lon - lonMin) / cellLon), cols);
+  }
+
+  private static int clamp(int i, int n) {
+    if ( i < 0 )
+      return 0;
+    if ( i >= n )
+      return n - 1;
+    return i;
+  }
+  
+  /** The number of routes in the index. */
+  public int getRouteCount() {
+    return routeIds.length;
+  }
+  
+  /** Get the id of a route, by its position in the index. */
+  public RouteId getRouteIdAt(int route) {
+    return routeIds[route];
+  }
+  
+  /** Get the stops of a route, by its position in the index. */
+  public Stop[] getRouteStops(int route) {
+    return stops[route];
+  }
+  
+  /** The total number of (route,stop) entries. */
+  public int size() {
+    return lat.length;
+  }
+  
+  public RouteId getRouteId(int entry) {
+    return routeIds[route[entry]];
+  }
+  
+  public Stop getStop(int entry) {
+    return stops[route[entry]][stop[entry]];
+  }
+  
+  public RStop getRStop(int entry) {
+    return new RStop(getRouteId(entry), getStop(entry));
+  }
+
+  /**
+   * Find all (route,stop) combinations within a certain distance from a point.
+   * The RStops that are added to the result have their distance set.
+   * @param point The center of the search.
+   * @param distance The search radius, in meters.  Stops closer than this distance are included.
+   * @param metric The metric to compute distances with.
+   * @param result
+   */
+  public void findNearby(Point2D point, float distance, Metric metric, Collection<RStop> result) {
+    if ( lat.length == 0 )
+      return;
+    if ( metric instanceof ProjectedMetric ) {
+      findNearby(point, distance, (ProjectedMetric) metric, result);
+      return;
+    }
+    float latDiff = Earth.latitudeForDistance(distance);
+    float lonDiff = Earth.longitudeForDistance(distance, point.getLat());
+    int row1 = row(point.getLat() - latDiff);
+    int row2 = row(point.getLat() + latDiff);
+    int col1 = col(point.getLon() - lonDiff);
+    int col2 = col(point.getLon() + lonDiff);
+    Point2D p = new Point2D();
+    for( int row = row1; row <= row2; row++ ) {
+      for( int col = col1; col <= col2; col++ ) {
+        int cell = row * cols + col;
+        for( int e = cellStart[cell]; e < cellStart[cell+1]; e++ ) {
+          p.setLat(lat[e]);
+          p.setLon(lon[e]);
+          float d = metric.distance(point, p);
+          if ( d < distance ) {
+            RStop rstop = getRStop(e);
+            rstop.setDistance(d);
+            result.add(rstop);
+          }
+        }
+      }
+    }
+  }
+
+  /** Like findNearby(), but compares squared distances, without creating points. */
+  private void findNearby(Point2D point, float distance, ProjectedMetric metric, Collection<RStop> result) {
+    float latDiff = Earth.latitudeForDistance(distance);
+    float lonDiff = Earth.longitudeForDistance(distance, point.getLat());
+    int row1 = row(point.getLat() - latDiff);
+    int row2 = row(point.getLat() + latDiff);
+    int col1 = col(point.getLon() - lonDiff);
+    int col2 = col(point.getLon() + lonDiff);
+    float lat0 = point.getLat();
+    float lon0 = point.getLon();
+    float distanceSquared = distance * distance;
+    for( int row = row1; row <= row2; row++ ) {
+      for( int col = col1; col <= col2; col++ ) {
+        int cell = row * cols + col;
+        for( int e = cellStart[cell]; e < cellStart[cell+1]; e++ ) {
+          float d2 = metric.distanceSquared(lat0, lon0, lat[e], lon[e]);
+          if ( d2 < distanceSquared ) {
+            RStop rstop = getRStop(e);
+            rstop.setDistance((float) Math.sqrt(d2));
+            result.add(rstop);
+          }
+        }
+      }
+    }
+  }
+
+  /** A bounded max-heap of entries, by distance.  Keeps the k nearest entries seen so far. */
+  private static class NearestHeap {
+    int[] entries;
+    float[] distances;
+    int size;
+    
+    NearestHeap(int k) {
+      entries = new int[k];
+      distances = new float[k];
+    }
+    boolean isFull() {
+      return size == entries.length;
+    }
+    /** The largest distance in the heap. */
+    float max() {
+      return distances[0];
+    }
+    void add(int entry, float distance) {
+      if ( size < entries.length ) {
+        int i = size++;
+        while( i > 0 ) {
+          int parent = (i - 1) / 2;
+          if ( distances[parent] >= distance )
+            break;
+          entries[i] = entries[parent];
+          distances[i] = distances[parent];
+          i = parent;
+        }
+        entries[i] = entry;
+        distances[i] = distance;
+      } else if ( distance < distances[0] ) {
+        siftDown(entry, distance);
+      }
+    }
+    /** Remove the farthest entry. */
+    void removeMax() {
+      size--;
+      if ( size > 0 ) {
+        siftDown(entries[size], distances[size]);
+      }
+    }
+    /** Put an entry at the root and move it down to its place. */
+    private void siftDown(int entry, float distance) {
+      int i = 0;
+      while(true) {
+        int child = 2 * i + 1;
+        if ( child >= size )
+          break;
+        if ( child + 1 < size && distances[child+1] > distances[child] )
+          child++;
+        if ( distances[child] <= distance )
+          break;
+        entries[i] = entries[child];
+        distances[i] = distances[child];
+        i = child;
+      }
+      entries[i] = entry;
+      distances[i] = distance;
+    }
+  }
+
+  private void scanCell(int row, int col, Point2D point, float maxDistance, Metric metric, Point2D p, NearestHeap heap) {
+    int cell = row * cols + col;
+    for( int e = cellStart[cell]; e < cellStart[cell+1]; e++ ) {
+      p.setLat(lat[e]);
+      p.setLon(lon[e]);
+      float d = metric.distance(point, p);
+      if ( d < maxDistance ) {
+        heap.add(e, d);
+      }
+    }
+  }
+  
+  /**
+   * The distance from a point to the outside of a block of cells,
+   * i.e. a lower bound for the distance to any entry in a cell outside the block.
+   */
+  private float distanceOutside(Point2D point, int row1, int row2, int col1, int col2, Metric metric) {
+    float min = Float.POSITIVE_INFINITY;
+    Point2D edge = new Point2D();
+    if ( row1 > 0 ) {
+      edge.setLat(Math.min(point.getLat(), latMin + row1 * cellLat));
+      edge.setLon(point.getLon());
+      min = Math.min(min, metric.distance(point, edge));
+    }
+    if ( row2 < rows - 1 ) {
+      edge.setLat(Math.max(point.getLat(), latMin + (row2 + 1) * cellLat));
+      edge.setLon(point.getLon());
+      min = Math.min(min, metric.distance(point, edge));
+    }
+    if ( col1 > 0 ) {
+      edge.setLat(point.getLat());
+      edge.setLon(Math.min(point.getLon(), lonMin + col1 * cellLon));
+      min = Math.min(min, metric.distance(point, edge));
+    }
+    if ( col2 < cols - 1 ) {
+      edge.setLat(point.getLat());
+      edge.setLon(Math.max(point.getLon(), lonMin + (col2 + 1) * cellLon));
+      min = Math.min(min, metric.distance(point, edge));
+    }
+    return min;
+  }
+  
+  /**
+   * Find the k nearest (route,stop) combinations to a point.
+   * It searches rings of cells around the point, and stops as soon as
+   * no cell outside the searched rings can contain a nearer stop.
+   * @param point The center of the search.
+   * @param k The maximum number of stops to return.
+   * @param maxDistance Only stops closer than this distance are returned.
+   * @param metric The metric to compute distances with.
+   * @return The nearest stops, sorted by distance, with their distance set.
+   */
+  public RStop[] findNearest(Point2D point, int k, float maxDistance, Metric metric) {
+    if ( lat.length == 0 || k <= 0 )
+      return new RStop[0];
+    NearestHeap heap = new NearestHeap(k);
+    int row0 = row(point.getLat());
+    int col0 = col(point.getLon());
+    int maxRing = Math.max(rows, cols);
+    Point2D p = new Point2D();
+    for( int ring = 0; ring <= maxRing; ring++ ) {
+      int row1 = row0 - ring;
+      int row2 = row0 + ring;
+      int col1 = col0 - ring;
+      int col2 = col0 + ring;
+      for( int col = Math.max(col1, 0); col <= Math.min(col2, cols - 1); col++ ) {
+        if ( row1 >= 0 )
+          scanCell(row1, col, point, maxDistance, metric, p, heap);
+        if ( row2 < rows && ring > 0 )
+          scanCell(row2, col, point, maxDistance, metric, p, heap);
+      }
+      for( int row = Math.max(row1 + 1, 0); row <= Math.min(row2 - 1, rows - 1); row++ ) {
+        if ( col1 >= 0 )
+          scanCell(row, col1, point, maxDistance, metric, p, heap);
+        if ( col2 < cols )
+          scanCell(row, col2, point, maxDistance, metric, p, heap);
+      }
+      float outside = distanceOutside(point, Math.max(row1, 0), Math.min(row2, rows - 1),
+          Math.max(col1, 0), Math.min(col2, cols - 1), metric);
+      if ( outside >= maxDistance )
+        break;
+      if ( heap.isFull() && heap.max() <= outside )
+        break;
+    }
+    RStop[] result = new RStop[heap.size];
+    for( int i = result.length - 1; i >= 0; i-- ) {
+      int e = heap.entries[0];
+      RStop rstop = getRStop(e);
+      rstop.setDistance(heap.distances[0]);
+      result[i] = rstop;
+      heap.removeMax();
+    }
+    return result;
+  }
+}
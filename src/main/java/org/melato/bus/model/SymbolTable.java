@@ -0,0 +1,106 @@
+/*-------------------------------------------------------------------------
+ * Copyright (c) 2012,2013, Alex Athanasopoulos.  All Rights Reserved.
+ * alex@melato.org
+ *-------------------------------------------------------------------------
+ * This file is part of Athens Next Bus
+ *
+ * Athens Next Bus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Athens Next Bus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Athens Next Bus.  If not, see <http://www.gnu.org/licenses/>.
+ *-------------------------------------------------------------------------
+ */
+package org.melato.bus.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assigns dense int ids to routes and to stop symbols, so that code that handles many routes or stops
+ * can use arrays instead of maps keyed by RouteId or by symbol.
+ * Route ids are the indexes of the routes in RouteManager.getRouteIds().
+ * Symbol ids are assigned in the order that symbols first appear in the routes.
+ * The table is immutable.
+ * @author Alex Athanasopoulos
+ */
+public class SymbolTable {
+  private RouteId[] routeIds;
+  private Map<RouteId,Integer> routeIndex;
+  private String[] symbols;
+  private Map<String,Integer> symbolIndex;
+  /** The symbol id of each stop of each route. */
+  private int[][] stopSymbols;
+  
+  public SymbolTable(StopIndex stopIndex) {
+    int routeCount = stopIndex.getRouteCount();
+    routeIds = new RouteId[routeCount];
+    routeIndex = new HashMap<RouteId,Integer>(routeCount * 2);
+    stopSymbols = new int[routeCount][];
+    symbolIndex = new HashMap<String,Integer>();
+    List<String> symbolList = new ArrayList<String>();
+    for( int r = 0; r < routeCount; r++ ) {
+      routeIds[r] = stopIndex.getRouteIdAt(r);
+      routeIndex.put(routeIds[r], r);
+      Stop[] stops = stopIndex.getRouteStops(r);
+      int[] ids = new int[stops.length];
+      for( int i = 0; i < stops.length; i++ ) {
+        String symbol = stops[i].getSymbol();
+        Integer id = symbolIndex.get(symbol);
+        if ( id == null ) {
+          id = symbolList.size();
+          symbolIndex.put(symbol, id);
+          symbolList.add(symbol);
+        }
+        ids[i] = id;
+      }
+      stopSymbols[r] = ids;
+    }
+    symbols = symbolList.toArray(new String[0]);
+  }
+  
+  public int getRouteCount() {
+    return routeIds.length;
+  }
+  
+  public RouteId getRouteId(int routeIdx) {
+    return routeIds[routeIdx];
+  }
+  
+  /** Get the id of a route, or -1 if there is no such route. */
+  public int getRouteIndex(RouteId routeId) {
+    Integer index = routeIndex.get(routeId);
+    return index != null ? index : -1;
+  }
+  
+  public int getSymbolCount() {
+    return symbols.length;
+  }
+  
+  public String getSymbol(int symbolIdx) {
+    return symbols[symbolIdx];
+  }
+  
+  /** Get the id of a stop symbol, or -1 if no route has such a stop. */
+  public int getSymbolIndex(String symbol) {
+    Integer index = symbolIndex.get(symbol);
+    return index != null ? index : -1;
+  }
+  
+  /**
+   * Get the symbol ids of the stops of a route, in route order.
+   * The array is shared, and should not be modified.
+   */
+  public int[] getStopSymbols(int routeIdx) {
+    return stopSymbols[routeIdx];
+  }
+}
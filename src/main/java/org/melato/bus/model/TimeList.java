@@ -0,0 +1,47 @@
+/*-------------------------------------------------------------------------
+ * Copyright (c) 2012,2013, Alex Athanasopoulos.  All Rights Reserved.
+ * alex@melato.org
+ *-------------------------------------------------------------------------
+ * This file is part of Athens Next Bus
+ *
+ * Athens Next Bus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Athens Next Bus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Athens Next Bus.  If not, see <http://www.gnu.org/licenses/>.
+ *-------------------------------------------------------------------------
+ */
+package org.melato.bus.model;
+
+/**
+ * A compact, immutable, sorted list of schedule times, used instead of an int array.
+ * @author Alex Athanasopoulos
+ */
+public interface TimeList {
+  /** The number of times. */
+  int size();
+  
+  /** Get the time at an index. */
+  int get(int index);
+  
+  /** The last time, or -1 if there are no times. */
+  int getLastTime();
+
+  /**
+   * Find the first time that is >= a given time.
+   * @return The index of the time, or size() if there is none.
+   */
+  int findNext(int time);
+  
+  boolean contains(int time);
+  
+  /** Decode all the times into a new array. */
+  int[] toArray();
+}
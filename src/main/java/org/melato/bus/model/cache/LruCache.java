@@ -0,0 +1,257 @@
+/*-------------------------------------------------------------------------
+ * Copyright (c) 2012,2013, Alex Athanasopoulos.  All Rights Reserved.
+ * alex@melato.org
+ *-------------------------------------------------------------------------
+ * This file is part of Athens Next Bus
+ *
+ * Athens Next Bus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Athens Next Bus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Athens Next Bus.  If not, see <http://www.gnu.org/licenses/>.
+ *-------------------------------------------------------------------------
+ */
+package org.melato.bus.model.cache;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A size-bounded cache that evicts approximately the least recently used entries.
+ * Reads do not lock, and only write to the entry they read and to a striped hit counter.
+ * Each entry records the value of a logical clock at its last access.
+ * The clock only advances when entries are added, so recency is tracked at the resolution of insertions.
+ * When the cache grows beyond its capacity, one thread evicts a batch of the oldest entries,
+ * so the cost of scanning the entries is spread over several insertions.
+ * Concurrent misses for the same key, via get(key, loader), call the loader only once.
+ * It keeps hit/miss/eviction counters, for tuning the cache size.
+ * @author Alex Athanasopoulos
+ */
+public class LruCache<K,V> {
+  private volatile int capacity;
+  private ConcurrentMap<K,Entry<V>> map = new ConcurrentHashMap<K,Entry<V>>();
+  private ConcurrentMap<K,FutureTask<V>> loading = new ConcurrentHashMap<K,FutureTask<V>>();
+  /** A logical clock, used to order accesses.  It is advanced by insertions. */
+  private AtomicLong clock = new AtomicLong();
+  private StripedCounter hits = new StripedCounter();
+  private StripedCounter misses = new StripedCounter();
+  private StripedCounter evictions = new StripedCounter();
+  private ReentrantLock evictLock = new ReentrantLock();
+
+  /** Loads a value that is not in the cache. */
+  public static interface Loader<K,V> {
+    /** Return the value for the key, or null if there is none. */
+    V load(K key);
+  }
+  
+  private static class Entry<V> {
+    final V value;
+    volatile long accessed;
+    Entry(V value, long accessed) {
+      this.value = value;
+      this.accessed = accessed;
+    }
+  }
+  
+  /**
+   * @param capacity The maximum number of entries to keep.
+   */
+  public LruCache(int capacity) {
+    super();
+    this.capacity = capacity;
+  }
+
+  /** Get a cached value, or null if it is not in the cache. */
+  public V get(K key) {
+    Entry<V> entry = map.get(key);
+    if ( entry != null ) {
+      long now = clock.get();
+      if ( entry.accessed != now ) {
+        entry.accessed = now;
+      }
+      hits.increment();
+      return entry.value;
+    }
+    misses.increment();
+    return null;
+  }
+  
+  /**
+   * Get a cached value, or load it and cache it if it is not in the cache.
+   * If several threads ask for the same missing key at the same time,
+   * only one of them loads it and the others wait for the result. 
+   */
+  public V get(final K key, final Loader<K,V> loader) {
+    V value = get(key);
+    if ( value != null )
+      return value;
+    FutureTask<V> task = new FutureTask<V>(new Callable<V>() {
+      @Override
+      public V call() {
+        Entry<V> entry = map.get(key);
+        if ( entry != null ) {
+          // loaded by another thread, after our first lookup.
+          return entry.value;
+        }
+        V value = loader.load(key);
+        put(key, value);
+        return value;
+      }
+    });
+    FutureTask<V> existing = loading.putIfAbsent(key, task);
+    if ( existing == null ) {
+      try {
+        task.run();
+      } finally {
+        loading.remove(key, task);
+      }
+    } else {
+      task = existing;
+    }
+    return getResult(task);
+  }
+
+  private static <V> V getResult(FutureTask<V> task) {
+    boolean interrupted = false;
+    try {
+      while(true) {
+        try {
+          return task.get();
+        } catch(InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    } catch(ExecutionException e) {
+      Throwable cause = e.getCause();
+      if ( cause instanceof RuntimeException ) {
+        throw (RuntimeException) cause;
+      }
+      if ( cause instanceof Error ) {
+        throw (Error) cause;
+      }
+      throw new RuntimeException(cause);
+    } finally {
+      if ( interrupted ) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+  
+  public void put(K key, V value) {
+    if ( value == null ) {
+      map.remove(key);
+      return;
+    }
+    // entries read from now on are more recent than this one.
+    map.put(key, new Entry<V>(value, clock.getAndIncrement()));
+    int capacity = this.capacity;
+    if ( map.size() > capacity ) {
+      // evict a few more than needed, so that the next insertions do not have to evict.
+      evict(capacity - capacity / 16, false);
+    }
+  }
+  
+  /**
+   * Remove the least recently used entries, until the cache has at most size entries.
+   * @param wait If false, return immediately if another thread is evicting.
+   */
+  private void evict(int size, boolean wait) {
+    if ( wait ) {
+      evictLock.lock();
+    } else if ( ! evictLock.tryLock() ) {
+      return;
+    }
+    try {
+      int n = map.size();
+      if ( n <= size )
+        return;
+      Object[] keys = new Object[n];
+      long[] stamps = new long[n];
+      int count = 0;
+      for( Map.Entry<K,Entry<V>> e: map.entrySet() ) {
+        if ( count == n )
+          break;
+        keys[count] = e.getKey();
+        stamps[count] = e.getValue().accessed;
+        count++;
+      }
+      int remove = count - size;
+      if ( remove <= 0 )
+        return;
+      long[] sorted = Arrays.copyOf(stamps, count);
+      Arrays.sort(sorted);
+      long threshold = sorted[remove - 1];
+      // remove the entries older than the threshold, and as many as needed at the threshold.
+      int atThreshold = remove;
+      for( int i = 0; i < remove; i++ ) {
+        if ( sorted[i] < threshold ) {
+          atThreshold--;
+        }
+      }
+      for( int i = 0; i < count; i++ ) {
+        if ( stamps[i] < threshold || (stamps[i] == threshold && atThreshold-- > 0) ) {
+          @SuppressWarnings("unchecked")
+          K key = (K) keys[i];
+          if ( map.remove(key) != null ) {
+            evictions.increment();
+          }
+        }
+      }
+    } finally {
+      evictLock.unlock();
+    }
+  }
+  
+  public void remove(K key) {
+    map.remove(key);
+  }
+  
+  public void clear() {
+    map.clear();
+  }
+
+  public int size() {
+    return map.size();
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /** Change the capacity, evicting entries if necessary. */
+  public void setCapacity(int capacity) {
+    this.capacity = capacity;
+    evict(capacity, true);
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  @Override
+  public String toString() {
+    return "size=" + map.size() + "/" + capacity + " hits=" + hits + " misses=" + misses + " evictions=" + evictions;
+  }
+}
@@ -0,0 +1,142 @@
+/*-------------------------------------------------------------------------
+ * Copyright (c) 2012,2013, Alex Athanasopoulos.  All Rights Reserved.
+ * alex@melato.org
+ *-------------------------------------------------------------------------
+ * This file is part of Athens Next Bus
+ *
+ * Athens Next Bus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Athens Next Bus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Athens Next Bus.  If not, see <http://www.gnu.org/licenses/>.
+ *-------------------------------------------------------------------------
+ */
+package org.melato.bus.model.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.melato.bus.model.RouteId;
+import org.melato.gps.Point2D;
+
+/**
+ * Packs the coordinates of many routes into two contiguous arrays, one for latitudes and one for longitudes.
+ * Routes are appended, and each one is then available as a RoutePoints view of its range of the arrays,
+ * so a whole network uses two arrays instead of two per route.
+ * Add all the routes first, and then call getMap() or getRoutePoints().
+ * It is not thread-safe.
+ * @author Alex Athanasopoulos
+ */
+public class PackedRoutePoints {
+  private float[] lat;
+  private float[] lon;
+  private int size;
+  private List<RouteId> routeIds = new ArrayList<RouteId>();
+  /** The offset of each route, followed by the total size. */
+  private int[] offsets = new int[16];
+  private boolean sealed;
+  
+  public PackedRoutePoints() {
+    this(1024);
+  }
+  
+  /**
+   * @param capacity The expected total number of points.
+   */
+  public PackedRoutePoints(int capacity) {
+    lat = new float[capacity];
+    lon = new float[capacity];
+  }
+  
+  private void ensureCapacity(int count) {
+    if ( sealed ) {
+      throw new IllegalStateException("routes cannot be added after the points have been shared");
+    }
+    if ( size + count > lat.length ) {
+      int capacity = Math.max(lat.length * 2, size + count);
+      lat = Arrays.copyOf(lat, capacity);
+      lon = Arrays.copyOf(lon, capacity);
+    }
+    int n = routeIds.size();
+    if ( n + 2 > offsets.length ) {
+      offsets = Arrays.copyOf(offsets, offsets.length * 2);
+    }
+  }
+  
+  private void endRoute(RouteId routeId, int count) {
+    offsets[routeIds.size()] = size;
+    routeIds.add(routeId);
+    size += count;
+    offsets[routeIds.size()] = size;
+  }
+  
+  /** Add a route from coordinate arrays.  Only the first count elements are used, so the arrays can be reused. */
+  public void add(RouteId routeId, float[] lat, float[] lon, int count) {
+    ensureCapacity(count);
+    System.arraycopy(lat, 0, this.lat, size, count);
+    System.arraycopy(lon, 0, this.lon, size, count);
+    endRoute(routeId, count);
+  }
+  
+  public void add(RouteId routeId, List<Point2D> waypoints) {
+    int count = waypoints.size();
+    ensureCapacity(count);
+    for( int i = 0; i < count; i++ ) {
+      Point2D p = waypoints.get(i);
+      lat[size + i] = p.getLat();
+      lon[size + i] = p.getLon();
+    }
+    endRoute(routeId, count);
+  }
+  
+  /** The number of routes. */
+  public int getRouteCount() {
+    return routeIds.size();
+  }
+  
+  /** The total number of points, in all routes. */
+  public int getPointCount() {
+    return size;
+  }
+  
+  public RouteId getRouteId(int index) {
+    return routeIds.get(index);
+  }
+  
+  private void seal() {
+    if ( ! sealed ) {
+      if ( lat.length > size ) {
+        lat = Arrays.copyOf(lat, size);
+        lon = Arrays.copyOf(lon, size);
+      }
+      sealed = true;
+    }
+  }
+  
+  /** Get a view of the points of the route at an index.  No more routes can be added after this. */
+  public RoutePoints getRoutePoints(int index) {
+    seal();
+    int offset = offsets[index];
+    return new RoutePoints(lat, lon, offset, offsets[index + 1] - offset);
+  }
+  
+  /** Get views of the points of all routes.  No more routes can be added after this. */
+  public Map<RouteId,RoutePoints> getMap() {
+    Map<RouteId,RoutePoints> map = new HashMap<RouteId,RoutePoints>();
+    int n = routeIds.size();
+    for( int i = 0; i < n; i++ ) {
+      map.put(routeIds.get(i), getRoutePoints(i));
+    }
+    return map;
+  }
+}
@@ -23,6 +23,9 @@ package org.melato.bus.model.cache;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.melato.bus.model.RouteId;
 import org.melato.bus.model.RouteManager;
@@ -30,13 +33,22 @@ import org.melato.gps.Point2D;
 
 
 /** Caches the coordinates of all routes in memory, for quick access.
+ * Loading primary or all routes is serialized with a lock, so concurrent callers
+ * wait for a single load.  Lookups do not lock.
+ * The tile index is also built by one thread at a time, and only when it is requested after routes were added.
  * */
 public class RoutePointCache {
   private RouteManager routeManager;
-  private Map<RouteId,RoutePoints> map = new HashMap<RouteId,RoutePoints>();
-  private Thread loadThread;
-  private boolean primaryLoaded;
-  private boolean allLoaded;
+  private ConcurrentMap<RouteId,RoutePoints> map = new ConcurrentHashMap<RouteId,RoutePoints>();
+  private Object loadLock = new Object();
+  private volatile boolean primaryLoaded;
+  private volatile boolean allLoaded;
+  private Object tileLock = new Object();
+  private volatile RouteTileIndex tileIndex;
+  /** The version of the routes that tileIndex covers. */
+  private volatile int tileVersion;
+  /** Incremented when routes are added. */
+  private AtomicInteger version = new AtomicInteger();
 
   public RoutePointCache(RouteManager routeManager) {
     super();
@@ -44,52 +56,58 @@ public class RoutePointCache {
   }
 
   /**
-   * Load all routes, if they are not already loaded.
+   * Load primary or all routes, if they are not already loaded.
+   * If they are being loaded by another thread, wait for that thread to finish.
    */
   public void load(boolean all) {
-    if ( allLoaded )
-      return;
-    if ( ! all && primaryLoaded )
+    if ( isLoaded(all) )
       return;
-    Thread thread = loadThread;
-    if ( thread != null) {
-      try {
-        thread.join();
-      } catch (InterruptedException e) {
-      }
-    } else {
-      loadThread = Thread.currentThread();
+    synchronized(loadLock) {
+      if ( isLoaded(all) )
+        return;
       doLoad(all);
       primaryLoaded = true;
       if ( all ) {
         allLoaded = true;
       }
-      loadThread = null;
     }
   }
   
-  /**
-   * Load primary or all routes.
-   * If they are being loaded by another thread, wait for that thread to finish.
-   * @param all
-   */
   private void doLoad(boolean all) {
-    RoutePointsCollector collector = new RoutePointsCollector();
+    RoutePointsCollector collector = new RoutePointsCollector(routeManager.getRouteIds());
     if (all) {
-      routeManager.iterateAllRouteStops(collector);
+      routeManager.iterateAllRoutePoints(collector);
     } else {
-      routeManager.iteratePrimaryRouteStops(collector);
-    }
-    primaryLoaded = true;
-    synchronized(this) {
-      map = collector.getMap();
+      routeManager.iteratePrimaryRoutePoints(collector);
     }
+    map.putAll(collector.getMap());
+    invalidateTileIndex();
   }
   
   public boolean isLoaded(boolean all) {
     return all ? allLoaded : primaryLoaded;
   }
   
+  /** Add the points of a route that were loaded elsewhere, e.g. during warm-up. */
+  public void put(RouteId routeId, RoutePoints points) {
+    map.put(routeId, points);
+    invalidateTileIndex();
+  }
+  
+  /** Add the points of several routes that were loaded elsewhere, e.g. during warm-up. */
+  public void putAll(Map<RouteId,RoutePoints> points) {
+    map.putAll(points);
+    invalidateTileIndex();
+  }
+  
+  /** Mark all routes as loaded, after they have been added with put(). */
+  public void setAllLoaded() {
+    synchronized(loadLock) {
+      primaryLoaded = true;
+      allLoaded = true;
+    }
+  }
+  
   private RoutePoints loadRoute(RouteId routeId) {    
     Point2D[] stops = routeManager.getStops(routeId);
     return RoutePoints.createFromPoints(Arrays.asList(stops));
@@ -101,15 +119,50 @@ public class RoutePointCache {
    * @param routeId
    * @return
    */
-  public synchronized RoutePoints getRoutePoints(RouteId routeId, boolean load) {
+  public RoutePoints getRoutePoints(RouteId routeId, boolean load) {
     RoutePoints points = map.get(routeId);
     if ( points == null && load ) {
-      // if the route is not loaded, and we are not already loading all routes, load it immediately.
-      // otherwise return null.  The map will be redrawn later.
+      // if the route is not loaded, load it immediately.
       points = loadRoute(routeId);
-      map.put(routeId, points);
+      RoutePoints existing = map.putIfAbsent(routeId, points);
+      if ( existing != null ) {
+        points = existing;
+      } else {
+        invalidateTileIndex();
+      }
     }
     return points;
   }  
 
+  /** Mark the tile index as out of date.  It is rebuilt on the next getTileIndex(). */
+  private void invalidateTileIndex() {
+    version.incrementAndGet();
+  }
+  
+  /**
+   * Get a tile index of the routes that are currently in the cache, for viewport queries.
+   * The index is built when first needed, and rebuilt after routes are added to the cache,
+   * reusing the simplified points of the routes of the previous index.
+   * If several threads need a new index, one builds it and the others wait for it.
+   */
+  public RouteTileIndex getTileIndex() {
+    // read the version first, so that the index is at least as recent as the version.
+    int indexVersion = tileVersion;
+    RouteTileIndex index = tileIndex;
+    if ( index != null && indexVersion == version.get() ) {
+      return index;
+    }
+    synchronized(tileLock) {
+      index = tileIndex;
+      int v = version.get();
+      if ( index == null || tileVersion != v ) {
+        // routes added while it is being built will cause another rebuild.
+        index = new RouteTileIndex(new HashMap<RouteId,RoutePoints>(map), index);
+        tileIndex = index;
+        tileVersion = v;
+      }
+      return index;
+    }
+  }
+
 }
@@ -26,21 +26,24 @@ import org.melato.gps.Point2D;
 
 /** A compact way of representing the coordinates of all the stops in a route.
  * Used to cache route shapes and draw them on a map.
+ * The coordinates may be a range of larger arrays, shared by many routes.  See PackedRoutePoints.
  * */
 public class RoutePoints {
   private float[] lat;
   private float[] lon;
+  private int offset;
+  private int size;
   
   public int size() {
-    return lat.length;
+    return size;
   }
   
   public float getLat(int i) {
-    return lat[i];
+    return lat[offset + i];
   }
   
   public float getLon(int i) {
-    return lon[i];
+    return lon[offset + i];
   }
   
   public Point2D getPoint(int i, Point2D point) {
@@ -62,26 +65,33 @@ public class RoutePoints {
     return points;
   }
   
-  private static float mean(float[] coordinates) {
+  private float mean(float[] coordinates) {
     double sum = 0;
-    for( int i = 0; i < coordinates.length; i++ ) {
-      sum += coordinates[i];
+    for( int i = 0; i < size; i++ ) {
+      sum += coordinates[offset + i];
     }
-    return (float) (sum / coordinates.length);
+    return (float) (sum / size);
   }
   public Point2D getCenter() {
     return new Point2D(mean(lat), mean(lon));    
   }
   public boolean isInside(int i, GpsRectangle r) {
-    float lat = this.lat[i];
-    float lon = this.lon[i];
+    float lat = this.lat[offset + i];
+    float lon = this.lon[offset + i];
     return r.latMin < lat && lat < r.latMax && r.lonMin < lon && lon < r.lonMax;     
   }
   
   public RoutePoints(float[] lat, float[] lon) {
+    this(lat, lon, 0, lat.length);
+  }
+
+  /** Create a view of a range of coordinate arrays.  The arrays are not copied. */
+  public RoutePoints(float[] lat, float[] lon, int offset, int size) {
     super();
     this.lat = lat;
     this.lon = lon;
+    this.offset = offset;
+    this.size = size;
   }
 
   public static RoutePoints createFromPoints(List<Point2D> waypoints) {
@@ -20,22 +20,43 @@
  */
 package org.melato.bus.model.cache;
 
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.melato.bus.model.RouteId;
+import org.melato.bus.model.RoutePointCallback;
 import org.melato.bus.model.RouteStopCallback;
 import org.melato.gps.Point2D;
 
-public class RoutePointsCollector implements RouteStopCallback {
-  private Map<RouteId,RoutePoints> routes = new HashMap<RouteId,RoutePoints>();
+/** Collects the points of routes into a PackedRoutePoints. */
+public class RoutePointsCollector implements RouteStopCallback, RoutePointCallback {
+  private PackedRoutePoints packed = new PackedRoutePoints();
+  private List<RouteId> routeIds;
+  
+  public RoutePointsCollector() {
+  }
+  
+  /**
+   * Create a collector that can also be used as a RoutePointCallback.
+   * @param routeIds The route ids, in the order of the route indexes.
+   */
+  public RoutePointsCollector(List<RouteId> routeIds) {
+    this.routeIds = routeIds;
+  }
+  
   @Override
   public void add(RouteId routeId, List<Point2D> waypoints) {
-    RoutePoints points = RoutePoints.createFromPoints(waypoints);
-    routes.put(routeId,points);
+    packed.add(routeId, waypoints);
+  }
+  /** Add a route from coordinate arrays, without creating Point2D objects. */
+  public void add(RouteId routeId, float[] lat, float[] lon, int count) {
+    packed.add(routeId, lat, lon, count);
+  }
+  @Override
+  public void addRoute(int routeIndex, float[] lat, float[] lon, int count) {
+    packed.add(routeIds.get(routeIndex), lat, lon, count);
   }
   public Map<RouteId, RoutePoints> getMap() {
-    return routes;
+    return packed.getMap();
   }
 }
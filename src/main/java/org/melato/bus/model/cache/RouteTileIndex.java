@@ -0,0 +1,390 @@
+/*-------------------------------------------------------------------------
+ * Copyright (c) 2012,2013, Alex Athanasopoulos.  All Rights Reserved.
+ * alex@melato.org
+ *-------------------------------------------------------------------------
+ * This file is part of Athens Next Bus
+ *
+ * Athens Next Bus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Athens Next Bus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Athens Next Bus.  If not, see <http://www.gnu.org/licenses/>.
+ *-------------------------------------------------------------------------
+ */
+package org.melato.bus.model.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.melato.bus.model.RouteId;
+
+/**
+ * A tile index over the points of many routes, for finding what to draw in a map viewport.
+ * It has several levels of detail.  Level 0 has the original route points.
+ * Each higher level has the routes simplified with the Douglas-Peucker algorithm,
+ * with a larger tolerance, and uses larger tiles.
+ * Each tile lists the route segments that touch it, so a viewport query
+ * only looks at the tiles that it covers.
+ * The index is immutable, and can be shared by several threads.
+ * @author Alex Athanasopoulos
+ */
+public class RouteTileIndex {
+  /** The simplification tolerance of each level, in degrees. */
+  public static final float[] TOLERANCES = { 0f, 0.0002f, 0.001f, 0.005f };
+  /** The tile size of level 0, in degrees.  Each level doubles it. */
+  public static final float TILE_SIZE = 0.01f;
+  /** The approximate number of pixels across a viewport, used to select a level. */
+  public static final int VIEWPORT_PIXELS = 500;
+  
+  private RouteId[] routeIds;
+  private Level[] levels;
+
+  /** A range of consecutive route points, at some level, that intersects a query rectangle. */
+  public static class RouteRange {
+    private RouteId routeId;
+    private RoutePoints points;
+    private int[] originalIndexes;
+    private int start;
+    private int end;
+    
+    RouteRange(RouteId routeId, RoutePoints points, int[] originalIndexes, int start, int end) {
+      this.routeId = routeId;
+      this.points = points;
+      this.originalIndexes = originalIndexes;
+      this.start = start;
+      this.end = end;
+    }
+    
+    public RouteId getRouteId() {
+      return routeId;
+    }
+    
+    /** The route points at the level of the query.  At level 0 these are the original points. */
+    public RoutePoints getPoints() {
+      return points;
+    }
+    
+    /** The first point of the range. */
+    public int getStart() {
+      return start;
+    }
+    
+    /** The last point of the range, inclusive. */
+    public int getEnd() {
+      return end;
+    }
+    
+    /** Get the index of a point of this level in the original route points. */
+    public int getOriginalIndex(int i) {
+      return originalIndexes[i];
+    }
+    
+    @Override
+    public String toString() {
+      return routeId + "[" + start + "-" + end + "]";
+    }
+  }
+  
+  private static class Level {
+    float tileSize;
+    RoutePoints[] points;
+    int[][] originalIndexes;
+    /** For each tile, the route and first point of each segment that touches it, as pairs. */
+    Map<Long,int[]> tiles = new HashMap<Long,int[]>();
+  }
+  
+  private static class IntBuffer {
+    int[] values = new int[8];
+    int size;
+    void add(int a, int b) {
+      if ( size + 2 > values.length ) {
+        values = Arrays.copyOf(values, values.length * 2);
+      }
+      values[size++] = a;
+      values[size++] = b;
+    }
+  }
+  
+  public RouteTileIndex(Map<RouteId,RoutePoints> routes) {
+    this(routes, null);
+  }
+  
+  /**
+   * Build an index for routes that were added to those of a previous index.
+   * The simplified points of the routes that have the same points in the previous index are reused,
+   * so only the added routes are simplified.
+   * @param routes All the routes.
+   * @param previous The previous index, or null.
+   */
+  public RouteTileIndex(Map<RouteId,RoutePoints> routes, RouteTileIndex previous) {
+    routeIds = routes.keySet().toArray(new RouteId[0]);
+    Arrays.sort(routeIds);
+    RoutePoints[] points = new RoutePoints[routeIds.length];
+    // the position of each route in the previous index, or -1.
+    int[] previousIndexes = new int[routeIds.length];
+    for( int r = 0; r < routeIds.length; r++ ) {
+      points[r] = routes.get(routeIds[r]);
+      previousIndexes[r] = -1;
+      if ( previous != null ) {
+        int p = Arrays.binarySearch(previous.routeIds, routeIds[r]);
+        if ( p >= 0 && previous.levels[0].points[p] == points[r] ) {
+          previousIndexes[r] = p;
+        }
+      }
+    }
+    levels = new Level[TOLERANCES.length];
+    float tileSize = TILE_SIZE;
+    for( int k = 0; k < levels.length; k++ ) {
+      Level previousLevel = previous != null ? previous.levels[k] : null;
+      levels[k] = createLevel(points, TOLERANCES[k], tileSize, previousLevel, previousIndexes);
+      tileSize *= 2;
+    }
+  }
+  
+  private static long tileKey(int x, int y) {
+    return ((long) x << 32) | (y & 0xffffffffL);
+  }
+  
+  private static int tile(float coordinate, float tileSize) {
+    return (int) Math.floor(coordinate / tileSize);
+  }
+  
+  private static Level createLevel(RoutePoints[] routes, float tolerance, float tileSize,
+      Level previous, int[] previousIndexes) {
+    Level level = new Level();
+    level.tileSize = tileSize;
+    level.points = new RoutePoints[routes.length];
+    level.originalIndexes = new int[routes.length][];
+    Map<Long,IntBuffer> tiles = new HashMap<Long,IntBuffer>();
+    for( int r = 0; r < routes.length; r++ ) {
+      RoutePoints points;
+      int p = previousIndexes[r];
+      if ( p >= 0 ) {
+        points = previous.points[p];
+        level.originalIndexes[r] = previous.originalIndexes[p];
+      } else {
+        int[] indexes = simplify(routes[r], tolerance);
+        points = select(routes[r], indexes);
+        level.originalIndexes[r] = indexes;
+      }
+      level.points[r] = points;
+      int n = points.size();
+      // a single point is treated as a segment from itself to itself.
+      int segments = n == 1 ? 1 : n - 1;
+      for( int i = 0; i < segments; i++ ) {
+        int j = Math.min(i + 1, n - 1);
+        int x1 = tile(Math.min(points.getLon(i), points.getLon(j)), tileSize);
+        int x2 = tile(Math.max(points.getLon(i), points.getLon(j)), tileSize);
+        int y1 = tile(Math.min(points.getLat(i), points.getLat(j)), tileSize);
+        int y2 = tile(Math.max(points.getLat(i), points.getLat(j)), tileSize);
+        for( int x = x1; x <= x2; x++ ) {
+          for( int y = y1; y <= y2; y++ ) {
+            Long key = tileKey(x, y);
+            IntBuffer buffer = tiles.get(key);
+            if ( buffer == null ) {
+              buffer = new IntBuffer();
+              tiles.put(key, buffer);
+            }
+            buffer.add(r, i);
+          }
+        }
+      }
+    }
+    for( Map.Entry<Long,IntBuffer> e : tiles.entrySet() ) {
+      IntBuffer buffer = e.getValue();
+      level.tiles.put(e.getKey(), Arrays.copyOf(buffer.values, buffer.size));
+    }
+    return level;
+  }
+  
+  private static RoutePoints select(RoutePoints points, int[] indexes) {
+    if ( indexes.length == points.size() ) {
+      return points;
+    }
+    float[] lat = new float[indexes.length];
+    float[] lon = new float[indexes.length];
+    for( int i = 0; i < indexes.length; i++ ) {
+      lat[i] = points.getLat(indexes[i]);
+      lon[i] = points.getLon(indexes[i]);
+    }
+    return new RoutePoints(lat, lon);
+  }
+  
+  /**
+   * Simplify a route with the Douglas-Peucker algorithm.
+   * Longitude differences are scaled by the cosine of the latitude, so that the tolerance
+   * is about the same in both directions.
+   * @return the indexes of the points to keep, in increasing order.
+   */
+  static int[] simplify(RoutePoints points, float tolerance) {
+    int n = points.size();
+    if ( tolerance <= 0 || n <= 2 ) {
+      int[] indexes = new int[n];
+      for( int i = 0; i < n; i++ ) {
+        indexes[i] = i;
+      }
+      return indexes;
+    }
+    double scale = Math.cos(Math.toRadians(points.getLat(0)));
+    boolean[] keep = new boolean[n];
+    keep[0] = true;
+    keep[n - 1] = true;
+    int[] stack = new int[2 * n];
+    int top = 0;
+    stack[top++] = 0;
+    stack[top++] = n - 1;
+    double tolerance2 = (double) tolerance * tolerance;
+    while( top > 0 ) {
+      int last = stack[--top];
+      int first = stack[--top];
+      double ax = points.getLon(first) * scale;
+      double ay = points.getLat(first);
+      double dx = points.getLon(last) * scale - ax;
+      double dy = points.getLat(last) - ay;
+      double length2 = dx * dx + dy * dy;
+      double max = -1;
+      int farthest = -1;
+      for( int i = first + 1; i < last; i++ ) {
+        double px = points.getLon(i) * scale - ax;
+        double py = points.getLat(i) - ay;
+        double d;
+        if ( length2 == 0 ) {
+          d = px * px + py * py;
+        } else {
+          double cross = px * dy - py * dx;
+          d = cross * cross / length2;
+        }
+        if ( d > max ) {
+          max = d;
+          farthest = i;
+        }
+      }
+      if ( farthest >= 0 && max > tolerance2 ) {
+        keep[farthest] = true;
+        stack[top++] = first;
+        stack[top++] = farthest;
+        stack[top++] = farthest;
+        stack[top++] = last;
+      }
+    }
+    int count = 0;
+    for( int i = 0; i < n; i++ ) {
+      if ( keep[i] )
+        count++;
+    }
+    int[] indexes = new int[count];
+    count = 0;
+    for( int i = 0; i < n; i++ ) {
+      if ( keep[i] )
+        indexes[count++] = i;
+    }
+    return indexes;
+  }
+  
+  public int getLevelCount() {
+    return levels.length;
+  }
+  
+  public int getRouteCount() {
+    return routeIds.length;
+  }
+  
+  /** Get the simplified points of a route at a level, or null if the route is not in the index. */
+  public RoutePoints getRoutePoints(RouteId routeId, int level) {
+    int r = Arrays.binarySearch(routeIds, routeId);
+    return r >= 0 ? levels[level].points[r] : null;
+  }
+  
+  /**
+   * Select the level of detail for a viewport.
+   * This is the coarsest level whose tolerance is not larger than the size of a pixel.
+   */
+  public int getLevel(GpsRectangle r) {
+    float span = Math.max(r.latMax - r.latMin, r.lonMax - r.lonMin);
+    float pixel = span / VIEWPORT_PIXELS;
+    int level = 0;
+    for( int k = 1; k < levels.length; k++ ) {
+      if ( TOLERANCES[k] <= pixel ) {
+        level = k;
+      }
+    }
+    return level;
+  }
+  
+  /** Find the route ranges that intersect a rectangle, at the level of detail that suits the rectangle. */
+  public List<RouteRange> find(GpsRectangle r) {
+    return find(r, getLevel(r));
+  }
+  
+  private static boolean intersects(RoutePoints points, int i, int j, GpsRectangle r) {
+    float lat1 = points.getLat(i);
+    float lat2 = points.getLat(j);
+    float lon1 = points.getLon(i);
+    float lon2 = points.getLon(j);
+    return Math.min(lat1, lat2) <= r.latMax && Math.max(lat1, lat2) >= r.latMin
+        && Math.min(lon1, lon2) <= r.lonMax && Math.max(lon1, lon2) >= r.lonMin;
+  }
+  
+  /**
+   * Find the route ranges that intersect a rectangle.
+   * A segment intersects the rectangle if its bounding box does.
+   * Consecutive intersecting segments of a route are merged into one range,
+   * and each range includes both end points of its segments, so it can be drawn as a polyline.
+   * The ranges are sorted by route and start point.
+   */
+  public List<RouteRange> find(GpsRectangle r, int levelIndex) {
+    Level level = levels[levelIndex];
+    int x1 = tile(r.lonMin, level.tileSize);
+    int x2 = tile(r.lonMax, level.tileSize);
+    int y1 = tile(r.latMin, level.tileSize);
+    int y2 = tile(r.latMax, level.tileSize);
+    long[] segments = new long[16];
+    int count = 0;
+    for( int x = x1; x <= x2; x++ ) {
+      for( int y = y1; y <= y2; y++ ) {
+        int[] entries = level.tiles.get(tileKey(x, y));
+        if ( entries == null )
+          continue;
+        for( int k = 0; k < entries.length; k += 2 ) {
+          int route = entries[k];
+          int i = entries[k+1];
+          RoutePoints points = level.points[route];
+          if ( intersects(points, i, Math.min(i + 1, points.size() - 1), r) ) {
+            if ( count == segments.length ) {
+              segments = Arrays.copyOf(segments, count * 2);
+            }
+            segments[count++] = ((long) route << 32) | i;
+          }
+        }
+      }
+    }
+    // a segment that spans several tiles appears once for each tile.
+    Arrays.sort(segments, 0, count);
+    List<RouteRange> ranges = new ArrayList<RouteRange>();
+    int k = 0;
+    while( k < count ) {
+      int route = (int) (segments[k] >>> 32);
+      int start = (int) segments[k];
+      int last = start;
+      k++;
+      while( k < count && (int) (segments[k] >>> 32) == route && (int) segments[k] <= last + 1 ) {
+        last = (int) segments[k];
+        k++;
+      }
+      RoutePoints points = level.points[route];
+      int end = Math.min(last + 1, points.size() - 1);
+      ranges.add(new RouteRange(routeIds[route], points, level.originalIndexes[route], start, end));
+    }
+    return ranges;
+  }
+}
@@ -20,9 +20,16 @@
  */
 package org.melato.bus.model.cache;
 
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.GregorianCalendar;
+import java.util.List;
 import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.melato.bus.model.DaySchedule;
 import org.melato.bus.model.RouteId;
@@ -31,82 +38,310 @@ import org.melato.bus.model.Schedule;
 import org.melato.util.DateId;
 
 
-/** Caches schedule times for nearby and route planning. */
+/**
+ * Caches schedule times for nearby and route planning.
+ * It keeps the full day times of each route, for the previous, current and next day,
+ * so that next departures are found with a binary search, across midnight and the schedule's dayChange.
+ * load() gets the current day of several routes with one storage call.
+ * The previous and next day are resolved only when a lookup needs them,
+ * from the route's Schedule, which is loaded once, through the RouteManager's schedule cache.
+ * Entries for days that are no longer needed are dropped as the date rolls.
+ * It is safe to use from several threads.  Lookups do not lock or allocate.
+ * @author Alex Athanasopoulos
+ */
 public class ScheduleCache {
+  private static final int[] EMPTY = new int[0];
+  private static final int MINUTES_PER_DAY = 24 * 60;
+  private static final int UNKNOWN = Integer.MIN_VALUE;
+  /** The trips of a service day start before noon of the next day,
+   * so the previous day is not needed after noon. */
+  private static final int PREVIOUS_DAY_LIMIT = MINUTES_PER_DAY / 2;
   private RouteManager routeManager;
-  private static final int CACHE_LENGTH = 5;
-  private Map<RouteId,int[]> map = new HashMap<RouteId,int[]>();
-  private int dateId;
-  private static int[] empty = new int[0];
+  private ConcurrentMap<RouteId,RouteTimes> routes = new ConcurrentHashMap<RouteId,RouteTimes>();
+  private volatile Today today;
+
+  /** The calendar day of recent requests. */
+  private static class Today {
+    final int dateId;
+    final int previousDateId;
+    final int nextDateId;
+    /** The start and end of the day, in milliseconds. */
+    final long start;
+    final long end;
+    final TimeZone timeZone;
+    final int startOffset;
+    
+    Today(long millis) {
+      Calendar cal = new GregorianCalendar();
+      cal.setTimeInMillis(millis);
+      dateId = DateId.dateId(cal);
+      cal.set(Calendar.HOUR_OF_DAY, 0);
+      cal.set(Calendar.MINUTE, 0);
+      cal.set(Calendar.SECOND, 0);
+      cal.set(Calendar.MILLISECOND, 0);
+      start = cal.getTimeInMillis();
+      timeZone = cal.getTimeZone();
+      startOffset = timeZone.getOffset(start);
+      cal.add(Calendar.DATE, -1);
+      previousDateId = DateId.dateId(cal);
+      cal.add(Calendar.DATE, 2);
+      nextDateId = DateId.dateId(cal);
+      end = cal.getTimeInMillis();
+    }
+    
+    boolean contains(long millis) {
+      return start <= millis && millis < end;
+    }
+    
+    /** The local time in seconds from midnight, as on the clock, even on daylight saving days. */
+    int getSeconds(long millis) {
+      return (int) ((millis + timeZone.getOffset(millis) - start - startOffset) / 1000L);
+    }
+  }
+  
+  private static class Day {
+    final int dateId;
+    /** The day times, in minutes, sorted. */
+    final int[] times;
+    Day(int dateId, int[] times) {
+      this.dateId = dateId;
+      this.times = times;
+    }
+  }
+  
+  /** The cached days of one route.  The array is replaced, never modified. */
+  private class RouteTimes {
+    final RouteId routeId;
+    volatile Day[] days = new Day[0];
+    /** The latest time of all the route's day schedules.
+     * It is set when a day is resolved from the route's Schedule.
+     * It is not known for days that load() got with the batch call. */
+    volatile int lastTime = UNKNOWN;
+    
+    RouteTimes(RouteId routeId) {
+      this.routeId = routeId;
+    }
 
+    /** Get the times of a date, if they are cached. */
+    int[] getCachedTimes(int dateId) {
+      for( Day day: days ) {
+        if ( day.dateId == dateId )
+          return day.times;
+      }
+      return null;
+    }
+    
+    int[] getTimes(int dateId, Today today) {
+      int[] times = getCachedTimes(dateId);
+      if ( times != null )
+        return times;
+      synchronized(this) {
+        times = getCachedTimes(dateId);
+        if ( times != null )
+          return times;
+        times = loadTimes(this, dateId);
+        put(dateId, times, today);
+        return times;
+      }
+    }
+    
+    /** Add the times of a day, and drop the days that are no longer needed. */
+    synchronized void put(int dateId, int[] times, Today today) {
+      Day[] current = days;
+      int count = 1;
+      for( Day day: current ) {
+        if ( day.dateId != dateId && day.dateId >= today.previousDateId && day.dateId <= today.nextDateId )
+          count++;
+      }
+      Day[] updated = new Day[count];
+      int i = 0;
+      for( Day day: current ) {
+        if ( day.dateId != dateId && day.dateId >= today.previousDateId && day.dateId <= today.nextDateId )
+          updated[i++] = day;
+      }
+      updated[i] = new Day(dateId, times);
+      days = updated;
+    }
+  }
+  
   public ScheduleCache(RouteManager routeManager) {
     super();
     this.routeManager = routeManager;
   }
   
-  int findOffset(int[] times, int time) {
-    for( int i = 0; i < times.length; i++ ) {
-      if ( time < times[i] ) {
-        return i;
+  /** Get noon of a date.
+   * We use noon, so that we get the schedule of the date, regardless of the schedule's dayChange.
+   */
+  private static Date getNoon(int dateId) {
+    Calendar cal = new GregorianCalendar();
+    DateId.setCalendar(dateId, cal);
+    cal.set(Calendar.HOUR_OF_DAY, 12);
+    return cal.getTime();
+  }
+  
+  /** Resolve the times of a date from the route's schedule.  Also sets the route's lastTime. */
+  private int[] loadTimes(RouteTimes routeTimes, int dateId) {
+    Schedule schedule = routeManager.getSchedule(routeTimes.routeId);
+    if ( schedule == null ) {
+      routeTimes.lastTime = -1;
+      return EMPTY;
+    }
+    if ( routeTimes.lastTime == UNKNOWN ) {
+      int lastTime = -1;
+      for( DaySchedule daySchedule: schedule.getSchedules() ) {
+        lastTime = Math.max(lastTime, daySchedule.getLastTime());
       }
+      routeTimes.lastTime = lastTime;
     }
-    return -1;
+    DaySchedule daySchedule = schedule.getSchedule(getNoon(dateId));
+    if ( daySchedule == null )
+      return EMPTY;
+    return daySchedule.getTimes();
   }
-  int[] subset(int[] times, int offset, int len) {
-    int n = times.length - offset;
-    if ( n > len ) {
-      n = len;
+  
+  private Today getToday(long millis) {
+    Today t = today;
+    if ( t == null || ! t.contains(millis)) {
+      t = new Today(millis);
+      today = t;
     }
-    int[] tt = new int[n];
-    for( int i = 0; i < n; i++ ) {
-      tt[i] = times[offset+i];
+    return t;
+  }
+  
+  private RouteTimes getRouteTimes(RouteId routeId) {
+    RouteTimes times = routes.get(routeId);
+    if ( times == null ) {
+      times = new RouteTimes(routeId);
+      RouteTimes existing = routes.putIfAbsent(routeId, times);
+      if ( existing != null ) {
+        times = existing;
+      }
     }
-    return tt;
+    return times;
   }
-  /** Get the two closest schedule times after the given time. */
-  public int[] getNextTimes(RouteId routeId, Date date) {
-    int dateId = DateId.dateId(date);
-    if ( dateId != this.dateId) {
-      map = new HashMap<RouteId,int[]>();
-      this.dateId = dateId;
+
+  /**
+   * Copy the times that are after a time into the buffer.
+   * @param times The sorted day times.
+   * @param time The time, in the same frame as times.
+   * @param shift Added to each copied time.
+   * @param end The buffer position where to stop.
+   * @return The new buffer position.
+   */
+  private static int collect(int[] times, int time, int shift, int[] buffer, int count, int end) {
+    // find the first time > time
+    int low = 0;
+    int high = times.length;
+    while( low < high ) {
+      int mid = (low + high) >>> 1;
+      if ( times[mid] <= time ) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
     }
-    int time = Schedule.getTime(date);
-    int[] times = map.get(routeId);
-    int offset = 0;
-    if ( times != null) {
-      offset = findOffset(times, time);
-      if ( offset < 0 )
-        return empty;
-      if ( offset + 2 <= times.length || times.length <= CACHE_LENGTH ) {
-        return subset(times, offset, 2);
+    for( int i = low; i < times.length && count < end; i++ ) {
+      buffer[count++] = times[i] + shift;
+    }
+    return count;
+  }
+  
+  /**
+   * Load the times of several routes for a date, so that subsequent getNextTimes() calls find them.
+   * The day schedules of the routes that are not cached are loaded with one storage call.
+   * @param routeIds
+   * @param date The date of subsequent getNextTimes() calls.
+   */
+  public void load(Collection<RouteId> routeIds, Date date) {
+    Today day = getToday(date.getTime());
+    List<RouteId> missing = new ArrayList<RouteId>();
+    for( RouteId routeId: routeIds ) {
+      if ( getRouteTimes(routeId).getCachedTimes(day.dateId) == null ) {
+        missing.add(routeId);
       }
     }
-    times = loadNearestTimes(routeId, date);
-    map.put(routeId, times);
-    offset = findOffset(times, time);
-    if ( offset < 0 ) {
-      return empty;
+    if ( missing.isEmpty() )
+      return;
+    Map<RouteId,DaySchedule> schedules = routeManager.getDaySchedules(missing, getNoon(day.dateId));
+    for( RouteId routeId: missing ) {
+      DaySchedule daySchedule = schedules.get(routeId);
+      RouteTimes routeTimes = getRouteTimes(routeId);
+      synchronized(routeTimes) {
+        if ( routeTimes.getCachedTimes(day.dateId) == null ) {
+          routeTimes.put(day.dateId, daySchedule != null ? daySchedule.getTimes() : EMPTY, day);
+        }
+      }
     }
-    return subset(times, offset, 2);
   }
   
-  private int[] loadNearestTimes(RouteId routeId, Date date) {
-    int[] times = null;
-    int time = Schedule.getTime(date);
-    DaySchedule daySchedule = routeManager.getDaySchedule(routeId, date);
-    if ( daySchedule != null ) {
-      times = daySchedule.getTimes();
-      int index = daySchedule.getNextIndex(time);
-      if ( index == -1 )
-        return empty;
-      index -= CACHE_LENGTH/2;
-      if ( index + CACHE_LENGTH > times.length ) {
-        index = times.length - CACHE_LENGTH;
+  /**
+   * Get the next start times of a route, for the trips that pass from a stop after a certain time.
+   * The times are in minutes from the midnight of the date.
+   * Departures of the previous service day that run after midnight are included,
+   * and departures of the next day are added with 24 hours, if the current day does not have enough.
+   * @param routeId
+   * @param date The time after which to look.
+   * @param offset The time of the stop from the start of the route, in seconds.
+   * @param buffer Receives the route start times.
+   * @param start The buffer position where to put the first time.
+   * @param length The maximum number of times to get.
+   * @return The number of times put in the buffer.
+   */
+  public int getNextTimes(RouteId routeId, Date date, int offset, int[] buffer, int start, int length) {
+    long millis = date.getTime();
+    Today day = getToday(millis);
+    int seconds = day.getSeconds(millis) - offset;
+    // the largest minute m such that m * 60 <= seconds
+    int time = seconds >= 0 ? seconds / 60 : -((-seconds + 59) / 60);
+    RouteTimes routeTimes = getRouteTimes(routeId);
+    int end = start + length;
+    int[] todayTimes = routeTimes.getTimes(day.dateId, day);
+    int count = start;
+    // the previous day's trips matter only in the morning, and only if some trip of the route runs late enough.
+    if ( time < PREVIOUS_DAY_LIMIT ) {
+      int[] previousTimes = routeTimes.getCachedTimes(day.previousDateId);
+      if ( previousTimes == null ) {
+        int lastTime = routeTimes.lastTime;
+        if ( lastTime == UNKNOWN || time + MINUTES_PER_DAY < lastTime ) {
+          previousTimes = routeTimes.getTimes(day.previousDateId, day);
+        }
+      }
+      if ( previousTimes != null ) {
+        count = collect(previousTimes, time + MINUTES_PER_DAY, -MINUTES_PER_DAY, buffer, count, end);
       }
-      if ( index < 0 )
-        index = 0;
-      return subset(times, index, CACHE_LENGTH);
     }
-    return empty;
-  }  
+    count = collect(todayTimes, time, 0, buffer, count, end);
+    if ( count < end ) {
+      count = collect(routeTimes.getTimes(day.nextDateId, day), time - MINUTES_PER_DAY, MINUTES_PER_DAY, buffer, count, end);
+    }
+    return count - start;
+  }
+  
+  /**
+   * Get the next schedule times after the given time.
+   * The times are in minutes from the midnight of the date.
+   * @param routeId
+   * @param date
+   * @param buffer Receives the times.  Its length is the maximum number of times to get.
+   * @return The number of times put in the buffer.
+   */
+  public int getNextTimes(RouteId routeId, Date date, int[] buffer) {
+    return getNextTimes(routeId, date, 0, buffer, 0, buffer.length);
+  }
+  
+  /** Get the two closest schedule times after the given time. */
+  public int[] getNextTimes(RouteId routeId, Date date) {
+    int[] buffer = new int[2];
+    int count = getNextTimes(routeId, date, buffer);
+    if ( count == buffer.length )
+      return buffer;
+    int[] times = new int[count];
+    System.arraycopy(buffer, 0, times, 0, count);
+    return times;
+  }
+  
+  /** Remove all cached times. */
+  public void clear() {
+    routes.clear();
+  }
 }
@@ -0,0 +1,54 @@
+/*-------------------------------------------------------------------------
+ * Copyright (c) 2012,2013, Alex Athanasopoulos.  All Rights Reserved.
+ * alex@melato.org
+ *-------------------------------------------------------------------------
+ * This file is part of Athens Next Bus
+ *
+ * Athens Next Bus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Athens Next Bus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Athens Next Bus.  If not, see <http://www.gnu.org/licenses/>.
+ *-------------------------------------------------------------------------
+ */
+package org.melato.bus.model.cache;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that many threads can increment without contending on a single memory location.
+ * Each thread increments one of several stripes, chosen by its thread id, and the value is their sum.
+ * The stripes are spaced apart, so that they fall in different cache lines.
+ * @author Alex Athanasopoulos
+ */
+class StripedCounter {
+  private static final int STRIPES = 16;
+  /** The distance between stripes, in longs. */
+  private static final int SPACING = 8;
+  private AtomicLongArray cells = new AtomicLongArray(STRIPES * SPACING);
+  
+  public void increment() {
+    int stripe = (int) (Thread.currentThread().getId() & (STRIPES - 1));
+    cells.incrementAndGet(stripe * SPACING);
+  }
+  
+  public long get() {
+    long sum = 0;
+    for( int i = 0; i < STRIPES; i++ ) {
+      sum += cells.get(i * SPACING);
+    }
+    return sum;
+  }
+  
+  @Override
+  public String toString() {
+    return String.valueOf(get());
+  }
+}
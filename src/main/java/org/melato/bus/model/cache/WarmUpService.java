@@ -0,0 +1,215 @@
+/*-------------------------------------------------------------------------
+ * Copyright (c) 2012,2013, Alex Athanasopoulos.  All Rights Reserved.
+ * alex@melato.org
+ *-------------------------------------------------------------------------
+ * This file is part of Athens Next Bus
+ *
+ * Athens Next Bus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Athens Next Bus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Athens Next Bus.  If not, see <http://www.gnu.org/licenses/>.
+ *-------------------------------------------------------------------------
+ */
+package org.melato.bus.model.cache;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.melato.bus.model.RouteId;
+import org.melato.bus.model.RouteManager;
+import org.melato.gps.Point2D;
+import org.melato.progress.ProgressGenerator;
+
+/**
+ * Preloads routes, stops, route points and today's schedules, in parallel, at startup.
+ * The route ids are split into partitions, and each partition is loaded by a task of an executor.
+ * Progress is reported to the ProgressGenerator of the thread that calls start().
+ * Callers can wait for the warm-up to finish with await().
+ * The stops cache is enlarged to hold all routes, so that warmed entries are not evicted.
+ * Today's times go to the ScheduleCache, which loads each partition's day schedules with one storage call.
+ * @author Alex Athanasopoulos
+ */
+public class WarmUpService {
+  private RouteManager routeManager;
+  private ExecutorService executor;
+  private int partitions;
+  private boolean schedules = true;
+  private CountDownLatch done = new CountDownLatch(1);
+  private AtomicInteger remaining = new AtomicInteger();
+  private AtomicInteger loaded = new AtomicInteger();
+  private volatile Throwable error;
+  private ProgressGenerator progress;
+  
+  /**
+   * @param routeManager
+   * @param executor The executor that runs the warm-up tasks.
+   * @param partitions The number of tasks to split the routes into.
+   */
+  public WarmUpService(RouteManager routeManager, ExecutorService executor, int partitions) {
+    this.routeManager = routeManager;
+    this.executor = executor;
+    this.partitions = Math.max(1, partitions);
+  }
+
+  public WarmUpService(RouteManager routeManager, ExecutorService executor) {
+    this(routeManager, executor, Runtime.getRuntime().availableProcessors());
+  }
+  
+  /** Set whether to preload today's schedules.  The default is true. */
+  public void setSchedules(boolean schedules) {
+    this.schedules = schedules;
+  }
+
+  /** Start the warm-up.  It returns immediately. */
+  public void start() {
+    progress = ProgressGenerator.get();
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          startPartitions();
+        } catch( Throwable e ) {
+          fail(e);
+        }
+      }
+    });
+  }
+
+  /** Stop the warm-up, when no partitions are running. */
+  private void fail(Throwable e) {
+    setError(e);
+    done.countDown();
+  }
+  
+  /** Record the first error.  Running partitions see it and stop early. */
+  private synchronized void setError(Throwable e) {
+    if ( error == null ) {
+      error = e;
+    }
+  }
+  
+  /** Called when a partition has stopped, successfully or not.  The last one finishes the warm-up. */
+  private void partitionDone() {
+    if ( remaining.decrementAndGet() == 0 ) {
+      if ( error == null ) {
+        finish();
+      } else {
+        done.countDown();
+      }
+    }
+  }
+  
+  /** Load the route lists, and submit a task for each partition of the route ids. */
+  private void startPartitions() {
+    routeManager.getRoutes();
+    routeManager.getPrimaryRoutes();
+    List<RouteId> routeIds = routeManager.getRouteIds();
+    int n = routeIds.size();
+    if ( routeManager.getStopsCache().getCapacity() < n ) {
+      routeManager.getStopsCache().setCapacity(n);
+    }
+    synchronized(progress) {
+      progress.setLimit(n);
+    }
+    int count = Math.min(partitions, n);
+    if ( count == 0 ) {
+      finish();
+      return;
+    }
+    final Date date = new Date();
+    final RouteId[] ids = routeIds.toArray(new RouteId[0]);
+    remaining.set(count);
+    for( int i = 0; i < count; i++ ) {
+      final int start = (int) ((long) n * i / count);
+      final int end = (int) ((long) n * (i + 1) / count);
+      try {
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              loadPartition(ids, start, end, date);
+            } catch( Throwable e ) {
+              setError(e);
+            }
+            partitionDone();
+          }
+        });
+      } catch( RuntimeException e ) {
+        // the partitions that were not submitted will not run.
+        setError(e);
+        for( int j = i; j < count; j++ ) {
+          partitionDone();
+        }
+        return;
+      }
+    }
+  }
+  
+  private void loadPartition(RouteId[] ids, int start, int end, Date date) {
+    RoutePointCache pointCache = routeManager.getPointCache();
+    PackedRoutePoints packed = new PackedRoutePoints();
+    for( int i = start; i < end; i++ ) {
+      if ( error != null ) {
+        // another partition failed.
+        return;
+      }
+      RouteId routeId = ids[i];
+      Point2D[] stops = routeManager.getStops(routeId);
+      packed.add(routeId, Arrays.asList(stops));
+      int position = loaded.incrementAndGet();
+      synchronized(progress) {
+        progress.setPosition(position);
+      }
+    }
+    pointCache.putAll(packed.getMap());
+    if ( schedules ) {
+      routeManager.getScheduleCache().load(Arrays.asList(ids).subList(start, end), date);
+    }
+  }
+  
+  private void finish() {
+    routeManager.getPointCache().setAllLoaded();
+    done.countDown();
+  }
+  
+  /** Wait for the warm-up to finish.
+   * If it fails, it finishes after all the partitions have stopped.
+   */
+  public void await() throws InterruptedException {
+    done.await();
+  }
+  
+  /** Wait for the warm-up to finish, up to a time limit.
+   * @return true if it finished.
+   */
+  public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+    return done.await(timeout, unit);
+  }
+  
+  public boolean isDone() {
+    return done.getCount() == 0;
+  }
+  
+  /** The error that stopped the warm-up, or null. */
+  public Throwable getError() {
+    return error;
+  }
+  
+  /** The number of routes loaded so far. */
+  public int getLoadedCount() {
+    return loaded.get();
+  }
+}
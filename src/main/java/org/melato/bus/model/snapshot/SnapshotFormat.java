@@ -0,0 +1,129 @@
+/*-------------------------------------------------------------------------
+ * Copyright (c) 2012,2013, Alex Athanasopoulos.  All Rights Reserved.
+ * alex@melato.org
+ *-------------------------------------------------------------------------
+ * This file is part of Athens Next Bus
+ *
+ * Athens Next Bus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Athens Next Bus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Athens Next Bus.  If not, see <http://www.gnu.org/licenses/>.
+ *-------------------------------------------------------------------------
+ */
+package org.melato.bus.model.snapshot;
+
+/**
+ * Describes the layout of a route snapshot file.
+ * The file is a sequence of big-endian sections, located by a fixed size header.
+ * Records within each section have a fixed size, so they can be accessed by index.
+ * Strings are stored once, and referenced by their index in the string table.
+ * A string index of -1 represents null.
+ * <pre>
+ * header     HEADER_INTS ints (see the H_* constants)
+ * strings    (stringCount + 1) byte offsets, followed by the UTF-8 bytes of all strings
+ * routes     routeCount records of ROUTE_INTS ints (R_*)
+ * stops      stopCount records of STOP_INTS ints (S_*), grouped by route, in route order
+ * days       dayCount records of DAY_INTS ints (D_*), grouped by route
+ * exceptions exceptionCount records of EXCEPTION_INTS ints (E_*), grouped by route
+ * times      timeCount ints, minutes from midnight, grouped by day schedule or exception
+ * agencies   agencyCount records of AGENCY_INTS ints (A_*)
+ * properties propertyCount pairs of (name, value) string indexes
+ * blobs      raw bytes, such as agency icons
+ * </pre>
+ * @author Alex Athanasopoulos
+ */
+class SnapshotFormat {
+  static final int MAGIC = 0x42555353; // "BUSS"
+  static final int VERSION = 1;
+  
+  static final int H_MAGIC = 0;
+  static final int H_VERSION = 1;
+  static final int H_STRINGS = 2;
+  static final int H_ROUTES = 3;
+  static final int H_STOPS = 4;
+  static final int H_DAYS = 5;
+  static final int H_EXCEPTIONS = 6;
+  static final int H_TIMES = 7;
+  static final int H_AGENCIES = 8;
+  static final int H_PROPERTIES = 9;
+  static final int H_BLOBS = 10;
+  static final int H_STRING_COUNT = 11;
+  static final int H_ROUTE_COUNT = 12;
+  static final int H_STOP_COUNT = 13;
+  static final int H_DAY_COUNT = 14;
+  static final int H_EXCEPTION_COUNT = 15;
+  static final int H_TIME_COUNT = 16;
+  static final int H_AGENCY_COUNT = 17;
+  static final int H_PROPERTY_COUNT = 18;
+  /** float */
+  static final int H_CENTER_LAT = 19;
+  /** float */
+  static final int H_CENTER_LON = 20;
+  static final int H_PLANNER_URL = 21;
+  static final int H_DEFAULT_AGENCY = 22;
+  static final int HEADER_INTS = 24;
+
+  static final int R_NAME = 0;
+  static final int R_DIRECTION = 1;
+  static final int R_AGENCY = 2;
+  static final int R_LABEL = 3;
+  static final int R_TITLE = 4;
+  static final int R_COLOR = 5;
+  static final int R_BACKGROUND_COLOR = 6;
+  static final int R_FLAGS = 7;
+  static final int R_TYPE = 8;
+  /** 1 if the route is one of the primary routes. */
+  static final int R_PRIMARY = 9;
+  static final int R_FIRST_STOP = 10;
+  static final int R_STOP_COUNT = 11;
+  static final int R_FIRST_DAY = 12;
+  static final int R_DAY_COUNT = 13;
+  static final int R_FIRST_EXCEPTION = 14;
+  static final int R_EXCEPTION_COUNT = 15;
+  static final int R_DAY_CHANGE = 16;
+  static final int R_COMMENT = 17;
+  static final int ROUTE_INTS = 18;
+
+  /** float */
+  static final int S_LAT = 0;
+  /** float */
+  static final int S_LON = 1;
+  /** milliseconds from the start of the route. */
+  static final int S_TIME = 2;
+  static final int S_SYMBOL = 3;
+  static final int S_NAME = 4;
+  static final int S_FLAGS = 5;
+  static final int STOP_INTS = 6;
+  
+  static final int D_DAYS = 0;
+  static final int D_DATE_ID = 1;
+  static final int D_FIRST_TIME = 2;
+  static final int D_TIME_COUNT = 3;
+  static final int DAY_INTS = 4;
+  
+  static final int E_NOTE = 0;
+  static final int E_DAYS = 1;
+  static final int E_FIRST_TIME = 2;
+  /** The number of times, or -1 if the exception has no times. */
+  static final int E_TIME_COUNT = 3;
+  static final int EXCEPTION_INTS = 4;
+
+  static final int A_NAME = 0;
+  static final int A_LABEL = 1;
+  static final int A_URL = 2;
+  static final int A_ROUTE_URL = 3;
+  static final int A_ICON_OFFSET = 4;
+  /** The icon length, or -1 if there is no icon. */
+  static final int A_ICON_LENGTH = 5;
+  static final int AGENCY_INTS = 6;
+  
+  static final int PROPERTY_INTS = 2;
+}
@@ -0,0 +1,603 @@
+/*-------------------------------------------------------------------------
+ * Copyright (c) 2012,2013, Alex Athanasopoulos.  All Rights Reserved.
+ * alex@melato.org
+ *-------------------------------------------------------------------------
+ * This file is part of Athens Next Bus
+ *
+ * Athens Next Bus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Athens Next Bus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Athens Next Bus.  If not, see <http://www.gnu.org/licenses/>.
+ *-------------------------------------------------------------------------
+ */
+package org.melato.bus.model.snapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.melato.bus.model.AbstractRouteStorage;
+import org.melato.bus.model.Agency;
+import org.melato.bus.model.DaySchedule;
+import org.melato.bus.model.Municipality;
+import org.melato.bus.model.RStop;
+import org.melato.bus.model.Route;
+import org.melato.bus.model.RouteException;
+import org.melato.bus.model.RouteId;
+import org.melato.bus.model.RoutePointCallback;
+import org.melato.bus.model.RouteStopCallback;
+import org.melato.bus.model.Schedule;
+import org.melato.bus.model.ScheduleCalendar;
+import org.melato.bus.model.ScheduleId;
+import org.melato.bus.model.ScheduleSummary;
+import org.melato.bus.model.Stop;
+import org.melato.bus.plan.RouteLeg;
+import org.melato.gps.Point2D;
+import org.melato.util.DateId;
+
+/**
+ * A read-only RouteStorage that reads a precompiled snapshot file, created by SnapshotWriter.
+ * The file is memory-mapped and records are read by index, as they are needed,
+ * so opening a snapshot does not read the whole file.
+ * Municipalities and OTP defaults are not included in snapshots.
+ * @author Alex Athanasopoulos
+ */
+public class SnapshotStorage extends AbstractRouteStorage {
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private ByteBuffer buffer;
+  private int stringsOffset;
+  private int stringCount;
+  private int routesOffset;
+  private int routeCount;
+  private int stopsOffset;
+  private int daysOffset;
+  private int exceptionsOffset;
+  private int timesOffset;
+  private int agenciesOffset;
+  private int propertiesOffset;
+  private int blobsOffset;
+  /** Decoded strings.  Strings are immutable, so they can be shared between threads without locking. */
+  private String[] strings;
+  private volatile Map<RouteId,Integer> routeIndex;
+  private volatile Map<String,Integer> stringIndex;
+
+  /** Map a snapshot file into memory. */
+  public SnapshotStorage(File file) throws IOException {
+    this(map(file));
+  }
+  
+  /** Use a snapshot that is already in memory. */
+  public SnapshotStorage(ByteBuffer buffer) throws IOException {
+    this.buffer = buffer;
+    if ( buffer.capacity() < SnapshotFormat.HEADER_INTS * 4 || header(SnapshotFormat.H_MAGIC) != SnapshotFormat.MAGIC ) {
+      throw new IOException( "not a route snapshot" );
+    }
+    int version = header(SnapshotFormat.H_VERSION);
+    if ( version != SnapshotFormat.VERSION ) {
+      throw new IOException( "unsupported snapshot version: " + version );
+    }
+    stringsOffset = header(SnapshotFormat.H_STRINGS);
+    stringCount = header(SnapshotFormat.H_STRING_COUNT);
+    routesOffset = header(SnapshotFormat.H_ROUTES);
+    routeCount = header(SnapshotFormat.H_ROUTE_COUNT);
+    stopsOffset = header(SnapshotFormat.H_STOPS);
+    daysOffset = header(SnapshotFormat.H_DAYS);
+    exceptionsOffset = header(SnapshotFormat.H_EXCEPTIONS);
+    timesOffset = header(SnapshotFormat.H_TIMES);
+    agenciesOffset = header(SnapshotFormat.H_AGENCIES);
+    propertiesOffset = header(SnapshotFormat.H_PROPERTIES);
+    blobsOffset = header(SnapshotFormat.H_BLOBS);
+    strings = new String[stringCount];
+  }
+  
+  private static ByteBuffer map(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      raf.close();
+    }
+  }
+  
+  private int header(int field) {
+    return buffer.getInt(field * 4);
+  }
+
+  private int routeInt(int route, int field) {
+    return buffer.getInt(routesOffset + (route * SnapshotFormat.ROUTE_INTS + field) * 4);
+  }
+  
+  private int stopInt(int stop, int field) {
+    return buffer.getInt(stopsOffset + (stop * SnapshotFormat.STOP_INTS + field) * 4);
+  }
+  
+  private float stopFloat(int stop, int field) {
+    return buffer.getFloat(stopsOffset + (stop * SnapshotFormat.STOP_INTS + field) * 4);
+  }
+  
+  private int dayInt(int day, int field) {
+    return buffer.getInt(daysOffset + (day * SnapshotFormat.DAY_INTS + field) * 4);
+  }
+  
+  private int exceptionInt(int exception, int field) {
+    return buffer.getInt(exceptionsOffset + (exception * SnapshotFormat.EXCEPTION_INTS + field) * 4);
+  }
+  
+  private int agencyInt(int agency, int field) {
+    return buffer.getInt(agenciesOffset + (agency * SnapshotFormat.AGENCY_INTS + field) * 4);
+  }
+  
+  private int[] getTimes(int first, int count) {
+    int[] times = new int[count];
+    for( int i = 0; i < count; i++ ) {
+      times[i] = buffer.getInt(timesOffset + (first + i) * 4);
+    }
+    return times;
+  }
+
+  private byte[] getBytes(int offset, int length) {
+    byte[] bytes = new byte[length];
+    ByteBuffer b = buffer.duplicate();
+    b.position(offset);
+    b.get(bytes);
+    return bytes;
+  }
+  
+  String getString(int index) {
+    if ( index < 0 )
+      return null;
+    String s = strings[index];
+    if ( s == null ) {
+      int start = buffer.getInt(stringsOffset + index * 4);
+      int end = buffer.getInt(stringsOffset + (index+1) * 4);
+      int data = stringsOffset + (stringCount + 1) * 4;
+      s = new String(getBytes(data + start, end - start), UTF8);
+      strings[index] = s;
+    }
+    return s;
+  }
+  
+  /** Find the index of a string, or -1 if it is not in the snapshot. */
+  private int findString(String s) {
+    Map<String,Integer> index = stringIndex;
+    if ( index == null ) {
+      index = new HashMap<String,Integer>();
+      for( int i = 0; i < stringCount; i++ ) {
+        index.put(getString(i), i);
+      }
+      stringIndex = index;
+    }
+    Integer i = index.get(s);
+    return i != null ? i : -1;
+  }
+  
+  private RouteId getRouteId(int route) {
+    return new RouteId(getString(routeInt(route, SnapshotFormat.R_NAME)), getString(routeInt(route, SnapshotFormat.R_DIRECTION)));
+  }
+  
+  /** Find the index of a route, or -1 if it is not in the snapshot. */
+  private int findRoute(RouteId routeId) {
+    Map<RouteId,Integer> index = routeIndex;
+    if ( index == null ) {
+      index = new HashMap<RouteId,Integer>();
+      for( int i = 0; i < routeCount; i++ ) {
+        index.put(getRouteId(i), i);
+      }
+      routeIndex = index;
+    }
+    Integer i = index.get(routeId);
+    return i != null ? i : -1;
+  }
+  
+  private Route createRoute(int r) {
+    Route route = new Route();
+    route.setRouteId(getRouteId(r));
+    route.setAgencyName(getString(routeInt(r, SnapshotFormat.R_AGENCY)));
+    route.setLabel(getString(routeInt(r, SnapshotFormat.R_LABEL)));
+    route.setTitle(getString(routeInt(r, SnapshotFormat.R_TITLE)));
+    route.setColor(routeInt(r, SnapshotFormat.R_COLOR));
+    route.setBackgroundColor(routeInt(r, SnapshotFormat.R_BACKGROUND_COLOR));
+    route.setFlags(routeInt(r, SnapshotFormat.R_FLAGS));
+    route.setType(routeInt(r, SnapshotFormat.R_TYPE));
+    return route;
+  }
+  
+  private Stop createStop(int s, int index) {
+    Stop stop = new Stop(stopFloat(s, SnapshotFormat.S_LAT), stopFloat(s, SnapshotFormat.S_LON));
+    stop.setTime(stopInt(s, SnapshotFormat.S_TIME));
+    stop.setSymbol(getString(stopInt(s, SnapshotFormat.S_SYMBOL)));
+    stop.setName(getString(stopInt(s, SnapshotFormat.S_NAME)));
+    stop.setFlags(stopInt(s, SnapshotFormat.S_FLAGS));
+    stop.setIndex(index);
+    return stop;
+  }
+  
+  private Stop createRouteStop(int route, int index) {
+    return createStop(routeInt(route, SnapshotFormat.R_FIRST_STOP) + index, index);
+  }
+  
+  private ScheduleId getScheduleId(int day) {
+    int days = dayInt(day, SnapshotFormat.D_DAYS);
+    if ( days != 0 ) {
+      return ScheduleId.forWeek(days);
+    }
+    return ScheduleId.forDate(dayInt(day, SnapshotFormat.D_DATE_ID));
+  }
+  
+  private DaySchedule createDaySchedule(int day, int dayChange) {
+    int[] times = getTimes(dayInt(day, SnapshotFormat.D_FIRST_TIME), dayInt(day, SnapshotFormat.D_TIME_COUNT));
+    DaySchedule schedule = new DaySchedule(times, getScheduleId(day));
+    schedule.setDayChange(dayChange);
+    return schedule;
+  }
+  
+  private RouteException createException(int e) {
+    RouteException exception = new RouteException();
+    exception.setNote(getString(exceptionInt(e, SnapshotFormat.E_NOTE)));
+    exception.setDays(exceptionInt(e, SnapshotFormat.E_DAYS));
+    int count = exceptionInt(e, SnapshotFormat.E_TIME_COUNT);
+    if ( count >= 0 ) {
+      exception.setTimes(getTimes(exceptionInt(e, SnapshotFormat.E_FIRST_TIME), count));
+    }
+    return exception;
+  }
+  
+  @Override
+  public List<RouteId> loadRouteIds() {
+    List<RouteId> routeIds = new ArrayList<RouteId>(routeCount);
+    for( int i = 0; i < routeCount; i++ ) {
+      routeIds.add(getRouteId(i));
+    }
+    return routeIds;
+  }
+
+  @Override
+  public List<Route> loadRoutes() {
+    List<Route> routes = new ArrayList<Route>(routeCount);
+    for( int i = 0; i < routeCount; i++ ) {
+      routes.add(createRoute(i));
+    }
+    return routes;
+  }
+
+  private boolean isPrimary(int route) {
+    return routeInt(route, SnapshotFormat.R_PRIMARY) != 0;
+  }
+  
+  @Override
+  public List<Route> loadPrimaryRoutes() {
+    List<Route> routes = new ArrayList<Route>();
+    for( int i = 0; i < routeCount; i++ ) {
+      if ( isPrimary(i)) {
+        routes.add(createRoute(i));
+      }
+    }
+    return routes;
+  }
+
+  @Override
+  public Route loadRoute(RouteId routeId) {
+    int r = findRoute(routeId);
+    if ( r < 0 )
+      return null;
+    return createRoute(r);
+  }
+
+  @Override
+  public Schedule loadSchedule(RouteId routeId) {
+    int r = findRoute(routeId);
+    if ( r < 0 )
+      return null;
+    int dayChange = routeInt(r, SnapshotFormat.R_DAY_CHANGE);
+    int firstDay = routeInt(r, SnapshotFormat.R_FIRST_DAY);
+    DaySchedule[] days = new DaySchedule[routeInt(r, SnapshotFormat.R_DAY_COUNT)];
+    for( int i = 0; i < days.length; i++ ) {
+      days[i] = createDaySchedule(firstDay + i, dayChange);
+    }
+    Schedule schedule = new Schedule(days);
+    schedule.setDayChange(dayChange);
+    schedule.setComment(getString(routeInt(r, SnapshotFormat.R_COMMENT)));
+    int exceptionCount = routeInt(r, SnapshotFormat.R_EXCEPTION_COUNT);
+    if ( exceptionCount > 0 ) {
+      int firstException = routeInt(r, SnapshotFormat.R_FIRST_EXCEPTION);
+      List<RouteException> exceptions = new ArrayList<RouteException>(exceptionCount);
+      for( int i = 0; i < exceptionCount; i++ ) {
+        exceptions.add(createException(firstException + i));
+      }
+      schedule.setExceptions(exceptions);
+    }
+    return schedule;
+  }
+
+  @Override
+  public ScheduleSummary loadScheduleSummary(RouteId routeId) {
+    int r = findRoute(routeId);
+    if ( r < 0 )
+      return null;
+    int firstDay = routeInt(r, SnapshotFormat.R_FIRST_DAY);
+    ScheduleId[] scheduleIds = new ScheduleId[routeInt(r, SnapshotFormat.R_DAY_COUNT)];
+    for( int i = 0; i < scheduleIds.length; i++ ) {
+      scheduleIds[i] = getScheduleId(firstDay + i);
+    }
+    return new ScheduleSummary(scheduleIds, routeInt(r, SnapshotFormat.R_DAY_CHANGE));
+  }
+
+  /** Find a day schedule of a route, with the same rules as Schedule.getSchedule(ScheduleId) */
+  private int findDay(int r, ScheduleId id) {
+    int firstDay = routeInt(r, SnapshotFormat.R_FIRST_DAY);
+    int dayCount = routeInt(r, SnapshotFormat.R_DAY_COUNT);
+    for( int i = 0; i < dayCount; i++ ) {
+      if ( id.matches(getScheduleId(firstDay + i))) {
+        return firstDay + i;
+      }
+    }
+    if ( id.isWeekly() ) {
+      return -1;
+    }
+    Calendar cal = Calendar.getInstance();
+    DateId.setCalendar(id.getDateId(), cal);
+    int bitmap = DaySchedule.dayBitmap(cal.get(Calendar.DAY_OF_WEEK));
+    for( int i = 0; i < dayCount; i++ ) {
+      if ( (dayInt(firstDay + i, SnapshotFormat.D_DAYS) & bitmap) != 0 ) {
+        return firstDay + i;
+      }
+    }
+    return -1;
+  }
+  
+  @Override
+  public DaySchedule loadDaySchedule(RouteId routeId, ScheduleId scheduleId) {
+    int r = findRoute(routeId);
+    if ( r < 0 || scheduleId == null )
+      return null;
+    int day = findDay(r, scheduleId);
+    if ( day < 0 )
+      return null;
+    return createDaySchedule(day, routeInt(r, SnapshotFormat.R_DAY_CHANGE));
+  }
+
+  @Override
+  public DaySchedule loadDaySchedule(RouteId routeId, Date date) {
+    ScheduleSummary summary = loadScheduleSummary(routeId);
+    if ( summary == null )
+      return null;
+    return loadDaySchedule(routeId, summary.getScheduleId(date));
+  }
+
+  /** Resolves the day of each route with the shared calendar tables,
+   * and reads only that day's times, without building whole schedules. */
+  @Override
+  public Map<RouteId,DaySchedule> loadDaySchedules(Collection<RouteId> routeIds, Date date) {
+    Map<RouteId,DaySchedule> schedules = new HashMap<RouteId,DaySchedule>();
+    ScheduleCalendar calendar = ScheduleCalendar.getDefault();
+    long millis = date.getTime();
+    for( RouteId routeId: routeIds ) {
+      int r = findRoute(routeId);
+      if ( r < 0 )
+        continue;
+      int firstDay = routeInt(r, SnapshotFormat.R_FIRST_DAY);
+      ScheduleId[] scheduleIds = new ScheduleId[routeInt(r, SnapshotFormat.R_DAY_COUNT)];
+      for( int i = 0; i < scheduleIds.length; i++ ) {
+        scheduleIds[i] = getScheduleId(firstDay + i);
+      }
+      int dayChange = routeInt(r, SnapshotFormat.R_DAY_CHANGE);
+      int index = calendar.getTable(scheduleIds).find(dayChange, millis);
+      if ( index >= 0 ) {
+        schedules.put(routeId, createDaySchedule(firstDay + index, dayChange));
+      }
+    }
+    return schedules;
+  }
+
+  @Override
+  public List<Stop> loadStops(RouteId routeId) {
+    int r = findRoute(routeId);
+    if ( r < 0 )
+      return Collections.emptyList();
+    int count = routeInt(r, SnapshotFormat.R_STOP_COUNT);
+    List<Stop> stops = new ArrayList<Stop>(count);
+    for( int i = 0; i < count; i++ ) {
+      stops.add(createRouteStop(r, i));
+    }
+    return stops;
+  }
+
+  private boolean isNearby(int s, Point2D point, float latitudeDifference, float longitudeDifference) {
+    return Math.abs(stopFloat(s, SnapshotFormat.S_LAT) - point.getLat()) <= latitudeDifference
+        && Math.abs(stopFloat(s, SnapshotFormat.S_LON) - point.getLon()) <= longitudeDifference;
+  }
+  
+  @Override
+  public void iterateNearbyStops(Point2D point, float latitudeDifference,
+      float longitudeDifference, Collection<RStop> collector) {
+    for( int r = 0; r < routeCount; r++ ) {
+      int first = routeInt(r, SnapshotFormat.R_FIRST_STOP);
+      int count = routeInt(r, SnapshotFormat.R_STOP_COUNT);
+      RouteId routeId = null;
+      for( int i = 0; i < count; i++ ) {
+        if ( isNearby(first + i, point, latitudeDifference, longitudeDifference)) {
+          if ( routeId == null ) {
+            routeId = getRouteId(r);
+          }
+          collector.add(new RStop(routeId, createStop(first + i, i)));
+        }
+      }
+    }
+  }
+
+  @Override
+  public void iterateNearbyRoutes(Point2D point, float latitudeDifference,
+      float longitudeDifference, Collection<RouteId> collector) {
+    for( int r = 0; r < routeCount; r++ ) {
+      int first = routeInt(r, SnapshotFormat.R_FIRST_STOP);
+      int count = routeInt(r, SnapshotFormat.R_STOP_COUNT);
+      for( int i = 0; i < count; i++ ) {
+        if ( isNearby(first + i, point, latitudeDifference, longitudeDifference)) {
+          collector.add(getRouteId(r));
+          break;
+        }
+      }
+    }
+  }
+
+  private void iterateRouteStops(RouteStopCallback callback, boolean primaryOnly) {
+    for( int r = 0; r < routeCount; r++ ) {
+      if ( primaryOnly && ! isPrimary(r))
+        continue;
+      int first = routeInt(r, SnapshotFormat.R_FIRST_STOP);
+      int count = routeInt(r, SnapshotFormat.R_STOP_COUNT);
+      List<Point2D> points = new ArrayList<Point2D>(count);
+      for( int i = 0; i < count; i++ ) {
+        points.add(new Point2D(stopFloat(first + i, SnapshotFormat.S_LAT), stopFloat(first + i, SnapshotFormat.S_LON)));
+      }
+      callback.add(getRouteId(r), points);
+    }
+  }
+  
+  @Override
+  public void iterateAllRouteStops(RouteStopCallback callback) {
+    iterateRouteStops(callback, false);
+  }
+
+  @Override
+  public void iteratePrimaryRouteStops(RouteStopCallback callback) {
+    iterateRouteStops(callback, true);
+  }
+
+  private void iterateRoutePoints(RoutePointCallback callback, boolean primaryOnly) {
+    float[] lat = new float[64];
+    float[] lon = new float[64];
+    for( int r = 0; r < routeCount; r++ ) {
+      if ( primaryOnly && ! isPrimary(r))
+        continue;
+      int first = routeInt(r, SnapshotFormat.R_FIRST_STOP);
+      int count = routeInt(r, SnapshotFormat.R_STOP_COUNT);
+      if ( count > lat.length ) {
+        lat = new float[Math.max(count, lat.length * 2)];
+        lon = new float[lat.length];
+      }
+      for( int i = 0; i < count; i++ ) {
+        lat[i] = stopFloat(first + i, SnapshotFormat.S_LAT);
+        lon[i] = stopFloat(first + i, SnapshotFormat.S_LON);
+      }
+      callback.addRoute(r, lat, lon, count);
+    }
+  }
+  
+  @Override
+  public void iterateAllRoutePoints(RoutePointCallback callback) {
+    iterateRoutePoints(callback, false);
+  }
+
+  @Override
+  public void iteratePrimaryRoutePoints(RoutePointCallback callback) {
+    iterateRoutePoints(callback, true);
+  }
+
+  @Override
+  public List<RouteLeg> loadLegsBetween(String stop1, String stop2) {
+    List<RouteLeg> legs = new ArrayList<RouteLeg>();
+    int symbol1 = findString(stop1);
+    int symbol2 = findString(stop2);
+    if ( symbol1 < 0 || symbol2 < 0 )
+      return legs;
+    for( int r = 0; r < routeCount; r++ ) {
+      int first = routeInt(r, SnapshotFormat.R_FIRST_STOP);
+      int count = routeInt(r, SnapshotFormat.R_STOP_COUNT);
+      for( int i = 0; i < count; i++ ) {
+        if ( stopInt(first + i, SnapshotFormat.S_SYMBOL) == symbol1 ) {
+          for( int j = i + 1; j < count; j++ ) {
+            if ( stopInt(first + j, SnapshotFormat.S_SYMBOL) == symbol2 ) {
+              legs.add(new RouteLeg(getRouteId(r), createStop(first + i, i), createStop(first + j, j)));
+              break;
+            }
+          }
+        }
+      }
+    }
+    return legs;
+  }
+
+  @Override
+  public Point2D getCenter() {
+    float lat = Float.intBitsToFloat(header(SnapshotFormat.H_CENTER_LAT));
+    float lon = Float.intBitsToFloat(header(SnapshotFormat.H_CENTER_LON));
+    if ( Float.isNaN(lat) || Float.isNaN(lon))
+      return null;
+    return new Point2D(lat, lon);
+  }
+
+  @Override
+  public String getPlannerUrl() {
+    return getString(header(SnapshotFormat.H_PLANNER_URL));
+  }
+
+  @Override
+  public String getProperty(String name, String defaultValue) {
+    int count = header(SnapshotFormat.H_PROPERTY_COUNT);
+    for( int i = 0; i < count; i++ ) {
+      int offset = propertiesOffset + i * SnapshotFormat.PROPERTY_INTS * 4;
+      if ( name.equals(getString(buffer.getInt(offset)))) {
+        return getString(buffer.getInt(offset + 4));
+      }
+    }
+    return defaultValue;
+  }
+
+  @Override
+  public List<Agency> loadAgencies() {
+    int count = header(SnapshotFormat.H_AGENCY_COUNT);
+    List<Agency> agencies = new ArrayList<Agency>(count);
+    for( int i = 0; i < count; i++ ) {
+      Agency agency = new Agency();
+      agency.setName(getString(agencyInt(i, SnapshotFormat.A_NAME)));
+      agency.setLabel(getString(agencyInt(i, SnapshotFormat.A_LABEL)));
+      agency.setUrl(getString(agencyInt(i, SnapshotFormat.A_URL)));
+      agency.setRouteUrl(getString(agencyInt(i, SnapshotFormat.A_ROUTE_URL)));
+      int iconLength = agencyInt(i, SnapshotFormat.A_ICON_LENGTH);
+      if ( iconLength >= 0 ) {
+        agency.setIcon(getBytes(blobsOffset + agencyInt(i, SnapshotFormat.A_ICON_OFFSET), iconLength));
+      }
+      agencies.add(agency);
+    }
+    return agencies;
+  }
+
+  @Override
+  public String loadAgencyName(RouteId routeId) {
+    int r = findRoute(routeId);
+    if ( r < 0 )
+      return null;
+    return getString(routeInt(r, SnapshotFormat.R_AGENCY));
+  }
+
+  @Override
+  public String getDefaultAgencyName() {
+    return getString(header(SnapshotFormat.H_DEFAULT_AGENCY));
+  }
+
+  @Override
+  public Municipality loadMunicipality(String stop) {
+    return null;
+  }
+}
@@ -0,0 +1,289 @@
+/*-------------------------------------------------------------------------
+ * Copyright (c) 2012,2013, Alex Athanasopoulos.  All Rights Reserved.
+ * alex@melato.org
+ *-------------------------------------------------------------------------
+ * This file is part of Athens Next Bus
+ *
+ * Athens Next Bus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Athens Next Bus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Athens Next Bus.  If not, see <http://www.gnu.org/licenses/>.
+ *-------------------------------------------------------------------------
+ */
+package org.melato.bus.model.snapshot;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.melato.bus.model.Agency;
+import org.melato.bus.model.DaySchedule;
+import org.melato.bus.model.Route;
+import org.melato.bus.model.RouteException;
+import org.melato.bus.model.RouteId;
+import org.melato.bus.model.RouteStorage;
+import org.melato.bus.model.Schedule;
+import org.melato.bus.model.ScheduleId;
+import org.melato.bus.model.Stop;
+import org.melato.gps.Point2D;
+import org.melato.progress.ProgressGenerator;
+
+/**
+ * Creates a snapshot file from any RouteStorage, for use with SnapshotStorage.
+ * It is meant to be used offline, to convert a route database.
+ * Use a new writer for each file.
+ * @author Alex Athanasopoulos
+ */
+public class SnapshotWriter {
+  private List<String> strings = new ArrayList<String>();
+  private Map<String,Integer> stringIndex = new HashMap<String,Integer>();
+  private String[] propertyNames = { RouteStorage.PROPERTY_UPLOAD_URL, RouteStorage.ZOOM_LEVEL, RouteStorage.PROPERTY_VERSION };
+
+  private Section routes = new Section();
+  private Section stops = new Section();
+  private Section days = new Section();
+  private Section exceptions = new Section();
+  private Section times = new Section();
+  private Section agencies = new Section();
+  private Section properties = new Section();
+  private Section blobs = new Section();
+  private int stopCount;
+  private int dayCount;
+  private int exceptionCount;
+  private int timeCount;
+  
+  /** An in-memory section of the snapshot file. */
+  private static class Section {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    
+    int size() {
+      return bytes.size();
+    }
+  }
+  
+  /**
+   * Specify the storage properties to copy.
+   * RouteStorage cannot enumerate its properties, so they have to be named.
+   * The default is the properties defined in RouteStorage.
+   */
+  public void setPropertyNames(String[] propertyNames) {
+    this.propertyNames = propertyNames;
+  }
+
+  private int intern(String s) {
+    if ( s == null )
+      return -1;
+    Integer index = stringIndex.get(s);
+    if ( index == null ) {
+      index = strings.size();
+      strings.add(s);
+      stringIndex.put(s, index);
+    }
+    return index;
+  }
+  
+  private int writeTimes(int[] t) throws IOException {
+    int first = timeCount;
+    for( int time: t ) {
+      times.out.writeInt(time);
+    }
+    timeCount += t.length;
+    return first;
+  }
+  
+  private void writeRoute(RouteStorage storage, Route route, boolean primary) throws IOException {
+    RouteId routeId = route.getRouteId();
+    List<Stop> routeStops = storage.loadStops(routeId);
+    int firstStop = stopCount;
+    for( Stop stop: routeStops ) {
+      stops.out.writeFloat(stop.getLat());
+      stops.out.writeFloat(stop.getLon());
+      stops.out.writeInt((int) stop.getTime());
+      stops.out.writeInt(intern(stop.getSymbol()));
+      stops.out.writeInt(intern(stop.getName()));
+      stops.out.writeInt(stop.getFlags());
+    }
+    stopCount += routeStops.size();
+    Schedule schedule = storage.loadSchedule(routeId);
+    int firstDay = dayCount;
+    int firstException = exceptionCount;
+    int dayChange = 0;
+    String comment = null;
+    if ( schedule != null ) {
+      dayChange = schedule.getDayChange();
+      comment = schedule.getComment();
+      for( DaySchedule day: schedule.getSchedules()) {
+        ScheduleId scheduleId = day.getScheduleId();
+        int[] t = day.getTimes();
+        days.out.writeInt(scheduleId.getDays());
+        days.out.writeInt(scheduleId.getDateId());
+        days.out.writeInt(writeTimes(t));
+        days.out.writeInt(t.length);
+        dayCount++;
+      }
+      for( RouteException exception: schedule.getExceptions() ) {
+        int[] t = exception.getTimes();
+        exceptions.out.writeInt(intern(exception.getNote()));
+        exceptions.out.writeInt(exception.getDays());
+        if ( t != null ) {
+          exceptions.out.writeInt(writeTimes(t));
+          exceptions.out.writeInt(t.length);
+        } else {
+          exceptions.out.writeInt(0);
+          exceptions.out.writeInt(-1);
+        }
+        exceptionCount++;
+      }
+    }
+    DataOutputStream out = routes.out;
+    out.writeInt(intern(routeId.getName()));
+    out.writeInt(intern(routeId.getDirection()));
+    out.writeInt(intern(route.getAgencyName()));
+    out.writeInt(intern(route.getLabel()));
+    out.writeInt(intern(route.getTitle()));
+    out.writeInt(route.getColor());
+    out.writeInt(route.getBackgroundColor());
+    out.writeInt(route.getFlags());
+    out.writeInt(route.getType());
+    out.writeInt(primary ? 1 : 0);
+    out.writeInt(firstStop);
+    out.writeInt(routeStops.size());
+    out.writeInt(firstDay);
+    out.writeInt(dayCount - firstDay);
+    out.writeInt(firstException);
+    out.writeInt(exceptionCount - firstException);
+    out.writeInt(dayChange);
+    out.writeInt(intern(comment));
+  }
+
+  private void writeAgency(Agency agency) throws IOException {
+    DataOutputStream out = agencies.out;
+    out.writeInt(intern(agency.getName()));
+    out.writeInt(intern(agency.getLabel()));
+    out.writeInt(intern(agency.getUrl()));
+    out.writeInt(intern(agency.getRouteUrl()));
+    byte[] icon = agency.getIcon();
+    if ( icon != null ) {
+      out.writeInt(blobs.size());
+      out.writeInt(icon.length);
+      blobs.out.write(icon);
+    } else {
+      out.writeInt(0);
+      out.writeInt(-1);
+    }
+  }
+  
+  /**
+   * Copy all routes, stops, schedules and agencies of a storage to a snapshot file.
+   */
+  public void write(RouteStorage storage, File file) throws IOException {
+    List<Route> routeList = storage.loadRoutes();
+    Set<RouteId> primary = new HashSet<RouteId>();
+    for( Route route: storage.loadPrimaryRoutes()) {
+      primary.add(route.getRouteId());
+    }
+    ProgressGenerator progress = ProgressGenerator.get();
+    progress.setLimit(routeList.size());
+    for( int i = 0; i < routeList.size(); i++ ) {
+      progress.setPosition(i);
+      Route route = routeList.get(i);
+      writeRoute(storage, route, primary.contains(route.getRouteId()));
+    }
+    List<Agency> agencyList = storage.loadAgencies();
+    for( Agency agency: agencyList) {
+      writeAgency(agency);
+    }
+    int propertyCount = 0;
+    for( String name: propertyNames ) {
+      String value = storage.getProperty(name, null);
+      if ( value != null ) {
+        properties.out.writeInt(intern(name));
+        properties.out.writeInt(intern(value));
+        propertyCount++;
+      }
+    }
+    int plannerUrl = intern(storage.getPlannerUrl());
+    int defaultAgency = intern(storage.getDefaultAgencyName());
+    
+    Section stringSection = new Section();
+    int stringCount = strings.size();
+    byte[][] encoded = new byte[stringCount][];
+    int offset = 0;
+    for( int i = 0; i < stringCount; i++ ) {
+      encoded[i] = strings.get(i).getBytes("UTF-8");
+      stringSection.out.writeInt(offset);
+      offset += encoded[i].length;
+    }
+    stringSection.out.writeInt(offset);
+    for( byte[] b: encoded ) {
+      stringSection.out.write(b);
+    }
+    
+    int[] header = new int[SnapshotFormat.HEADER_INTS];
+    header[SnapshotFormat.H_MAGIC] = SnapshotFormat.MAGIC;
+    header[SnapshotFormat.H_VERSION] = SnapshotFormat.VERSION;
+    int position = SnapshotFormat.HEADER_INTS * 4;
+    header[SnapshotFormat.H_STRINGS] = position;
+    position += stringSection.size();
+    header[SnapshotFormat.H_ROUTES] = position;
+    position += routes.size();
+    header[SnapshotFormat.H_STOPS] = position;
+    position += stops.size();
+    header[SnapshotFormat.H_DAYS] = position;
+    position += days.size();
+    header[SnapshotFormat.H_EXCEPTIONS] = position;
+    position += exceptions.size();
+    header[SnapshotFormat.H_TIMES] = position;
+    position += times.size();
+    header[SnapshotFormat.H_AGENCIES] = position;
+    position += agencies.size();
+    header[SnapshotFormat.H_PROPERTIES] = position;
+    position += properties.size();
+    header[SnapshotFormat.H_BLOBS] = position;
+    header[SnapshotFormat.H_STRING_COUNT] = stringCount;
+    header[SnapshotFormat.H_ROUTE_COUNT] = routeList.size();
+    header[SnapshotFormat.H_STOP_COUNT] = stopCount;
+    header[SnapshotFormat.H_DAY_COUNT] = dayCount;
+    header[SnapshotFormat.H_EXCEPTION_COUNT] = exceptionCount;
+    header[SnapshotFormat.H_TIME_COUNT] = timeCount;
+    header[SnapshotFormat.H_AGENCY_COUNT] = agencyList.size();
+    header[SnapshotFormat.H_PROPERTY_COUNT] = propertyCount;
+    Point2D center = storage.getCenter();
+    header[SnapshotFormat.H_CENTER_LAT] = Float.floatToIntBits(center != null ? center.getLat() : Float.NaN);
+    header[SnapshotFormat.H_CENTER_LON] = Float.floatToIntBits(center != null ? center.getLon() : Float.NaN);
+    header[SnapshotFormat.H_PLANNER_URL] = plannerUrl;
+    header[SnapshotFormat.H_DEFAULT_AGENCY] = defaultAgency;
+    
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    try {
+      for( int h: header ) {
+        out.writeInt(h);
+      }
+      Section[] sections = new Section[] { stringSection, routes, stops, days, exceptions, times, agencies, properties, blobs };
+      for( Section section: sections ) {
+        section.out.flush();
+        section.bytes.writeTo(out);
+      }
+    } finally {
+      out.close();
+    }
+  }
+}
@@ -20,21 +20,149 @@
  */
 package org.melato.bus.otp;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.melato.bus.client.Formatting;
 import org.melato.bus.otp.OTP.Plan;
-import org.melato.update.Streams;
 
 /** Interfaces with the Open Trip Planner server, via HTTP.
- * Creates a query string for the request, gets the reply and returns an OTP.Plan
+ * Creates a query string for the request, gets the reply and returns an OTP.Plan.
+ * Requests have connect and read timeouts, and fully consume each reply,
+ * so that HttpURLConnection can reuse keep-alive connections to the server.
+ * Concurrent requests with the same query string share a single server request and its Plan,
+ * so callers must treat the returned Plan as read-only.
+ * Each caller gets its own Future, and the server request is cancelled only when all its callers have cancelled.
  * */
 public class OTPClient implements OTP.Planner {
+  public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+  public static final int DEFAULT_READ_TIMEOUT = 30000;
+  private static volatile ExecutorService defaultExecutor;
   private String url;
+  private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+  private int readTimeout = DEFAULT_READ_TIMEOUT;
+  private Executor executor;
+  /** The requests in progress, by query string. */
+  private ConcurrentMap<String,PlanTask> inFlight = new ConcurrentHashMap<String,PlanTask>();
+  
+  /** A server request, which removes itself from the in-flight requests when it is done.
+   * It counts its callers, and it is cancelled when the last one cancels.
+   */
+  private class PlanTask extends FutureTask<Plan> {
+    private String query;
+    private int callers;
+    /** Set when all the callers have cancelled, so that no new callers join. */
+    private boolean abandoned;
+    
+    PlanTask(String query, Callable<Plan> callable) {
+      super(callable);
+      this.query = query;
+    }
+    
+    /** Add a caller.
+     * @return false if the task is being cancelled, so the caller needs a new task.
+     */
+    synchronized boolean join() {
+      if ( abandoned ) {
+        return false;
+      }
+      callers++;
+      return true;
+    }
+    
+    /** Remove a caller that has cancelled, and cancel the task if it was the last one. */
+    void leave(boolean mayInterruptIfRunning) {
+      synchronized(this) {
+        callers--;
+        if ( callers > 0 ) {
+          return;
+        }
+        abandoned = true;
+      }
+      cancel(mayInterruptIfRunning);
+    }
+    
+    @Override
+    protected void done() {
+      inFlight.remove(query, this);
+    }
+  }
+  
+  /** The future of one caller of a shared PlanTask.  Cancelling it affects only this caller. */
+  private static class CallerFuture implements Future<Plan> {
+    private PlanTask task;
+    private volatile boolean cancelled;
+    
+    CallerFuture(PlanTask task) {
+      this.task = task;
+    }
+    
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      synchronized(this) {
+        if ( cancelled || task.isDone() ) {
+          return false;
+        }
+        cancelled = true;
+      }
+      task.leave(mayInterruptIfRunning);
+      return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return cancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+      return cancelled || task.isDone();
+    }
+
+    @Override
+    public Plan get() throws InterruptedException, ExecutionException {
+      if ( cancelled ) {
+        throw new CancellationException();
+      }
+      Plan plan = task.get();
+      if ( cancelled ) {
+        throw new CancellationException();
+      }
+      return plan;
+    }
+
+    @Override
+    public Plan get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+      if ( cancelled ) {
+        throw new CancellationException();
+      }
+      Plan plan = task.get(timeout, unit);
+      if ( cancelled ) {
+        throw new CancellationException();
+      }
+      return plan;
+    }
+  }
 
   private static String joinComma(List<String> strings) {
     StringBuilder buf = new StringBuilder();
@@ -93,12 +221,132 @@ public class OTPClient implements OTP.Planner {
     appendList(buf, "bannedAgencies", q.getBannedAgencies(), false);
     return buf.toString();
   }
-  @Override
-  public Plan plan(OTPRequest request) throws Exception {
-    URL url = new URL(this.url + "?" + OTPClient.queryString(request));
-    String data = Streams.copyToString(url);
+  /** Set the connect timeout, in milliseconds.  0 means no timeout. */
+  public void setConnectTimeout(int connectTimeout) {
+    this.connectTimeout = connectTimeout;
+  }
+
+  /** Set the read timeout, in milliseconds.  0 means no timeout. */
+  public void setReadTimeout(int readTimeout) {
+    this.readTimeout = readTimeout;
+  }
+
+  /** Set the executor for planAsync().  The default is a shared pool of daemon threads. */
+  public void setExecutor(Executor executor) {
+    this.executor = executor;
+  }
+
+  private Executor getExecutor() {
+    if ( executor != null )
+      return executor;
+    ExecutorService e = defaultExecutor;
+    if ( e == null ) {
+      synchronized(OTPClient.class) {
+        e = defaultExecutor;
+        if ( e == null ) {
+          e = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+              Thread thread = new Thread(r, "otp");
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+          defaultExecutor = e;
+        }
+      }
+    }
+    return e;
+  }
+  
+  private static byte[] readFully(InputStream in) throws IOException {
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+      byte[] buf = new byte[8192];
+      int n;
+      while( (n = in.read(buf)) >= 0 ) {
+        out.write(buf, 0, n);
+      }
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+  
+  private Plan fetch(String query) throws IOException {
+    URL url = new URL(this.url + "?" + query);
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    connection.setConnectTimeout(connectTimeout);
+    connection.setReadTimeout(readTimeout);
+    connection.setRequestProperty("Accept", "application/json");
+    // do not disconnect, so that the connection goes back to the keep-alive pool.
+    int code = connection.getResponseCode();
+    if ( code != HttpURLConnection.HTTP_OK ) {
+      InputStream error = connection.getErrorStream();
+      if ( error != null ) {
+        readFully(error);
+      }
+      throw new IOException("HTTP " + code + ": " + url);
+    }
+    String data = new String(readFully(connection.getInputStream()), "UTF-8");
     OTP.Plan otp = OTPParser.parse(data);
+    if ( otp == null ) {
+      throw new IOException("invalid reply: " + url);
+    }
     otp.postParse();
     return otp;
-  }  
+  }
+  
+  /** Start a request, or join an identical one that is in progress. */
+  private Future<Plan> start(OTPRequest request, boolean async) {
+    final String query = queryString(request);
+    PlanTask task = new PlanTask(query, new Callable<Plan>() {
+      @Override
+      public Plan call() throws Exception {
+        return fetch(query);
+      }
+    });
+    task.join();
+    while( true ) {
+      PlanTask existing = inFlight.putIfAbsent(query, task);
+      if ( existing == null ) {
+        break;
+      }
+      if ( existing.join() ) {
+        return new CallerFuture(existing);
+      }
+      // all its callers have cancelled it.
+      inFlight.remove(query, existing);
+    }
+    CallerFuture future = new CallerFuture(task);
+    if ( async ) {
+      getExecutor().execute(task);
+    } else {
+      task.run();
+    }
+    return future;
+  }
+  
+  @Override
+  public Plan plan(OTPRequest request) throws Exception {
+    Future<Plan> task = start(request, false);
+    try {
+      return task.get();
+    } catch( ExecutionException e ) {
+      Throwable cause = e.getCause();
+      if ( cause instanceof Exception ) {
+        throw (Exception) cause;
+      }
+      throw e;
+    }
+  }
+  
+  /**
+   * Plan in the background.
+   * Cancelling the future cancels the server request only if no other caller is waiting for the same query.
+   * The Plan may be shared with other callers of the same query, so it should not be modified.
+   */
+  public Future<Plan> planAsync(OTPRequest request) {
+    return start(request, true);
+  }
 }
@@ -0,0 +1,286 @@
+/*-------------------------------------------------------------------------
+ * Copyright (c) 2012,2013, Alex Athanasopoulos.  All Rights Reserved.
+ * alex@melato.org
+ *-------------------------------------------------------------------------
+ * This file is part of Athens Next Bus
+ *
+ * Athens Next Bus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Athens Next Bus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Athens Next Bus.  If not, see <http://www.gnu.org/licenses/>.
+ *-------------------------------------------------------------------------
+ */
+package org.melato.bus.plan;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.GregorianCalendar;
+import java.util.List;
+
+import org.melato.bus.model.RouteManager;
+import org.melato.bus.model.Stop;
+import org.melato.bus.model.cache.LruCache;
+import org.melato.bus.otp.OTPRequest;
+import org.melato.gps.Point2D;
+import org.melato.util.DateId;
+
+/**
+ * A local planner that uses the Connection Scan Algorithm.
+ * It scans the connections of the day in departure order, once, and finds the earliest arrival.
+ * The connections of each day are compiled once into a ConnectionTable and cached.
+ * It returns a single plan, the one with the earliest arrival.
+ * arriveBy requests are delegated to a RaptorPlanner on the same network,
+ * since the connection scan only searches forward.
+ * @author Alex Athanasopoulos
+ */
+public class ConnectionScanPlanner implements Planner {
+  static final int INFINITY = Integer.MAX_VALUE;
+  /** The number of days whose connections are cached. */
+  public static final int DAY_CACHE_SIZE = 3;
+  private RouteManager routeManager;
+  private volatile TransitNetwork network;
+  private volatile RaptorPlanner reversePlanner;
+  private LruCache<Integer,ConnectionTable> days = new LruCache<Integer,ConnectionTable>(DAY_CACHE_SIZE);
+  private LruCache.Loader<Integer,ConnectionTable> dayLoader = new LruCache.Loader<Integer,ConnectionTable>() {
+    @Override
+    public ConnectionTable load(Integer dateId) {
+      return new ConnectionTable(getNetwork(), dateId);
+    }
+  };
+
+  public ConnectionScanPlanner() {
+  }
+
+  public ConnectionScanPlanner(RouteManager routeManager) {
+    this.routeManager = routeManager;
+  }
+  
+  public ConnectionScanPlanner(TransitNetwork network) {
+    this.network = network;
+    this.routeManager = network.getRouteManager();
+  }
+  
+  @Override
+  public synchronized void setRouteManager(RouteManager routeManager) {
+    if ( this.routeManager != routeManager ) {
+      this.routeManager = routeManager;
+      network = null;
+      reversePlanner = null;
+      days.clear();
+    }
+  }
+
+  public TransitNetwork getNetwork() {
+    TransitNetwork net = network;
+    if ( net == null ) {
+      synchronized(this) {
+        net = network;
+        if ( net == null ) {
+          net = new TransitNetwork(routeManager);
+          network = net;
+        }
+      }
+    }
+    return net;
+  }
+
+  /** Get the compiled connections of a date. */
+  public ConnectionTable getConnections(int dateId) {
+    return days.get(dateId, dayLoader);
+  }
+  
+  @Override
+  public Plan[] plan(OTPRequest request) {
+    TransitNetwork net = getNetwork();
+    if ( request.isArriveBy() ) {
+      RaptorPlanner planner = reversePlanner;
+      if ( planner == null ) {
+        planner = new RaptorPlanner(net);
+        reversePlanner = planner;
+      }
+      return planner.plan(request);
+    }
+    Point2D from = net.getPoint(request.getFromPlace());
+    Point2D to = net.getPoint(request.getToPlace());
+    if ( from == null || to == null ) {
+      return new Plan[0];
+    }
+    Calendar cal = new GregorianCalendar();
+    cal.setTime(request.getDate());
+    int dateId = DateId.dateId(cal);
+    int time = cal.get(Calendar.HOUR_OF_DAY) * 3600 + cal.get(Calendar.MINUTE) * 60 + cal.get(Calendar.SECOND);
+    Search search = new Search(net, getConnections(dateId), request);
+    Plan plan = search.run(from, to, time);
+    if ( plan == null ) {
+      return new Plan[0];
+    }
+    return new Plan[] { plan };
+  }
+  
+  /** The state of a single query. */
+  static class Search {
+    TransitNetwork net;
+    ConnectionTable table;
+    WalkModel walkModel;
+    int minTransferTime;
+    int maxRides;
+    float maxWalkDistance;
+    float transferDistance;
+    boolean[] allowedRoutes;
+    /** The earliest arrival at each stop. */
+    int[] arrival;
+    /** The time we can board at each stop, after any minimum transfer time. */
+    int[] ready;
+    /** The number of rides used to reach each stop. */
+    int[] rides;
+    /** The connection that reached each stop, for stops reached by riding, or -1. */
+    int[] inConnection;
+    /** The stop that we walked from, for stops reached by walking a transfer, or -1. */
+    int[] walkParent;
+    /** The first connection where we boarded each trip, or -1. */
+    int[] tripBoard;
+    float[] targetDistances;
+    int targetArrival = INFINITY;
+    int targetStop = -1;
+    
+    Search(TransitNetwork net, ConnectionTable table, OTPRequest request) {
+      this.net = net;
+      this.table = table;
+      walkModel = new WalkModel(request.getWalkSpeed());
+      minTransferTime = request.getMinTransferTime();
+      maxRides = request.getMaxTransfers() + 1;
+      maxWalkDistance = request.getMaxWalkDistance();
+      transferDistance = Math.min(maxWalkDistance, net.getTransferDistance());
+      allowedRoutes = net.getAllowedRoutes(request);
+    }
+    
+    int walkTime(float distance) {
+      return (int) Math.ceil(walkModel.duration(distance));
+    }
+
+    void reach(int s, int time, int count, int connection, int parent) {
+      arrival[s] = time;
+      ready[s] = connection >= 0 ? time + minTransferTime : time;
+      rides[s] = count;
+      inConnection[s] = connection;
+      walkParent[s] = parent;
+      float d = targetDistances[s];
+      if ( ! Float.isNaN(d)) {
+        int t = time + walkTime(d);
+        if ( t < targetArrival ) {
+          targetArrival = t;
+          targetStop = s;
+        }
+      }
+    }
+    
+    Plan run(Point2D from, Point2D to, int time) {
+      int n = net.getStopCount();
+      arrival = new int[n];
+      ready = new int[n];
+      rides = new int[n];
+      inConnection = new int[n];
+      walkParent = new int[n];
+      Arrays.fill(arrival, INFINITY);
+      Arrays.fill(ready, INFINITY);
+      tripBoard = new int[table.getTripCount()];
+      Arrays.fill(tripBoard, -1);
+      float[] sourceDistances = new float[n];
+      targetDistances = new float[n];
+      net.findNearbyStops(from, maxWalkDistance, sourceDistances);
+      if ( net.findNearbyStops(to, maxWalkDistance, targetDistances) == 0 ) {
+        return null;
+      }
+      for( int s = 0; s < n; s++ ) {
+        if ( ! Float.isNaN(sourceDistances[s])) {
+          reach(s, time + walkTime(sourceDistances[s]), 0, -1, -1);
+        }
+      }
+      int[] departureStop = table.departureStop;
+      int[] arrivalStop = table.arrivalStop;
+      int[] departureTime = table.departureTime;
+      int[] arrivalTime = table.arrivalTime;
+      int[] trip = table.trip;
+      int[] tripRoute = table.tripRoute;
+      int size = table.size();
+      for( int c = table.findFirst(time); c < size; c++ ) {
+        if ( departureTime[c] >= targetArrival )
+          break;
+        int tr = trip[c];
+        int board = tripBoard[tr];
+        if ( board < 0 ) {
+          int s = departureStop[c];
+          if ( ready[s] > departureTime[c] || rides[s] >= maxRides || ! allowedRoutes[tripRoute[tr]] )
+            continue;
+          tripBoard[tr] = c;
+          board = c;
+        }
+        int s2 = arrivalStop[c];
+        int t = arrivalTime[c];
+        if ( t < arrival[s2] ) {
+          int count = rides[departureStop[board]] + 1;
+          reach(s2, t, count, c, -1);
+          int[] transfers = net.getTransfers(s2);
+          float[] distances = net.getTransferDistances(s2);
+          for( int j = 0; j < transfers.length; j++ ) {
+            if ( distances[j] > transferDistance )
+              continue;
+            int s3 = transfers[j];
+            int t3 = t + walkTime(distances[j]);
+            if ( t3 < arrival[s3] ) {
+              reach(s3, t3, count, -1, s2);
+              ready[s3] = t3 + minTransferTime;
+            }
+          }
+        }
+      }
+      if ( targetStop < 0 || inConnection[targetStop] < 0 && walkParent[targetStop] < 0 ) {
+        return null;
+      }
+      return createPlan(from, to);
+    }
+    
+    Plan createPlan(Point2D from, Point2D to) {
+      List<PlanLeg> legs = new ArrayList<PlanLeg>();
+      int s = targetStop;
+      while( legs.size() < maxRides ) {
+        if ( walkParent[s] >= 0 ) {
+          s = walkParent[s];
+        }
+        int c = inConnection[s];
+        if ( c < 0 )
+          break;
+        int tr = table.trip[c];
+        int board = tripBoard[tr];
+        int r = table.tripRoute[tr];
+        Stop[] stops = net.getRouteStops(r);
+        PlanLeg leg = new PlanLeg(net.getRoute(r), stops[table.position[board]], stops[table.position[c] + 1]);
+        leg.setDepartureTime(table.departureTime[board]);
+        legs.add(leg);
+        s = table.departureStop[board];
+      }
+      if ( legs.isEmpty() ) {
+        return null;
+      }
+      Collections.reverse(legs);
+      Plan plan = new Plan(from, to, legs.toArray(new PlanLeg[0]));
+      plan.setDistances(net.getMetric());
+      PlanLeg firstLeg = legs.get(0);
+      int departure = firstLeg.getDepartureTime() - walkTime(firstLeg.getDistanceBefore());
+      plan.setDepartureTime(departure);
+      plan.setArrivalTime(targetArrival);
+      plan.setDuration(targetArrival - departure);
+      return plan;
+    }
+  }
+}
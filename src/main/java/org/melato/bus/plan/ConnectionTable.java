@@ -0,0 +1,129 @@
+/*-------------------------------------------------------------------------
+ * Copyright (c) 2012,2013, Alex Athanasopoulos.  All Rights Reserved.
+ * alex@melato.org
+ *-------------------------------------------------------------------------
+ * This file is part of Athens Next Bus
+ *
+ * Athens Next Bus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Athens Next Bus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Athens Next Bus.  If not, see <http://www.gnu.org/licenses/>.
+ *-------------------------------------------------------------------------
+ */
+package org.melato.bus.plan;
+
+import java.util.Arrays;
+
+/**
+ * The transit connections of one day, compiled into flat arrays sorted by departure time.
+ * A connection is the ride of one trip from one stop of its route to the next stop.
+ * Connections of the same trip are in route order, when they depart at the same time.
+ * Times are in seconds from midnight.
+ * @author Alex Athanasopoulos
+ */
+public class ConnectionTable {
+  private int dateId;
+  private int size;
+  int[] departureStop;
+  int[] arrivalStop;
+  int[] departureTime;
+  int[] arrivalTime;
+  int[] trip;
+  /** The position of the departure stop in the trip's route. */
+  int[] position;
+  /** The route of each trip. */
+  int[] tripRoute;
+  /** The index of each trip in the route's Timetable times. */
+  int[] tripIndex;
+
+  public ConnectionTable(TransitNetwork network, int dateId) {
+    this(network, network.getTimetable(dateId));
+  }
+  
+  public ConnectionTable(TransitNetwork network, Timetable timetable) {
+    this.dateId = timetable.getDateId();
+    int routeCount = network.getRouteCount();
+    int tripCount = 0;
+    for( int r = 0; r < routeCount; r++ ) {
+      int stopCount = network.getStopIds(r).length;
+      int trips = timetable.getTimes(r).length;
+      tripCount += trips;
+      if ( stopCount > 1 ) {
+        size += trips * (stopCount - 1);
+      }
+    }
+    tripRoute = new int[tripCount];
+    tripIndex = new int[tripCount];
+    // Sort by (departure time, connection index).
+    // Connections are generated trip by trip in route order,
+    // so ties of the same trip stay in route order.
+    long[] keys = new long[size];
+    int[] unsortedTrip = new int[size];
+    int[] unsortedPosition = new int[size];
+    int c = 0;
+    int t = 0;
+    for( int r = 0; r < routeCount; r++ ) {
+      int[] offsets = network.getOffsets(r);
+      int[] times = timetable.getTimes(r);
+      for( int i = 0; i < times.length; i++, t++ ) {
+        tripRoute[t] = r;
+        tripIndex[t] = i;
+        int start = times[i] * 60;
+        for( int p = 0; p + 1 < offsets.length; p++, c++ ) {
+          keys[c] = ((long) (start + offsets[p]) << 32) | c;
+          unsortedTrip[c] = t;
+          unsortedPosition[c] = p;
+        }
+      }
+    }
+    Arrays.sort(keys);
+    departureStop = new int[size];
+    arrivalStop = new int[size];
+    departureTime = new int[size];
+    arrivalTime = new int[size];
+    trip = new int[size];
+    position = new int[size];
+    for( int j = 0; j < size; j++ ) {
+      int k = (int) keys[j];
+      int tr = unsortedTrip[k];
+      int p = unsortedPosition[k];
+      int r = tripRoute[tr];
+      int[] stopIds = network.getStopIds(r);
+      int[] offsets = network.getOffsets(r);
+      int start = timetable.getTimes(r)[tripIndex[tr]] * 60;
+      departureStop[j] = stopIds[p];
+      arrivalStop[j] = stopIds[p + 1];
+      departureTime[j] = start + offsets[p];
+      arrivalTime[j] = start + offsets[p + 1];
+      trip[j] = tr;
+      position[j] = p;
+    }
+  }
+
+  public int getDateId() {
+    return dateId;
+  }
+  
+  /** The number of connections. */
+  public int size() {
+    return size;
+  }
+  
+  /** The number of trips. */
+  public int getTripCount() {
+    return tripRoute.length;
+  }
+  
+  /** Find the first connection that departs at or after a time. */
+  public int findFirst(int time) {
+    return Timetable.lowerBound(departureTime, time);
+  }
+}
@@ -0,0 +1,401 @@
+/*-------------------------------------------------------------------------
+ * Copyright (c) 2012,2013, Alex Athanasopoulos.  All Rights Reserved.
+ * alex@melato.org
+ *-------------------------------------------------------------------------
+ * This file is part of Athens Next Bus
+ *
+ * Athens Next Bus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Athens Next Bus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Athens Next Bus.  If not, see <http://www.gnu.org/licenses/>.
+ *-------------------------------------------------------------------------
+ */
+package org.melato.bus.plan;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.GregorianCalendar;
+import java.util.List;
+
+import org.melato.bus.model.RouteManager;
+import org.melato.bus.model.Stop;
+import org.melato.bus.otp.OTPRequest;
+import org.melato.gps.Point2D;
+import org.melato.util.DateId;
+
+/**
+ * A local planner that uses the RAPTOR (Round-bAsed Public Transit Optimized Router) algorithm.
+ * Each round k finds the best arrival times with k rides, so the search returns one plan
+ * for each number of transfers that improves the arrival time.
+ * With arriveBy, the search runs backwards from the destination and finds the latest departure times.
+ * Internally, a search uses a cost that is the time in seconds from midnight for forward searches,
+ * and the negated time for reverse searches, so that smaller is always better.
+ * The planner is thread-safe.  It builds its TransitNetwork the first time it is used.
+ * @author Alex Athanasopoulos
+ */
+public class RaptorPlanner implements Planner {
+  static final int INFINITY = Integer.MAX_VALUE;
+  private RouteManager routeManager;
+  private volatile TransitNetwork network;
+  
+  public RaptorPlanner() {
+  }
+  
+  public RaptorPlanner(RouteManager routeManager) {
+    this.routeManager = routeManager;
+  }
+  
+  public RaptorPlanner(TransitNetwork network) {
+    this.network = network;
+    this.routeManager = network.getRouteManager();
+  }
+  
+  @Override
+  public synchronized void setRouteManager(RouteManager routeManager) {
+    if ( this.routeManager != routeManager ) {
+      this.routeManager = routeManager;
+      network = null;
+    }
+  }
+
+  public TransitNetwork getNetwork() {
+    TransitNetwork net = network;
+    if ( net == null ) {
+      synchronized(this) {
+        net = network;
+        if ( net == null ) {
+          net = new TransitNetwork(routeManager);
+          network = net;
+        }
+      }
+    }
+    return net;
+  }
+
+  @Override
+  public Plan[] plan(OTPRequest request) {
+    Search search = new Search(getNetwork(), request);
+    return search.run();
+  }
+
+  /** The state of a single query. */
+  static class Search {
+    TransitNetwork net;
+    OTPRequest request;
+    boolean reverse;
+    WalkModel walkModel;
+    int rounds;
+    int minTransferTime;
+    float transferDistance;
+    Point2D source;
+    Point2D target;
+    /** The start cost, at the source. */
+    int startCost;
+    int dateId;
+    Timetable timetable;
+    boolean[] allowedRoutes;
+    /** The walking distance from the source to each stop, or NaN. */
+    float[] sourceDistances;
+    /** The walking distance from each stop to the target, or NaN. */
+    float[] targetDistances;
+    
+    /** The best cost at each stop in each round, including walking transfers. */
+    int[][] cost;
+    /** The best cost at each stop in each round, from riding. */
+    int[][] rideCost;
+    /** The stop that we walked from, for stops reached by walking in a round, or -1. */
+    int[][] walkParent;
+    /** For stops reached by riding in a round, the route, trip and position where we boarded. */
+    int[][] boardRoute;
+    int[][] boardTrip;
+    int[][] boardPosition;
+    /** For stops reached by riding in a round, the position where we got off, in boardRoute. */
+    int[][] alightPosition;
+    /** The best cost at each stop, in any round. */
+    int[] bestCost;
+    boolean[] marked;
+    boolean[] rideMarked;
+    /** The earliest marked position for each route (latest for reverse searches), or -1. */
+    int[] routeStart;
+    /** The best cost at the target so far. */
+    int targetCost = INFINITY;
+    
+    Search(TransitNetwork net, OTPRequest request) {
+      this.net = net;
+      this.request = request;
+      reverse = request.isArriveBy();
+      walkModel = new WalkModel(request.getWalkSpeed());
+      rounds = request.getMaxTransfers() + 1;
+      minTransferTime = request.getMinTransferTime();
+      transferDistance = Math.min(request.getMaxWalkDistance(), net.getTransferDistance());
+      Calendar cal = new GregorianCalendar();
+      cal.setTime(request.getDate());
+      dateId = DateId.dateId(cal);
+      int seconds = cal.get(Calendar.HOUR_OF_DAY) * 3600 + cal.get(Calendar.MINUTE) * 60 + cal.get(Calendar.SECOND);
+      startCost = reverse ? -seconds : seconds;
+    }
+    
+    int walkTime(float distance) {
+      return (int) Math.ceil(walkModel.duration(distance));
+    }
+
+    Plan[] run() {
+      Point2D from = net.getPoint(request.getFromPlace());
+      Point2D to = net.getPoint(request.getToPlace());
+      if ( from == null || to == null ) {
+        return new Plan[0];
+      }
+      source = reverse ? to : from;
+      target = reverse ? from : to;
+      int routeCount = net.getRouteCount();
+      allowedRoutes = net.getAllowedRoutes(request);
+      timetable = net.getTimetable(dateId);
+      int n = net.getStopCount();
+      sourceDistances = new float[n];
+      targetDistances = new float[n];
+      net.findNearbyStops(source, request.getMaxWalkDistance(), sourceDistances);
+      if ( net.findNearbyStops(target, request.getMaxWalkDistance(), targetDistances) == 0 ) {
+        return new Plan[0];
+      }
+      cost = new int[rounds + 1][];
+      rideCost = new int[rounds + 1][];
+      walkParent = new int[rounds + 1][];
+      boardRoute = new int[rounds + 1][];
+      boardTrip = new int[rounds + 1][];
+      boardPosition = new int[rounds + 1][];
+      alightPosition = new int[rounds + 1][];
+      bestCost = new int[n];
+      Arrays.fill(bestCost, INFINITY);
+      marked = new boolean[n];
+      rideMarked = new boolean[n];
+      routeStart = new int[routeCount];
+      allocateRound(0);
+      for( int s = 0; s < n; s++ ) {
+        float d = sourceDistances[s];
+        if ( ! Float.isNaN(d)) {
+          int c = startCost + walkTime(d);
+          cost[0][s] = c;
+          bestCost[s] = c;
+          marked[s] = true;
+        }
+      }
+      List<Plan> plans = new ArrayList<Plan>();
+      for( int k = 1; k <= rounds; k++ ) {
+        allocateRound(k);
+        if ( ! collectRoutes() )
+          break;
+        for( int r = 0; r < routeCount; r++ ) {
+          if ( routeStart[r] >= 0 ) {
+            if ( reverse ) {
+              scanRouteReverse(k, r, routeStart[r]);
+            } else {
+              scanRouteForward(k, r, routeStart[r]);
+            }
+          }
+        }
+        walkTransfers(k);
+        int bestStop = -1;
+        int best = targetCost;
+        for( int s = 0; s < n; s++ ) {
+          if ( cost[k][s] != INFINITY && ! Float.isNaN(targetDistances[s])) {
+            int c = cost[k][s] + walkTime(targetDistances[s]);
+            if ( c < best ) {
+              best = c;
+              bestStop = s;
+            }
+          }
+        }
+        if ( bestStop >= 0 ) {
+          targetCost = best;
+          plans.add(createPlan(k, bestStop, from, to));
+        }
+      }
+      return plans.toArray(new Plan[0]);
+    }
+    
+    void allocateRound(int k) {
+      int n = net.getStopCount();
+      cost[k] = new int[n];
+      rideCost[k] = new int[n];
+      walkParent[k] = new int[n];
+      Arrays.fill(cost[k], INFINITY);
+      Arrays.fill(rideCost[k], INFINITY);
+      Arrays.fill(walkParent[k], -1);
+      if ( k > 0 ) {
+        boardRoute[k] = new int[n];
+        boardTrip[k] = new int[n];
+        boardPosition[k] = new int[n];
+        alightPosition[k] = new int[n];
+      }
+    }
+    
+    /**
+     * Find the routes that go through the stops marked in the previous round, and clear the marks.
+     * @return true if there is at least one such route.
+     */
+    boolean collectRoutes() {
+      Arrays.fill(routeStart, -1);
+      boolean found = false;
+      for( int s = 0; s < marked.length; s++ ) {
+        if ( ! marked[s] )
+          continue;
+        marked[s] = false;
+        int[] routes = net.getStopRoutes(s);
+        int[] positions = net.getStopPositions(s);
+        for( int j = 0; j < routes.length; j++ ) {
+          int r = routes[j];
+          if ( ! allowedRoutes[r] )
+            continue;
+          int p = positions[j];
+          int start = routeStart[r];
+          if ( start < 0 || (reverse ? p > start : p < start)) {
+            routeStart[r] = p;
+            found = true;
+          }
+        }
+      }
+      return found;
+    }
+
+    /** The cost after which we can board at a stop, in round k. */
+    int readyCost(int k, int s) {
+      int c = cost[k - 1][s];
+      if ( c == INFINITY )
+        return INFINITY;
+      return k > 1 ? c + minTransferTime : c;
+    }
+    
+    void updateRide(int k, int s, int c, int r, int trip, int board, int alight) {
+      cost[k][s] = c;
+      rideCost[k][s] = c;
+      bestCost[s] = c;
+      walkParent[k][s] = -1;
+      boardRoute[k][s] = r;
+      boardTrip[k][s] = trip;
+      boardPosition[k][s] = board;
+      alightPosition[k][s] = alight;
+      marked[s] = true;
+      rideMarked[s] = true;
+    }
+    
+    void scanRouteForward(int k, int r, int start) {
+      int[] stopIds = net.getStopIds(r);
+      int[] offsets = net.getOffsets(r);
+      int[] times = timetable.getTimes(r);
+      int trip = -1;
+      int board = -1;
+      for( int i = start; i < stopIds.length; i++ ) {
+        int s = stopIds[i];
+        int c = INFINITY;
+        if ( trip >= 0 ) {
+          c = times[trip] * 60 + offsets[i];
+          if ( c < bestCost[s] && c < targetCost ) {
+            updateRide(k, s, c, r, trip, board, i);
+          }
+        }
+        int ready = readyCost(k, s);
+        if ( ready != INFINITY && ready < c ) {
+          int t = timetable.findNextTrip(r, offsets[i], ready);
+          if ( t >= 0 && t != trip ) {
+            trip = t;
+            board = i;
+          }
+        }
+      }
+    }
+
+    void scanRouteReverse(int k, int r, int start) {
+      int[] stopIds = net.getStopIds(r);
+      int[] offsets = net.getOffsets(r);
+      int[] times = timetable.getTimes(r);
+      int trip = -1;
+      int board = -1;
+      for( int i = start; i >= 0; i-- ) {
+        int s = stopIds[i];
+        int c = INFINITY;
+        if ( trip >= 0 ) {
+          c = -(times[trip] * 60 + offsets[i]);
+          if ( c < bestCost[s] && c < targetCost ) {
+            updateRide(k, s, c, r, trip, board, i);
+          }
+        }
+        int ready = readyCost(k, s);
+        if ( ready != INFINITY && ready < c ) {
+          int t = timetable.findPreviousTrip(r, offsets[i], -ready);
+          if ( t >= 0 && t != trip ) {
+            trip = t;
+            board = i;
+          }
+        }
+      }
+    }
+
+    /** Walk from the stops that we reached by riding in round k, to nearby stops. */
+    void walkTransfers(int k) {
+      for( int s = 0; s < rideMarked.length; s++ ) {
+        if ( ! rideMarked[s] )
+          continue;
+        rideMarked[s] = false;
+        int[] transfers = net.getTransfers(s);
+        float[] distances = net.getTransferDistances(s);
+        for( int j = 0; j < transfers.length; j++ ) {
+          if ( distances[j] > transferDistance )
+            continue;
+          int s2 = transfers[j];
+          int c = rideCost[k][s] + walkTime(distances[j]);
+          if ( c < bestCost[s2] && c < targetCost ) {
+            cost[k][s2] = c;
+            bestCost[s2] = c;
+            walkParent[k][s2] = s;
+            marked[s2] = true;
+          }
+        }
+      }
+    }
+    
+    /** Reconstruct the plan that reaches stop s in round k. */
+    Plan createPlan(int k, int s, Point2D from, Point2D to) {
+      List<PlanLeg> legs = new ArrayList<PlanLeg>();
+      int stop = s;
+      for( int round = k; round > 0; round-- ) {
+        if ( walkParent[round][stop] >= 0 ) {
+          stop = walkParent[round][stop];
+        }
+        int r = boardRoute[round][stop];
+        int trip = boardTrip[round][stop];
+        int board = boardPosition[round][stop];
+        int alight = alightPosition[round][stop];
+        int first = reverse ? alight : board;
+        int last = reverse ? board : alight;
+        Stop[] stops = net.getRouteStops(r);
+        PlanLeg leg = new PlanLeg(net.getRoute(r), stops[first], stops[last]);
+        leg.setDepartureTime(timetable.getTimes(r)[trip] * 60 + net.getOffsets(r)[first]);
+        legs.add(leg);
+        stop = net.getStopIds(r)[board];
+      }
+      if ( ! reverse ) {
+        Collections.reverse(legs);
+      }
+      Plan plan = new Plan(from, to, legs.toArray(new PlanLeg[0]));
+      plan.setDistances(net.getMetric());
+      PlanLeg firstLeg = legs.get(0);
+      PlanLeg lastLeg = legs.get(legs.size() - 1);
+      int departure = firstLeg.getDepartureTime() - walkTime(plan.getLegs()[0].getDistanceBefore());
+      int arrival = lastLeg.getDepartureTime() + lastLeg.getDuration() + walkTime(plan.getLastWalkDistance());
+      plan.setDepartureTime(departure);
+      plan.setArrivalTime(arrival);
+      plan.setDuration(arrival - departure);
+      return plan;
+    }
+  }
+}
@@ -23,7 +23,6 @@ package org.melato.bus.plan;
 import java.io.Serializable;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Comparator;
 
 import org.melato.bus.model.RStop;
 import org.melato.bus.model.RouteId;
@@ -80,31 +79,42 @@ public class RouteLeg implements Serializable {
   }
   
   /**
-   * Find legs between two stops
+   * Find legs between two stops.
+   * For each occurrence of symbol1, there is a leg to the first occurrence of symbol2 after it.
+   * It makes a single backward pass over the stops, so it is linear in the number of stops.
    * @param routeId
-   * @param stopList
+   * @param stopList The route stops.  They are sorted by index, if they are not already.
    * @param symbol1
    * @param symbol2
-   * @param legs
+   * @param results
    */
   public static void findLegs(RouteId routeId, Collection<Stop> stopList, String symbol1, String symbol2, Collection<RouteLeg> results ) {
-    Comparator<Stop> comparator = new Stop.IndexComparator();
     Stop[] stops = stopList.toArray(new Stop[0]);
-    Arrays.sort(stops, comparator);
-    for( int i = 0; i < stops.length; i++ ) {
-      if ( stops[i].getSymbol().equals(symbol1)) {
-        for( int j = i + 1; j < stops.length; j++ ) {
-          if ( stops[j].getSymbol().equals(symbol2)) {
-            RouteLeg leg = new RouteLeg(routeId, stops[i], stops[j]);
-            results.add(leg);
-            break;
-          }
+    for( int i = 1; i < stops.length; i++ ) {
+      if ( stops[i].getIndex() < stops[i-1].getIndex()) {
+        Arrays.sort(stops, new Stop.IndexComparator());
+        break;
+      }
+    }
+    int count = 0;
+    RouteLeg[] found = null;
+    Stop next2 = null;
+    for( int i = stops.length - 1; i >= 0; i-- ) {
+      String symbol = stops[i].getSymbol();
+      if ( next2 != null && symbol.equals(symbol1)) {
+        if ( found == null ) {
+          found = new RouteLeg[stops.length];
         }
+        found[count++] = new RouteLeg(routeId, stops[i], next2);
       }
+      if ( symbol.equals(symbol2)) {
+        next2 = stops[i];
+      }
+    }
+    // add them in stop order
+    for( int i = count - 1; i >= 0; i-- ) {
+      results.add(found[i]);
     }
   }
-  
-  
-  
 }
 
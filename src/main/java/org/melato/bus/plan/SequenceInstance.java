@@ -37,10 +37,8 @@ public class SequenceInstance {
   public SequenceInstance(SequenceSchedule schedule, int[] indexes) {
     this.schedule = schedule;
     this.levelIndexes = indexes;
-    LegTime firstLeg = schedule.levels[0].legTimes[indexes[0]];
-    LegTime lastLeg = schedule.levels[indexes.length-1].legTimes[indexes[indexes.length-1]];
-    startTime = firstLeg.getTime1();
-    endTime = lastLeg.getTime2();
+    startTime = schedule.levels[0].getTime1(indexes[0]);
+    endTime = schedule.levels[indexes.length-1].getTime2(indexes[indexes.length-1]);
   }
       
   /** Start time in seconds. */
@@ -82,17 +80,18 @@ public class SequenceInstance {
     List<SequenceItinerary.Leg> legs = new ArrayList<SequenceItinerary.Leg>(); 
     LegTime previous = null;
     LegTime previous2 = null;
-    LegTime[] previousLegs = null;
+    SequenceSchedule.Level previousLevel = null;
     for( int i = 0; i < levelIndexes.length; i++ ) {
-      LegTime[] levelLegs = schedule.levels[i].legTimes;
-      LegTime leg = levelLegs[levelIndexes[i]];
+      SequenceSchedule.Level level = schedule.levels[i];
+      LegTime leg = level.getLegTime(levelIndexes[i]);
       if ( i > 0 ) {
-        for( int j = levelIndexes[i-1] + 1; j < previousLegs.length; j++ ) {
-          LegTime t = previousLegs[j];
-          if ( t.getTime2() < leg.getTime1()) {
-            legs.add(createTransitLeg(t, previous2));
+        int time1 = level.getTime1(levelIndexes[i]);
+        int size = previousLevel.size();
+        for( int j = levelIndexes[i-1] + 1; j < size; j++ ) {
+          if ( previousLevel.getTime2(j) < time1) {
+            legs.add(createTransitLeg(previousLevel.getLegTime(j), previous2));
           }
-          if ( t.getTime1() > leg.getTime1()) {
+          if ( previousLevel.getTime1(j) > time1) {
             break;
           }
         }
@@ -103,7 +102,7 @@ public class SequenceInstance {
       legs.add(createTransitLeg(leg, previous));
       previous2 = previous;
       previous = leg;
-      previousLegs = levelLegs;
+      previousLevel = level;
     }
     SequenceItinerary itinerary = new SequenceItinerary(legs.toArray(new SequenceItinerary.Leg[0]));
     return itinerary;
@@ -38,13 +38,20 @@ public class SequenceSchedule {
   private List<SequenceInstance> instances;
   private WalkModel walkModel;
 
-  /** Helper class for scheduling one leg and equivalent legs */
+  /** Helper class for scheduling one leg and equivalent legs.
+   * The departures of all the legs are kept in parallel arrays, sorted by start time.
+   * LegTime objects are created only when they are requested.
+   */
   public static class Level {
     private LegGroup leg;
     private RouteLeg[] legs;
-    public LegTime[] legTimes;
     /** Start times in seconds */
     private int[] times;
+    /** End times in seconds */
+    private int[] endTimes;
+    /** The index in legs of each departure. */
+    private short[] legIndexes;
+    private LegTime[] legTimes;
     private int walkTime;
     public Level(LegGroup leg) {
       super();
@@ -65,43 +72,108 @@ public class SequenceSchedule {
       this.walkTime = (int) walk.duration(distance);
     }    
     
-    /** Computes all the start/end times for this leg and its equivalent legs. */
+    /** Computes all the start/end times for this leg and its equivalent legs.
+     * The day times of each leg are already sorted, so they are merged rather than sorted.
+     * They are read by index, so packed day schedules are not decoded into arrays.
+     */
     void compute(ScheduleFactory scheduleFactory, RouteManager routeManager) {
       ProgressGenerator progress = ProgressGenerator.get();
       Route route = routeManager.getRoute(leg.getLeg().getRouteId());
       progress.setText(route.getLabel());
       legs = leg.getEquivalentLegs(routeManager);
-      List<LegTime> timeList = new ArrayList<LegTime>();
-      for(int i = 0; i < legs.length; i++ ) {
+      int k = legs.length;
+      DaySchedule[] days = new DaySchedule[k];
+      int[] sizes = new int[k];
+      int[] offset1 = new int[k];
+      int[] offset2 = new int[k];
+      int size = 0;
+      for(int i = 0; i < k; i++ ) {
         RouteLeg routeLeg = legs[i];
         Schedule schedule = routeManager.getSchedule(routeLeg.getRouteId());
         DaySchedule daySchedule = scheduleFactory.getSchedule(schedule);
-        if ( daySchedule != null) {
-          int[] scheduleTimes = daySchedule.getTimes();
-          for( int time: scheduleTimes ) {
-            LegTime legTime = new LegTime(routeLeg, time, routeManager);
-            //legTime.setLeadTime(leg.getWait());            
-            timeList.add(legTime);
+        days[i] = daySchedule;
+        sizes[i] = daySchedule != null ? daySchedule.size() : 0;
+        size += sizes[i];
+        offset1[i] = routeLeg.getStop1().getSecondsFromStart();
+        offset2[i] = routeLeg.getStop2() != null ? routeLeg.getStop2().getSecondsFromStart() : offset1[i];
+      }
+      times = new int[size];
+      endTimes = new int[size];
+      legIndexes = new short[size];
+      legTimes = new LegTime[size];
+      // k-way merge.  The number of equivalent legs is small, so we pick the minimum with a linear scan.
+      // Ties go to the earlier leg, as with a stable sort.
+      int[] next = new int[k];
+      // the start time of the next departure of each leg.
+      int[] heads = new int[k];
+      for( int i = 0; i < k; i++ ) {
+        if ( sizes[i] > 0 ) {
+          heads[i] = days[i].get(0) * 60 + offset1[i];
+        }
+      }
+      for( int j = 0; j < size; j++ ) {
+        int best = -1;
+        for( int i = 0; i < k; i++ ) {
+          if ( next[i] < sizes[i] && (best < 0 || heads[i] < heads[best]) ) {
+            best = i;
           }
         }
+        int bestTime = heads[best];
+        times[j] = bestTime;
+        endTimes[j] = bestTime - offset1[best] + offset2[best];
+        legIndexes[j] = (short) best;
+        next[best]++;
+        if ( next[best] < sizes[best] ) {
+          heads[best] = days[best].get(next[best]) * 60 + offset1[best];
+        }
       }
-      legTimes = timeList.toArray(new LegTime[0]);
-      Arrays.sort(legTimes);
-      times = new int[legTimes.length];
-      for( int i = 0; i < times.length; i++ ) {
-        times[i] = legTimes[i].getTime1();
+    }
+    
+    /** The number of departures in this level. */
+    public int size() {
+      return times.length;
+    }
+    
+    /** The start time of a departure, in seconds from midnight. */
+    public int getTime1(int index) {
+      return times[index];
+    }
+    
+    /** The end time of a departure, in seconds from midnight. */
+    public int getTime2(int index) {
+      return endTimes[index];
+    }
+    
+    /** Get a departure as a LegTime. */
+    public LegTime getLegTime(int index) {
+      LegTime legTime = legTimes[index];
+      if ( legTime == null ) {
+        RouteLeg routeLeg = legs[legIndexes[index]];
+        int minutes = (times[index] - routeLeg.getStop1().getSecondsFromStart()) / 60;
+        legTime = new LegTime(routeLeg, minutes, null);
+        legTimes[index] = legTime;
       }
+      return legTime;
     }
     
-    int findTimeIndex(int time) {
-      int pos = Arrays.binarySearch(times, time);
-      if ( pos >= 0 )
-        return pos;
-      pos = -(pos+1);
-      if ( pos < times.length ) {
-        return pos;
+    /** Find the first departure that starts at or after a time, or size() if there is none. */
+    int findFirst(int time) {
+      int low = 0;
+      int high = times.length;
+      while( low < high ) {
+        int mid = (low + high) >>> 1;
+        if ( times[mid] < time ) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
       }
-      return -1;
+      return low;
+    }
+    
+    int findTimeIndex(int time) {
+      int pos = findFirst(time);
+      return pos < times.length ? pos : -1;
     }
   }
   
@@ -123,65 +195,102 @@ public class SequenceSchedule {
       progress.setPosition(i);
       levels[i].compute(scheduleFactory, routeManager);
     }
-    instances = createInstances(levels);
   }
   
   public WalkModel getWalkModel() {
     return walkModel;
   }
 
+  /** Get all the instances of the day.  They are assembled the first time they are requested. */
   public List<SequenceInstance> getInstances() {
+    if ( instances == null ) {
+      instances = createInstances(levels);
+    }
     return instances;
   }
 
+  /**
+   * Find the position of the first instance that starts after a time.
+   * @param minutes
+   * @return The position in getInstances(), or -1.
+   */
   public int getTimePosition(int minutes) {
-    int size = instances.size();
+    List<SequenceInstance> instances = getInstances();
     int seconds = minutes * 60;
-    for( int i = 0; i < size; i++ ) {
-      SequenceInstance instance = instances.get(i);
-      if ( seconds < instance.getStartTime() ) {
-        return i;
+    int low = 0;
+    int high = instances.size();
+    while( low < high ) {
+      int mid = (low + high) >>> 1;
+      if ( instances.get(mid).getStartTime() <= seconds ) {
+        low = mid + 1;
+      } else {
+        high = mid;
       }
     }
-    return -1;
+    return low < instances.size() ? low : -1;
   }  
   
   public int getTimePosition(Date date) {
     return getTimePosition(Schedule.getTime(date));
   }  
   
+  /**
+   * Get the next instances that start at or after a time, without assembling the whole day.
+   * It finds the first departure of the first level with a binary search,
+   * and assembles instances from there, so it takes O(log n + limit) steps.
+   * @param seconds The time, in seconds from midnight.
+   * @param limit The maximum number of instances to return.
+   */
+  public List<SequenceInstance> instancesFrom(int seconds, int limit) {
+    List<SequenceInstance> result = new ArrayList<SequenceInstance>();
+    if ( levels.length == 0 )
+      return result;
+    Level firstLevel = levels[0];
+    int[] indexes = new int[levels.length];
+    int firstSize = firstLevel.size();
+    for(int firstIndex = firstLevel.findFirst(seconds); firstIndex < firstSize && result.size() < limit; firstIndex++ ) {
+      SequenceInstance instance = createInstance(firstIndex, indexes);
+      if ( instance == null )
+        break;
+      result.add(instance);
+    }
+    return result;
+  }
+  
+  /**
+   * Assemble the instance that starts with a departure of the first level.
+   * @param firstIndex The index of the departure in the first level.
+   * @param indexes A work array, with one element per level.
+   * @return The instance, or null if the remaining levels have no departures late enough.
+   */
+  private SequenceInstance createInstance(int firstIndex, int[] indexes) {
+    indexes[0] = firstIndex;
+    int time = levels[0].getTime2(firstIndex);
+    for( int i = 1; i < levels.length; i++ ) {
+      time += levels[i].getWalkTime();
+      time += levels[i].getWaitTime();
+      int timeIndex = levels[i].findTimeIndex(time);
+      if ( timeIndex < 0 ) {
+        return null;
+      }
+      indexes[i] = timeIndex;
+      time = levels[i].getTime2(timeIndex);
+    }
+    return new SequenceInstance(this, indexes.clone());
+  }
+  
   /** Assembles individual leg times into sequence instances */
   private List<SequenceInstance> createInstances(Level[] levels) {
     List<SequenceInstance> instances = new ArrayList<SequenceInstance>();
     if ( levels.length == 0 )
       return instances;
-    Level firstLevel = levels[0];
-    LegTime[] firstTimes = firstLevel.legTimes;
     int[] indexes = new int[levels.length];
-    for(int firstIndex = 0; firstIndex < firstTimes.length; firstIndex++ ) {      
-      LegTime firstLeg = firstTimes[firstIndex];
-      indexes[0] = firstIndex;
-      int time = firstLeg.getTime2();
-      boolean complete = true;
-      for( int i = 1; i < levels.length; i++ ) {
-        time += levels[i].getWalkTime();
-        time += levels[i].getWaitTime();
-        int timeIndex = levels[i].findTimeIndex(time);
-        if ( timeIndex >= 0 ) {
-          indexes[i] = timeIndex;
-          LegTime leg = levels[i].legTimes[timeIndex];
-          time = leg.getTime2();
-        } else {
-          complete = false;
-          break;
-        }
-      }      
-      if ( complete ) {
-        SequenceInstance instance = new SequenceInstance(this, indexes.clone());
-        instances.add(instance);        
-      } else {
+    int firstSize = levels[0].size();
+    for(int firstIndex = 0; firstIndex < firstSize; firstIndex++ ) {      
+      SequenceInstance instance = createInstance(firstIndex, indexes);
+      if ( instance == null )
         break;
-      }
+      instances.add(instance);        
     }
     return instances;
     /*
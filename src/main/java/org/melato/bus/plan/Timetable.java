@@ -0,0 +1,154 @@
+/*-------------------------------------------------------------------------
+ * Copyright (c) 2012,2013, Alex Athanasopoulos.  All Rights Reserved.
+ * alex@melato.org
+ *-------------------------------------------------------------------------
+ * This file is part of Athens Next Bus
+ *
+ * Athens Next Bus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Athens Next Bus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Athens Next Bus.  If not, see <http://www.gnu.org/licenses/>.
+ *-------------------------------------------------------------------------
+ */
+package org.melato.bus.plan;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+
+import org.melato.bus.model.DaySchedule;
+import org.melato.bus.model.RouteManager;
+import org.melato.bus.model.Schedule;
+import org.melato.util.DateId;
+
+/**
+ * The start times of all routes of a TransitNetwork, for one date.
+ * The time of a trip at a stop is its start time plus the stop offset.
+ * The trips of the previous day's schedule that are still running after midnight are included,
+ * with times shifted by -24 hours, so they may be negative.
+ * Routes that do not run that day, or the day before, have no times.
+ * @author Alex Athanasopoulos
+ */
+public class Timetable {
+  private static final int[] EMPTY = new int[0];
+  private static final int MINUTES_PER_DAY = 24 * 60;
+  private int dateId;
+  /** The start times of each route, in minutes from midnight, sorted. */
+  private int[][] times;
+  
+  /** Get a date at noon, so that we get the schedule of the date, regardless of the schedule's dayChange. */
+  private static Date noon(int dateId, int days) {
+    Calendar cal = new GregorianCalendar();
+    DateId.setCalendar(dateId, cal);
+    cal.set(Calendar.HOUR_OF_DAY, 12);
+    cal.add(Calendar.DAY_OF_MONTH, days);
+    return cal.getTime();
+  }
+  
+  public Timetable(TransitNetwork network, int dateId) {
+    this.dateId = dateId;
+    RouteManager routeManager = network.getRouteManager();
+    Date date = noon(dateId, 0);
+    Date previousDate = noon(dateId, -1);
+    int routeCount = network.getRouteCount();
+    times = new int[routeCount][];
+    for( int r = 0; r < routeCount; r++ ) {
+      // both days come from the route's schedule, which is loaded once, through the schedule cache.
+      Schedule schedule = routeManager.getSchedule(network.getRouteId(r));
+      if ( schedule == null ) {
+        times[r] = EMPTY;
+        continue;
+      }
+      DaySchedule daySchedule = schedule.getSchedule(date);
+      int[] today = daySchedule != null ? daySchedule.getTimes() : EMPTY;
+      DaySchedule previousSchedule = schedule.getSchedule(previousDate);
+      int[] offsets = network.getOffsets(r);
+      int duration = offsets.length > 0 ? (offsets[offsets.length - 1] + 59) / 60 : 0;
+      times[r] = previousSchedule != null ? merge(previousSchedule, duration, today) : today;
+    }
+  }
+
+  /**
+   * Add the trips of the previous day that are still running after midnight, shifted by a day.
+   * Only those trips are read, so a packed previous day is not decoded.
+   * @param duration The duration of a trip, in minutes.
+   */
+  static int[] merge(DaySchedule previous, int duration, int[] today) {
+    // the previous day's trips that end at or after midnight.
+    int first = previous.findNext(MINUTES_PER_DAY - duration);
+    int n = previous.size() - first;
+    if ( n == 0 )
+      return today;
+    int[] merged = new int[n + today.length];
+    for( int i = 0; i < n; i++ ) {
+      merged[i] = previous.get(first + i) - MINUTES_PER_DAY;
+    }
+    System.arraycopy(today, 0, merged, n, today.length);
+    Arrays.sort(merged);
+    return merged;
+  }
+
+  public int getDateId() {
+    return dateId;
+  }
+  
+  /** Get the start times of a route, in minutes from midnight. */
+  public int[] getTimes(int route) {
+    return times[route];
+  }
+
+  /** Find the first index i such that a[i] >= value, or a.length if there is none. */
+  static int lowerBound(int[] a, int value) {
+    int low = 0;
+    int high = a.length;
+    while( low < high ) {
+      int mid = (low + high) >>> 1;
+      if ( a[mid] < value ) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+  
+  /**
+   * Find the earliest trip of a route that passes from a stop at or after a certain time.
+   * @param route
+   * @param offset The stop offset from the start of the route, in seconds.
+   * @param time The time in seconds from midnight.
+   * @return The trip index in getTimes(route), or -1.
+   */
+  public int findNextTrip(int route, int offset, int time) {
+    int[] t = times[route];
+    int x = time - offset;
+    // the smallest minute m such that m * 60 >= x
+    int minute = x >= 0 ? (x + 59) / 60 : -(-x / 60);
+    int i = lowerBound(t, minute);
+    return i < t.length ? i : -1;
+  }
+  
+  /**
+   * Find the latest trip of a route that passes from a stop at or before a certain time.
+   * @param route
+   * @param offset The stop offset from the start of the route, in seconds.
+   * @param time The time in seconds from midnight.
+   * @return The trip index in getTimes(route), or -1.
+   */
+  public int findPreviousTrip(int route, int offset, int time) {
+    int[] t = times[route];
+    int x = time - offset;
+    // the largest minute m such that m * 60 <= x
+    int minute = x >= 0 ? x / 60 : -((-x + 59) / 60);
+    return lowerBound(t, minute + 1) - 1;
+  }
+}
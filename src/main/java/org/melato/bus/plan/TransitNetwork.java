@@ -0,0 +1,341 @@
+/*-------------------------------------------------------------------------
+ * Copyright (c) 2012,2013, Alex Athanasopoulos.  All Rights Reserved.
+ * alex@melato.org
+ *-------------------------------------------------------------------------
+ * This file is part of Athens Next Bus
+ *
+ * Athens Next Bus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Athens Next Bus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Athens Next Bus.  If not, see <http://www.gnu.org/licenses/>.
+ *-------------------------------------------------------------------------
+ */
+package org.melato.bus.plan;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.melato.bus.model.RStop;
+import org.melato.bus.model.Route;
+import org.melato.bus.model.RouteId;
+import org.melato.bus.model.RouteManager;
+import org.melato.bus.model.Stop;
+import org.melato.bus.model.StopIndex;
+import org.melato.bus.model.SymbolTable;
+import org.melato.bus.model.cache.LruCache;
+import org.melato.bus.otp.OTPRequest;
+import org.melato.gps.Metric;
+import org.melato.gps.Point2D;
+
+/**
+ * An in-memory, int-indexed view of all routes and stops, for local route planning.
+ * Stops with the same symbol are the same network stop, even if they belong to different routes.
+ * Routes are numbered in the order of RouteManager.getRouteIds().
+ * It also has the walking transfers between nearby stops.
+ * A network is immutable once built, except for its timetable cache, and can be shared by several threads.
+ * @author Alex Athanasopoulos
+ */
+public class TransitNetwork {
+  /** The default maximum walking distance for transfers between stops, in meters. */
+  public static final float DEFAULT_TRANSFER_DISTANCE = 500f;
+  private RouteManager routeManager;
+  private Metric metric;
+  private RouteId[] routeIds;
+  private Route[] routes;
+  private Stop[][] routeStops;
+  /** The network stop id of each stop of each route.  These are the symbol ids of the SymbolTable. */
+  private int[][] stopIds;
+  /** The time from the start of the route, for each stop of each route, in seconds. */
+  private int[][] offsets;
+  private SymbolTable symbols;
+  private Point2D[] points;
+  /** For each stop id, the routes that serve it, and the position of the stop in each route. */
+  private int[][] stopRoutes;
+  private int[][] stopPositions;
+  /** For each stop id, the nearby stops that can be reached by walking. */
+  private int[][] transfers;
+  private float[][] transferDistances;
+  private float transferDistance;
+  /** The number of dates whose timetables are cached. */
+  public static final int TIMETABLE_CACHE_SIZE = 3;
+  private LruCache<Integer,Timetable> timetables = new LruCache<Integer,Timetable>(TIMETABLE_CACHE_SIZE);
+  private LruCache.Loader<Integer,Timetable> timetableLoader = new LruCache.Loader<Integer,Timetable>() {
+    @Override
+    public Timetable load(Integer dateId) {
+      return new Timetable(TransitNetwork.this, dateId);
+    }
+  };
+  
+  public TransitNetwork(RouteManager routeManager, float transferDistance) {
+    this.routeManager = routeManager;
+    this.transferDistance = transferDistance;
+    metric = routeManager.getMetric();
+    StopIndex stopIndex = routeManager.getStopIndex();
+    symbols = routeManager.getSymbolTable();
+    Map<RouteId,Route> routeMap = routeManager.getRouteIndex();
+    routeIds = routeManager.getRouteIds().toArray(new RouteId[0]);
+    int routeCount = routeIds.length;
+    routes = new Route[routeCount];
+    routeStops = new Stop[routeCount][];
+    stopIds = new int[routeCount][];
+    offsets = new int[routeCount][];
+    points = new Point2D[symbols.getSymbolCount()];
+    for( int r = 0; r < routeCount; r++ ) {
+      routes[r] = routeMap.get(routeIds[r]);
+      Stop[] stops = stopIndex.getRouteStops(r);
+      routeStops[r] = stops;
+      stopIds[r] = symbols.getStopSymbols(r);
+      offsets[r] = new int[stops.length];
+      for( int i = 0; i < stops.length; i++ ) {
+        int id = stopIds[r][i];
+        if ( points[id] == null ) {
+          points[id] = stops[i];
+        }
+        offsets[r][i] = stops[i].getSecondsFromStart();
+      }
+    }
+    buildStopRoutes();
+    buildTransfers(stopIndex);
+  }
+  
+  public TransitNetwork(RouteManager routeManager) {
+    this(routeManager, DEFAULT_TRANSFER_DISTANCE);
+  }
+  
+  private void buildStopRoutes() {
+    int n = symbols.getSymbolCount();
+    int[] counts = new int[n];
+    for( int[] ids: stopIds ) {
+      for( int s: ids ) {
+        counts[s]++;
+      }
+    }
+    stopRoutes = new int[n][];
+    stopPositions = new int[n][];
+    for( int s = 0; s < n; s++ ) {
+      stopRoutes[s] = new int[counts[s]];
+      stopPositions[s] = new int[counts[s]];
+      counts[s] = 0;
+    }
+    for( int r = 0; r < stopIds.length; r++ ) {
+      int[] ids = stopIds[r];
+      for( int i = 0; i < ids.length; i++ ) {
+        int s = ids[i];
+        stopRoutes[s][counts[s]] = r;
+        stopPositions[s][counts[s]] = i;
+        counts[s]++;
+      }
+    }
+  }
+  
+  private void buildTransfers(StopIndex stopIndex) {
+    int n = symbols.getSymbolCount();
+    transfers = new int[n][];
+    transferDistances = new float[n][];
+    List<RStop> nearby = new ArrayList<RStop>();
+    float[] distances = new float[n];
+    Arrays.fill(distances, Float.NaN);
+    int[] found = new int[n];
+    for( int s = 0; s < n; s++ ) {
+      nearby.clear();
+      stopIndex.findNearby(points[s], transferDistance, metric, nearby);
+      int count = 0;
+      for( RStop rstop: nearby ) {
+        int s2 = getStopId(rstop.getStop().getSymbol());
+        if ( s2 == s )
+          continue;
+        if ( Float.isNaN(distances[s2])) {
+          found[count++] = s2;
+          distances[s2] = rstop.getDistance();
+        } else if ( rstop.getDistance() < distances[s2] ) {
+          distances[s2] = rstop.getDistance();
+        }
+      }
+      transfers[s] = new int[count];
+      transferDistances[s] = new float[count];
+      for( int i = 0; i < count; i++ ) {
+        int s2 = found[i];
+        transfers[s][i] = s2;
+        transferDistances[s][i] = distances[s2];
+        distances[s2] = Float.NaN;
+      }
+    }
+  }
+  
+  public RouteManager getRouteManager() {
+    return routeManager;
+  }
+  
+  public Metric getMetric() {
+    return metric;
+  }
+
+  public int getRouteCount() {
+    return routeIds.length;
+  }
+  
+  public int getStopCount() {
+    return symbols.getSymbolCount();
+  }
+  
+  public RouteId getRouteId(int route) {
+    return routeIds[route];
+  }
+  
+  public Route getRoute(int route) {
+    return routes[route];
+  }
+  
+  /** Get the stops of a route, in order. */
+  public Stop[] getRouteStops(int route) {
+    return routeStops[route];
+  }
+  
+  /** Get the network stop ids of a route, in order. */
+  public int[] getStopIds(int route) {
+    return stopIds[route];
+  }
+  
+  /** Get the time of each stop from the start of a route, in seconds. */
+  public int[] getOffsets(int route) {
+    return offsets[route];
+  }
+  
+  /** Get the network stop id for a stop symbol, or -1 if there is no such stop. */
+  public int getStopId(String symbol) {
+    return symbols.getSymbolIndex(symbol);
+  }
+
+  public String getSymbol(int stop) {
+    return symbols.getSymbol(stop);
+  }
+  
+  public Point2D getPoint(int stop) {
+    return points[stop];
+  }
+  
+  /** Get the routes that serve a stop.  A route may appear more than once, if it visits the stop more than once. */
+  public int[] getStopRoutes(int stop) {
+    return stopRoutes[stop];
+  }
+  
+  /** Get the position of a stop in each route of getStopRoutes(stop). */
+  public int[] getStopPositions(int stop) {
+    return stopPositions[stop];
+  }
+
+  /** Get the stops that are within walking distance from a stop. */
+  public int[] getTransfers(int stop) {
+    return transfers[stop];
+  }
+  
+  /** Get the walking distance to each stop of getTransfers(stop), in meters. */
+  public float[] getTransferDistances(int stop) {
+    return transferDistances[stop];
+  }
+
+  /** The maximum transfer distance that was used to build the network. */
+  public float getTransferDistance() {
+    return transferDistance;
+  }
+  
+  /**
+   * Find the network stops that are within a certain distance from a point.
+   * @param point
+   * @param distance
+   * @param stopDistances Receives the distance to each stop that is found, and NaN for the other stops.
+   * Its length should be getStopCount().
+   * @return The number of stops found.
+   */
+  public int findNearbyStops(Point2D point, float distance, float[] stopDistances) {
+    Arrays.fill(stopDistances, Float.NaN);
+    List<RStop> nearby = new ArrayList<RStop>();
+    routeManager.findNearbyStops(point, distance, nearby);
+    int count = 0;
+    for( RStop rstop: nearby ) {
+      int s = getStopId(rstop.getStop().getSymbol());
+      if ( s < 0 )
+        continue;
+      float d = rstop.getDistance();
+      if ( Float.isNaN(stopDistances[s])) {
+        stopDistances[s] = d;
+        count++;
+      } else if ( d < stopDistances[s]) {
+        stopDistances[s] = d;
+      }
+    }
+    return count;
+  }
+  
+  /**
+   * Get the location of a request place.
+   * A place without a point can refer to a stop by its symbol.
+   * @return The point, or null if the place cannot be located.
+   */
+  public Point2D getPoint(OTPRequest.Place place) {
+    if ( place == null )
+      return null;
+    if ( place.point != null )
+      return place.point;
+    if ( place.stop != null ) {
+      int s = getStopId(place.stop);
+      if ( s >= 0 )
+        return points[s];
+    }
+    return null;
+  }
+  
+  private boolean isRouteAllowed(int r, OTPRequest request) {
+    RouteId routeId = routeIds[r];
+    Route route = routes[r];
+    List<String> bannedRoutes = request.getBannedRoutes();
+    if ( bannedRoutes.contains(routeId.toString()) || bannedRoutes.contains(routeId.getName())) {
+      return false;
+    }
+    if ( route != null ) {
+      if ( route.getAgencyName() != null && request.getBannedAgencies().contains(route.getAgencyName())) {
+        return false;
+      }
+      List<String> modes = request.getMode();
+      if ( ! modes.contains(OTPRequest.TRANSIT)) {
+        switch( route.getType() ) {
+        case Route.TRAM:
+          return modes.contains(OTPRequest.TRAM);
+        case Route.METRO:
+          return modes.contains(OTPRequest.SUBWAY);
+        default:
+          return modes.contains(OTPRequest.BUS);
+        }
+      }
+    }
+    return true;
+  }
+  
+  /**
+   * Find which routes a request may use, taking into account its banned routes, banned agencies and modes.
+   * A route may be banned by its id or by its name.
+   * @return An array indexed by route.
+   */
+  public boolean[] getAllowedRoutes(OTPRequest request) {
+    boolean[] allowed = new boolean[routeIds.length];
+    for( int r = 0; r < allowed.length; r++ ) {
+      allowed[r] = isRouteAllowed(r, request);
+    }
+    return allowed;
+  }
+  
+  /** Get the timetable for a date.  The timetables of the last few dates are cached. */
+  public Timetable getTimetable(int dateId) {
+    return timetables.get(dateId, timetableLoader);
+  }
+}
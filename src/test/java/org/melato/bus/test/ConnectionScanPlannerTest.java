@@ -0,0 +1,120 @@
+/*-------------------------------------------------------------------------
+ * Copyright (c) 2012,2013, Alex Athanasopoulos.  All Rights Reserved.
+ * alex@melato.org
+ *-------------------------------------------------------------------------
+ * This file is part of Athens Next Bus
+ *
+ * Athens Next Bus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Athens Next Bus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Athens Next Bus.  If not, see <http://www.gnu.org/licenses/>.
+ *-------------------------------------------------------------------------
+ */
+package org.melato.bus.test;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.melato.bus.model.RouteManager;
+import org.melato.bus.model.Stop;
+import org.melato.bus.otp.OTPRequest;
+import org.melato.bus.plan.ConnectionScanPlanner;
+import org.melato.bus.plan.Plan;
+import org.melato.bus.plan.RaptorPlanner;
+import org.melato.gps.Point2D;
+
+public class ConnectionScanPlannerTest {
+  private RouteManager routeManager;
+  
+  public ConnectionScanPlannerTest() {
+    MemoryStorage storage = new MemoryStorage();
+    storage.addRoute("a", new Stop[] {
+        MemoryStorage.stop("a1", 37.90f, 23.70f, 0),
+        MemoryStorage.stop("a2", 37.91f, 23.70f, 300),
+        MemoryStorage.stop("x", 37.92f, 23.70f, 600)},
+        new int[] {480, 510});
+    storage.addRoute("b", new Stop[] {
+        MemoryStorage.stop("y", 37.9201f, 23.7001f, 0),
+        MemoryStorage.stop("b2", 37.93f, 23.70f, 300),
+        MemoryStorage.stop("b3", 37.94f, 23.70f, 600)},
+        new int[] {490, 500, 530});
+    storage.addRoute("c", new Stop[] {
+        MemoryStorage.stop("c1", 37.90f, 23.7001f, 0),
+        MemoryStorage.stop("c2", 37.94f, 23.7001f, 3000)},
+        new int[] {485});
+    routeManager = new RouteManager(storage);
+  }
+  
+  private OTPRequest request(int hour, int minute) {
+    OTPRequest request = new OTPRequest();
+    request.setFromPlace(new Point2D(37.90f, 23.70f));
+    request.setToPlace(new Point2D(37.94f, 23.70f));
+    Calendar cal = new GregorianCalendar(2013, Calendar.MARCH, 4, hour, minute);
+    request.setDate(cal.getTime());
+    return request;
+  }
+  
+  private static String labels(Plan[] plans) {
+    StringBuilder buf = new StringBuilder();
+    for( Plan plan: plans ) {
+      if ( buf.length() > 0 )
+        buf.append( ", ");
+      buf.append(plan.getLabel());
+    }
+    return buf.toString();
+  }
+  
+  /** The earliest arrival time of a set of plans, or -1 if there are no plans. */
+  private static int earliestArrival(Plan[] plans) {
+    int arrival = -1;
+    for( Plan plan: plans ) {
+      if ( arrival < 0 || plan.getArrivalTime() < arrival )
+        arrival = plan.getArrivalTime();
+    }
+    return arrival;
+  }
+  
+  @Test public void departAt() {
+    ConnectionScanPlanner planner = new ConnectionScanPlanner(routeManager);
+    Plan[] plans = planner.plan(request(7, 55));
+    Assert.assertEquals("A -> B", labels(plans));
+    Assert.assertEquals(8*3600 + 30*60, plans[0].getArrivalTime());
+  }
+  
+  @Test public void constraints() {
+    ConnectionScanPlanner planner = new ConnectionScanPlanner(routeManager);
+    OTPRequest request = request(7, 55);
+    request.setMinTransferTime(900);
+    Assert.assertEquals("C", labels(planner.plan(request)));
+    request.setMaxTransfers(1);
+    request.getBannedAgencies().add("test");
+    Assert.assertEquals("", labels(planner.plan(request)));
+  }
+  
+  /** The connection scan should find the same earliest arrival as RAPTOR. */
+  @Test public void raptorParity() {
+    ConnectionScanPlanner csa = new ConnectionScanPlanner(routeManager);
+    RaptorPlanner raptor = new RaptorPlanner(routeManager);
+    for( int minute = 7*60 + 30; minute <= 9*60; minute += 5 ) {
+      OTPRequest request = request(minute / 60, minute % 60);
+      Assert.assertEquals("departure " + minute,
+          earliestArrival(raptor.plan(request)),
+          earliestArrival(csa.plan(request)));
+      request.setMinTransferTime(900);
+      Assert.assertEquals("departure " + minute + ", minTransferTime",
+          earliestArrival(raptor.plan(request)),
+          earliestArrival(csa.plan(request)));
+    }
+  }
+}
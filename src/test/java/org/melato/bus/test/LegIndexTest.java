@@ -0,0 +1,102 @@
+/*-------------------------------------------------------------------------
+ * Copyright (c) 2012,2013, Alex Athanasopoulos.  All Rights Reserved.
+ * alex@melato.org
+ *-------------------------------------------------------------------------
+ * This file is part of Athens Next Bus
+ *
+ * Athens Next Bus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Athens Next Bus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Athens Next Bus.  If not, see <http://www.gnu.org/licenses/>.
+ *-------------------------------------------------------------------------
+ */
+package org.melato.bus.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.melato.bus.model.RouteId;
+import org.melato.bus.model.RouteManager;
+import org.melato.bus.model.Stop;
+import org.melato.bus.model.SymbolTable;
+import org.melato.bus.plan.RouteLeg;
+
+public class LegIndexTest {
+  private static Stop[] stops(String... symbols) {
+    Stop[] stops = new Stop[symbols.length];
+    for( int i = 0; i < stops.length; i++ ) {
+      stops[i] = MemoryStorage.stop(symbols[i], 37.9f + i * 0.001f, 23.7f, i * 60);
+    }
+    return stops;
+  }
+  
+  @Test public void legs() {
+    MemoryStorage storage = new MemoryStorage();
+    storage.addRoute("a", stops("1", "2", "3", "4"), new int[] {480});
+    storage.addRoute("b", stops("3", "4", "1", "5"), new int[] {480});
+    storage.addRoute("c", stops("1", "2", "1", "2"), new int[] {480});
+    RouteManager routeManager = new RouteManager(storage);
+    Assert.assertEquals(3, routeManager.getLegsBetween("1", "2").size());
+    Assert.assertFalse(routeManager.hasLegIndex());
+    routeManager.getLegIndex();
+    Assert.assertTrue(routeManager.hasLegIndex());
+    String[] symbols = { "1", "2", "3", "4", "5", "6" };
+    for( String s1: symbols ) {
+      for( String s2: symbols ) {
+        List<RouteLeg> legs = routeManager.getLegsBetween(s1, s2);
+        List<RouteLeg> expected = storage.loadLegsBetween(s1, s2);
+        Assert.assertEquals(s1 + "-" + s2, expected.size(), legs.size());
+        for( int i = 0; i < legs.size(); i++ ) {
+          Assert.assertEquals(expected.get(i).getRouteId(), legs.get(i).getRouteId());
+          Assert.assertSame(expected.get(i).getStop1(), legs.get(i).getStop1());
+          Assert.assertSame(expected.get(i).getStop2(), legs.get(i).getStop2());
+        }
+      }
+    }
+    Assert.assertEquals(3, routeManager.getLegsBetween("1", "2").size());
+    Assert.assertSame(routeManager.getLegsBetween("3", "4"), routeManager.getLegsBetween("3", "4"));
+  }
+  
+  @Test public void findLegs() {
+    List<RouteLeg> legs = new ArrayList<RouteLeg>();
+    Stop[] stops = stops("1", "2", "1", "1", "2");
+    RouteLeg.findLegs(new RouteId("a", "1"), Arrays.asList(stops), "1", "2", legs);
+    Assert.assertEquals(3, legs.size());
+    Assert.assertSame(stops[1], legs.get(0).getStop2());
+    Assert.assertSame(stops[2], legs.get(1).getStop1());
+    Assert.assertSame(stops[4], legs.get(2).getStop2());
+  }
+
+  @Test public void symbols() {
+    MemoryStorage storage = new MemoryStorage();
+    storage.addRoute("a", stops("1", "2", "3"), new int[] {480});
+    storage.addRoute("b", stops("3", "4"), new int[] {480});
+    RouteManager routeManager = new RouteManager(storage);
+    SymbolTable table = routeManager.getSymbolTable();
+    Assert.assertEquals(2, table.getRouteCount());
+    Assert.assertEquals(4, table.getSymbolCount());
+    RouteId b = new RouteId("b", "1");
+    int route = table.getRouteIndex(b);
+    Assert.assertEquals(b, table.getRouteId(route));
+    Assert.assertEquals(-1, table.getRouteIndex(new RouteId("c", "1")));
+    int[] symbols = table.getStopSymbols(route);
+    Assert.assertEquals("3", table.getSymbol(symbols[0]));
+    Assert.assertEquals(table.getSymbolIndex("3"), table.getStopSymbols(table.getRouteIndex(new RouteId("a", "1")))[2]);
+    Assert.assertEquals(-1, table.getSymbolIndex("5"));
+    Assert.assertEquals("4", routeManager.getStops(route)[1].getSymbol());
+    Assert.assertEquals(b, routeManager.getRoute(route).getRouteId());
+    Assert.assertEquals(1, routeManager.getLegIndex().getLegs(symbols[0], symbols[1]).size());
+  }
+}
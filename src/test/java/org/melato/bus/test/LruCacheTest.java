@@ -0,0 +1,116 @@
+/*-------------------------------------------------------------------------
+ * Copyright (c) 2012,2013, Alex Athanasopoulos.  All Rights Reserved.
+ * alex@melato.org
+ *-------------------------------------------------------------------------
+ * This file is part of Athens Next Bus
+ *
+ * Athens Next Bus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Athens Next Bus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Athens Next Bus.  If not, see <http://www.gnu.org/licenses/>.
+ *-------------------------------------------------------------------------
+ */
+package org.melato.bus.test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.melato.bus.model.cache.LruCache;
+
+public class LruCacheTest {
+  @Test public void evictsLeastRecentlyUsed() {
+    LruCache<String,Integer> cache = new LruCache<String,Integer>(2);
+    cache.put("a", 1);
+    cache.put("b", 2);
+    Assert.assertEquals(Integer.valueOf(1), cache.get("a"));
+    cache.put("c", 3);
+    Assert.assertNull(cache.get("b"));
+    Assert.assertEquals(Integer.valueOf(1), cache.get("a"));
+    Assert.assertEquals(Integer.valueOf(3), cache.get("c"));
+    Assert.assertEquals(1, cache.getEvictions());
+  }
+  @Test public void counters() {
+    LruCache<String,Integer> cache = new LruCache<String,Integer>(10);
+    cache.put("a", 1);
+    cache.get("a");
+    cache.get("a");
+    cache.get("b");
+    Assert.assertEquals(2, cache.getHits());
+    Assert.assertEquals(1, cache.getMisses());
+  }
+  @Test public void shrink() {
+    LruCache<String,Integer> cache = new LruCache<String,Integer>(10);
+    for( int i = 0; i < 10; i++ ) {
+      cache.put(String.valueOf(i), i);
+    }
+    cache.setCapacity(4);
+    Assert.assertEquals(4, cache.size());
+    Assert.assertEquals(Integer.valueOf(9), cache.get("9"));
+    Assert.assertNull(cache.get("0"));
+  }
+  @Test public void singleLoad() throws InterruptedException {
+    final LruCache<String,Integer> cache = new LruCache<String,Integer>(10);
+    final AtomicInteger loads = new AtomicInteger();
+    final CountDownLatch start = new CountDownLatch(1);
+    final LruCache.Loader<String,Integer> loader = new LruCache.Loader<String,Integer>() {
+      @Override
+      public Integer load(String key) {
+        loads.incrementAndGet();
+        try {
+          Thread.sleep(50);
+        } catch (InterruptedException e) {
+        }
+        return key.length();
+      }
+    };
+    Thread[] threads = new Thread[8];
+    final AtomicIntegerArray results = new AtomicIntegerArray(threads.length);
+    for( int i = 0; i < threads.length; i++ ) {
+      final int index = i;
+      threads[i] = new Thread() {
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+          }
+          results.set(index, cache.get("abc", loader));
+        }
+      };
+      threads[i].start();
+    }
+    start.countDown();
+    for( Thread thread: threads ) {
+      thread.join();
+    }
+    Assert.assertEquals(1, loads.get());
+    for( int i = 0; i < threads.length; i++ ) {
+      Assert.assertEquals(3, results.get(i));
+    }
+  }
+  @Test public void batchEviction() {
+    LruCache<Integer,Integer> cache = new LruCache<Integer,Integer>(64);
+    for( int i = 0; i < 64; i++ ) {
+      cache.put(i, i);
+    }
+    cache.get(0);
+    cache.put(64, 64);
+    // evicts a batch of the oldest entries, but not the recently read one.
+    Assert.assertEquals(60, cache.size());
+    Assert.assertEquals(5, cache.getEvictions());
+    Assert.assertNotNull(cache.get(0));
+    Assert.assertNull(cache.get(1));
+    Assert.assertNotNull(cache.get(64));
+  }
+}
@@ -0,0 +1,189 @@
+/*-------------------------------------------------------------------------
+ * Copyright (c) 2012,2013, Alex Athanasopoulos.  All Rights Reserved.
+ * alex@melato.org
+ *-------------------------------------------------------------------------
+ * This file is part of Athens Next Bus
+ *
+ * Athens Next Bus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Athens Next Bus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Athens Next Bus.  If not, see <http://www.gnu.org/licenses/>.
+ *-------------------------------------------------------------------------
+ */
+package org.melato.bus.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.melato.bus.model.AbstractRouteStorage;
+import org.melato.bus.model.DaySchedule;
+import org.melato.bus.model.Municipality;
+import org.melato.bus.model.RStop;
+import org.melato.bus.model.Route;
+import org.melato.bus.model.RouteId;
+import org.melato.bus.model.RouteStopCallback;
+import org.melato.bus.model.Schedule;
+import org.melato.bus.model.ScheduleId;
+import org.melato.bus.model.Stop;
+import org.melato.bus.plan.RouteLeg;
+import org.melato.gps.Point2D;
+
+/** A small in-memory RouteStorage, for tests. */
+public class MemoryStorage extends AbstractRouteStorage {
+  private List<Route> routes = new ArrayList<Route>();
+  private Map<RouteId,Route> routeMap = new HashMap<RouteId,Route>();
+  private Map<RouteId,List<Stop>> stops = new HashMap<RouteId,List<Stop>>();
+  private Map<RouteId,Schedule> schedules = new HashMap<RouteId,Schedule>();
+  private int scheduleLoads;
+  private int daySchedulesLoads;
+  private Map<String,String> properties = new HashMap<String,String>();
+
+  public static Stop stop(String symbol, float lat, float lon, int seconds) {
+    Stop stop = new Stop(lat, lon);
+    stop.setSymbol(symbol);
+    stop.setName("stop " + symbol);
+    stop.setTime(seconds * 1000L);
+    return stop;
+  }
+  
+  /**
+   * Add a route that runs every day.
+   * @param name The route name.
+   * @param stops The route stops, in order.
+   * @param times The start times, in minutes from midnight.
+   */
+  public Route addRoute(String name, Stop[] stops, int[] times) {
+    Route route = new Route();
+    RouteId routeId = new RouteId(name, "1");
+    route.setRouteId(routeId);
+    route.setLabel(name.toUpperCase());
+    route.setTitle("route " + name);
+    route.setAgencyName("test");
+    for( int i = 0; i < stops.length; i++ ) {
+      stops[i].setIndex(i);
+    }
+    routes.add(route);
+    routeMap.put(routeId, route);
+    this.stops.put(routeId, Arrays.asList(stops));
+    DaySchedule day = new DaySchedule(times, ScheduleId.forWeek(DaySchedule.EVERYDAY));
+    schedules.put(routeId, new Schedule(new DaySchedule[] {day}));
+    return route;
+  }
+
+  @Override
+  public List<Route> loadRoutes() {
+    return routes;
+  }
+
+  @Override
+  public Route loadRoute(RouteId routeId) {
+    return routeMap.get(routeId);
+  }
+
+  @Override
+  public Schedule loadSchedule(RouteId routeId) {
+    scheduleLoads++;
+    return schedules.get(routeId);
+  }
+  
+  public void setProperty(String name, String value) {
+    properties.put(name, value);
+  }
+  
+  @Override
+  public String getProperty(String name, String defaultValue) {
+    String value = properties.get(name);
+    return value != null ? value : defaultValue;
+  }
+  
+  /** Resolves the days from the stored schedules, as a single call, like a database query. */
+  @Override
+  public Map<RouteId,DaySchedule> loadDaySchedules(Collection<RouteId> routeIds, Date date) {
+    daySchedulesLoads++;
+    Map<RouteId,DaySchedule> result = new HashMap<RouteId,DaySchedule>();
+    for( RouteId routeId: routeIds ) {
+      Schedule schedule = schedules.get(routeId);
+      DaySchedule day = schedule != null ? schedule.getSchedule(date) : null;
+      if ( day != null ) {
+        result.put(routeId, day);
+      }
+    }
+    return result;
+  }
+  
+  /** The number of loadDaySchedules() calls so far. */
+  public int getDaySchedulesLoads() {
+    return daySchedulesLoads;
+  }
+  
+  /** The number of loadSchedule() calls so far. */
+  public int getScheduleLoads() {
+    return scheduleLoads;
+  }
+
+  @Override
+  public List<Stop> loadStops(RouteId routeId) {
+    return stops.get(routeId);
+  }
+
+  @Override
+  public void iterateNearbyStops(Point2D point, float latitudeDifference,
+      float longitudeDifference, Collection<RStop> collector) {
+    for( Route route: routes ) {
+      for( Stop stop: stops.get(route.getRouteId())) {
+        if ( Math.abs(stop.getLat() - point.getLat()) <= latitudeDifference
+            && Math.abs(stop.getLon() - point.getLon()) <= longitudeDifference ) {
+          collector.add(new RStop(route.getRouteId(), stop));
+        }
+      }
+    }
+  }
+
+  @Override
+  public void iterateAllRouteStops(RouteStopCallback callback) {
+    for( Route route: routes ) {
+      callback.add(route.getRouteId(), new ArrayList<Point2D>(stops.get(route.getRouteId())));
+    }
+  }
+
+  @Override
+  public void iteratePrimaryRouteStops(RouteStopCallback callback) {
+  }
+
+  @Override
+  public void iterateNearbyRoutes(Point2D point, float latitudeDifference,
+      float longitudeDifference, Collection<RouteId> collector) {
+  }
+
+  @Override
+  public List<RouteLeg> loadLegsBetween(String stop1, String stop2) {
+    List<RouteLeg> legs = new ArrayList<RouteLeg>();
+    for( Route route: routes ) {
+      RouteLeg.findLegs(route.getRouteId(), stops.get(route.getRouteId()), stop1, stop2, legs);
+    }
+    return legs;
+  }
+
+  @Override
+  public String loadAgencyName(RouteId route) {
+    return routeMap.get(route).getAgencyName();
+  }
+
+  @Override
+  public Municipality loadMunicipality(String stop) {
+    return null;
+  }
+}
@@ -0,0 +1,61 @@
+/*-------------------------------------------------------------------------
+ * Copyright (c) 2012,2013, Alex Athanasopoulos.  All Rights Reserved.
+ * alex@melato.org
+ *-------------------------------------------------------------------------
+ * This file is part of Athens Next Bus
+ *
+ * Athens Next Bus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Athens Next Bus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Athens Next Bus.  If not, see <http://www.gnu.org/licenses/>.
+ *-------------------------------------------------------------------------
+ */
+package org.melato.bus.test;
+
+import org.melato.bus.model.ProjectedMetric;
+import org.melato.gps.GlobalDistance;
+import org.melato.gps.Metric;
+import org.melato.gps.Point2D;
+
+/**
+ * Compares the speed of the projected metric with the great-circle distance.
+ * It is not a unit test, because timings depend on the host, so it is run by hand.
+ * @author Alex Athanasopoulos
+ */
+public class MetricBenchmark {
+  private static long time(Metric metric, Point2D[] points, int rounds) {
+    float sum = 0;
+    long start = System.nanoTime();
+    for( int r = 0; r < rounds; r++ ) {
+      for( int i = 1; i < points.length; i++ ) {
+        sum += metric.distance(points[i-1], points[i]);
+      }
+    }
+    long time = System.nanoTime() - start;
+    if ( sum <= 0 ) {
+      throw new IllegalStateException();
+    }
+    return time;
+  }
+  
+  public static void main(String[] args) {
+    Metric projected = new ProjectedMetric(MetricTest.CENTER);
+    Metric global = new GlobalDistance();
+    Point2D[] points = MetricTest.randomPoints(10000);
+    // warm up
+    time(projected, points, 5);
+    time(global, points, 5);
+    long projectedTime = time(projected, points, 20);
+    long globalTime = time(global, points, 20);
+    System.out.println("projected: " + projectedTime / 1000000 + " ms");
+    System.out.println("global: " + globalTime / 1000000 + " ms");
+  }
+}
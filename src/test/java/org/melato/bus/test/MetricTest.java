@@ -0,0 +1,58 @@
+/*-------------------------------------------------------------------------
+ * Copyright (c) 2012,2013, Alex Athanasopoulos.  All Rights Reserved.
+ * alex@melato.org
+ *-------------------------------------------------------------------------
+ * This file is part of Athens Next Bus
+ *
+ * Athens Next Bus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Athens Next Bus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Athens Next Bus.  If not, see <http://www.gnu.org/licenses/>.
+ *-------------------------------------------------------------------------
+ */
+package org.melato.bus.test;
+
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.melato.bus.model.ProjectedMetric;
+import org.melato.gps.GlobalDistance;
+import org.melato.gps.Metric;
+import org.melato.gps.Point2D;
+
+public class MetricTest {
+  static final Point2D CENTER = new Point2D(37.975086f, 23.735683f);
+  
+  static Point2D[] randomPoints(int n) {
+    Random random = new Random(1);
+    Point2D[] points = new Point2D[n];
+    for( int i = 0; i < n; i++ ) {
+      points[i] = new Point2D(CENTER.getLat() + (random.nextFloat() - 0.5f) * 0.2f,
+          CENTER.getLon() + (random.nextFloat() - 0.5f) * 0.2f);
+    }
+    return points;
+  }
+  
+  @Test public void accuracy() {
+    ProjectedMetric metric = new ProjectedMetric(CENTER);
+    Metric global = new GlobalDistance();
+    Point2D[] points = randomPoints(200);
+    for( int i = 1; i < points.length; i++ ) {
+      float expected = global.distance(points[i-1], points[i]);
+      float d = metric.distance(points[i-1], points[i]);
+      // within 0.5% inside a 20 Km area.
+      Assert.assertEquals(expected, d, 1f + expected * 0.005f);
+      Assert.assertEquals(d * d, metric.distanceSquared(points[i-1], points[i]), d * d * 0.0001f);
+    }
+  }
+}
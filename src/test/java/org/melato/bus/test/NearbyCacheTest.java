@@ -0,0 +1,189 @@
+/*-------------------------------------------------------------------------
+ * Copyright (c) 2012,2013, Alex Athanasopoulos.  All Rights Reserved.
+ * alex@melato.org
+ *-------------------------------------------------------------------------
+ * This file is part of Athens Next Bus
+ *
+ * Athens Next Bus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Athens Next Bus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Athens Next Bus.  If not, see <http://www.gnu.org/licenses/>.
+ *-------------------------------------------------------------------------
+ */
+package org.melato.bus.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.melato.bus.client.NearbyManager;
+import org.melato.bus.client.NearbyStop;
+import org.melato.bus.model.RStop;
+import org.melato.bus.model.RouteManager;
+import org.melato.bus.model.RouteStorage;
+import org.melato.bus.model.Stop;
+import org.melato.gps.Point2D;
+
+public class NearbyCacheTest {
+  private static File createDir() throws IOException {
+    File dir = File.createTempFile("nearby", "");
+    dir.delete();
+    dir.mkdir();
+    dir.deleteOnExit();
+    return dir;
+  }
+  
+  private static RouteManager createRouteManager() {
+    MemoryStorage storage = new MemoryStorage();
+    storage.addRoute("a", new Stop[] {
+        MemoryStorage.stop("1", 38f, 23.70f, 0),
+        MemoryStorage.stop("2", 38f, 23.701f, 60),
+        MemoryStorage.stop("3", 38f, 23.75f, 120),
+    }, new int[] { 360 });
+    storage.addRoute("b", new Stop[] {
+        MemoryStorage.stop("4", 38.001f, 23.70f, 0),
+    }, new int[] { 400 });
+    return new RouteManager(storage);
+  }
+  
+  @Test public void cache() throws IOException {
+    File dir = createDir();
+    RouteManager routeManager = createRouteManager();
+    NearbyManager nearby = new NearbyManager(routeManager, dir);
+    Assert.assertNull(nearby.getLastLocation());
+    Point2D location = new Point2D(38f, 23.7f);
+    RStop[] stops = nearby.getNearbyWaypoints(location);
+    Assert.assertEquals(3, stops.length);
+    File file = new File(dir, "nearby.dat");
+    Assert.assertTrue(file.exists());
+    file.deleteOnExit();
+    Point2D last = nearby.getLastLocation();
+    Assert.assertEquals(38f, last.getLat());
+    Assert.assertEquals(23.7f, last.getLon());
+    
+    // read the cache, with a new manager.
+    NearbyManager nearby2 = new NearbyManager(routeManager, dir);
+    RStop[] cached = nearby2.getNearbyWaypoints(new Point2D(38f, 23.7001f));
+    Assert.assertEquals(stops.length, cached.length);
+    for( int i = 0; i < stops.length; i++ ) {
+      Assert.assertEquals(stops[i].getRouteId(), cached[i].getRouteId());
+      Assert.assertSame(stops[i].getStop(), cached[i].getStop());
+    }
+  }
+  
+  @Test public void otherDatabase() throws IOException {
+    File dir = createDir();
+    new File(dir, "nearby.dat").deleteOnExit();
+    Point2D location = new Point2D(38f, 23.7f);
+    Assert.assertEquals(3, new NearbyManager(createRouteManager(), dir).getNearbyWaypoints(location).length);
+    // the same number of routes, but route b is replaced by a far route.
+    MemoryStorage storage = new MemoryStorage();
+    storage.addRoute("a", new Stop[] {
+        MemoryStorage.stop("1", 38f, 23.70f, 0),
+        MemoryStorage.stop("2", 38f, 23.701f, 60),
+        MemoryStorage.stop("3", 38f, 23.75f, 120),
+    }, new int[] { 360 });
+    storage.addRoute("c", new Stop[] {
+        MemoryStorage.stop("5", 38.5f, 23.70f, 0),
+    }, new int[] { 400 });
+    RStop[] stops = new NearbyManager(new RouteManager(storage), dir).getNearbyWaypoints(location);
+    Assert.assertEquals(2, stops.length);
+    Assert.assertEquals("a", stops[1].getRouteId().getName());
+    // the same routes, with a new stop, in a new version of the database.
+    storage = new MemoryStorage();
+    storage.setProperty(RouteStorage.PROPERTY_VERSION, "2");
+    storage.addRoute("a", new Stop[] {
+        MemoryStorage.stop("1", 38f, 23.70f, 0),
+        MemoryStorage.stop("2", 38f, 23.701f, 60),
+        MemoryStorage.stop("3", 38f, 23.75f, 120),
+    }, new int[] { 360 });
+    storage.addRoute("c", new Stop[] {
+        MemoryStorage.stop("6", 38.001f, 23.70f, 0),
+    }, new int[] { 400 });
+    stops = new NearbyManager(new RouteManager(storage), dir).getNearbyWaypoints(location);
+    Assert.assertEquals(3, stops.length);
+    Assert.assertEquals("6", stops[2].getStop().getSymbol());
+  }
+  
+  @Test public void concurrentWrites() throws Exception {
+    File dir = createDir();
+    final NearbyManager nearby = new NearbyManager(createRouteManager(), dir);
+    Thread[] threads = new Thread[4];
+    for( int i = 0; i < threads.length; i++ ) {
+      final float lon = 23.7f + i * 0.01f;
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          for( int j = 0; j < 20; j++ ) {
+            nearby.getNearbyWaypoints(new Point2D(38f, lon + j * 0.003f));
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for( Thread thread: threads ) {
+      thread.join();
+    }
+    String[] files = dir.list();
+    for( String name: files ) {
+      new File(dir, name).deleteOnExit();
+    }
+    // no temporary files are left, and the file is valid.
+    Assert.assertEquals(1, files.length);
+    Assert.assertEquals("nearby.dat", files[0]);
+    Assert.assertNotNull(new NearbyManager(createRouteManager(), dir).getLastLocation());
+  }
+  
+  @Test public void invalid() throws IOException {
+    File dir = createDir();
+    File file = new File(dir, "nearby.dat");
+    file.deleteOnExit();
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(new byte[] { 1, 2, 3 });
+    out.close();
+    NearbyManager nearby = new NearbyManager(createRouteManager(), dir);
+    Assert.assertNull(nearby.getLastLocation());
+    Assert.assertEquals(3, nearby.getNearbyWaypoints(new Point2D(38f, 23.7f)).length);
+    Assert.assertNotNull(nearby.getLastLocation());
+  }
+
+  @Test public void memory() {
+    NearbyManager nearby = new NearbyManager(createRouteManager());
+    Assert.assertEquals(3, nearby.getNearbyWaypoints(new Point2D(38f, 23.7f)).length);
+    RStop[] stops = nearby.getNearbyWaypoints(new Point2D(38f, 23.7002f));
+    Assert.assertEquals(3, stops.length);
+    Assert.assertEquals(1, nearby.getCellCache().getHits());
+    Assert.assertTrue(stops[0].getDistance() <= stops[1].getDistance());
+    // a large distance is not cached.
+    Assert.assertEquals(4, nearby.getNearbyWaypoints(new Point2D(38f, 23.7f), 5000f).length);
+    Assert.assertEquals(1, nearby.getCellCache().size());
+    // a far location is another cell.
+    Assert.assertEquals(1, nearby.getNearbyWaypoints(new Point2D(38f, 23.76f)).length);
+    Assert.assertEquals(2, nearby.getCellCache().size());
+  }
+
+  @Test public void groups() {
+    NearbyManager nearby = new NearbyManager(createRouteManager());
+    // stops 1 and 2 of route a are consecutive, so they form one group, represented by stop 1.
+    NearbyStop[] stops = nearby.getNearby(new Point2D(38f, 23.7f));
+    Assert.assertEquals(2, stops.length);
+    Assert.assertEquals("1", stops[0].getRStop().getStop().getSymbol());
+    Assert.assertEquals(0f, stops[0].getRStop().getDistance(), 0.1f);
+    Assert.assertEquals("4", stops[1].getRStop().getStop().getSymbol());
+    Assert.assertEquals("b", stops[1].getRoute().getRouteId().getName());
+    // from nearer to stop 2, stop 2 represents the group.
+    stops = nearby.getNearby(new Point2D(38f, 23.7012f));
+    Assert.assertEquals("2", stops[0].getRStop().getStop().getSymbol());
+  }
+}
@@ -0,0 +1,178 @@
+/*-------------------------------------------------------------------------
+ * Copyright (c) 2012,2013, Alex Athanasopoulos.  All Rights Reserved.
+ * alex@melato.org
+ *-------------------------------------------------------------------------
+ * This file is part of Athens Next Bus
+ *
+ * Athens Next Bus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Athens Next Bus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Athens Next Bus.  If not, see <http://www.gnu.org/licenses/>.
+ *-------------------------------------------------------------------------
+ */
+package org.melato.bus.test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.melato.bus.otp.OTP;
+import org.melato.bus.otp.OTPClient;
+import org.melato.bus.otp.OTPRequest;
+import org.melato.gps.Point2D;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class OTPClientTest {
+  /** A local OTP server that replies with an empty plan, after a gate opens. */
+  static class StubServer implements HttpHandler {
+    HttpServer server;
+    AtomicInteger requests = new AtomicInteger();
+    CountDownLatch gate = new CountDownLatch(0);
+    
+    StubServer() throws IOException {
+      server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+      server.createContext("/plan", this);
+      server.start();
+    }
+    
+    String getUrl() {
+      return "http://127.0.0.1:" + server.getAddress().getPort() + "/plan";
+    }
+    
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      requests.incrementAndGet();
+      try {
+        gate.await(5, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+      }
+      byte[] body = "{}".getBytes("UTF-8");
+      exchange.sendResponseHeaders(200, body.length);
+      OutputStream out = exchange.getResponseBody();
+      out.write(body);
+      out.close();
+    }
+    
+    void stop() {
+      server.stop(0);
+    }
+  }
+  
+  private static OTPRequest request(float lat) {
+    OTPRequest request = new OTPRequest();
+    request.setFromPlace(new Point2D(lat, 23.7f));
+    request.setToPlace(new Point2D(38f, 23.8f));
+    return request;
+  }
+  
+  @Test public void plan() throws Exception {
+    StubServer server = new StubServer();
+    try {
+      OTPClient client = new OTPClient(server.getUrl());
+      OTP.Plan plan = client.plan(request(38f));
+      Assert.assertNotNull(plan);
+      Assert.assertEquals(0, plan.itineraries.length);
+      client.plan(request(38f));
+      Assert.assertEquals(2, server.requests.get());
+    } finally {
+      server.stop();
+    }
+  }
+  
+  @Test public void coalesce() throws Exception {
+    StubServer server = new StubServer();
+    server.gate = new CountDownLatch(1);
+    try {
+      OTPClient client = new OTPClient(server.getUrl());
+      Future<OTP.Plan> a = client.planAsync(request(38f));
+      Future<OTP.Plan> b = client.planAsync(request(38f));
+      Future<OTP.Plan> c = client.planAsync(request(38.1f));
+      Assert.assertNotSame(a, b);
+      server.gate.countDown();
+      Assert.assertSame(a.get(), b.get());
+      Assert.assertNotNull(c.get());
+      Assert.assertEquals(2, server.requests.get());
+    } finally {
+      server.stop();
+    }
+  }
+  
+  @Test public void cancel() throws Exception {
+    StubServer server = new StubServer();
+    server.gate = new CountDownLatch(1);
+    try {
+      OTPClient client = new OTPClient(server.getUrl());
+      Future<OTP.Plan> a = client.planAsync(request(38f));
+      Future<OTP.Plan> b = client.planAsync(request(38f));
+      Assert.assertTrue(a.cancel(true));
+      Assert.assertTrue(a.isCancelled());
+      Assert.assertFalse(b.isCancelled());
+      try {
+        a.get();
+        Assert.fail();
+      } catch( CancellationException e ) {
+      }
+      server.gate.countDown();
+      Assert.assertNotNull(b.get());
+      Assert.assertEquals(1, server.requests.get());
+    } finally {
+      server.stop();
+    }
+  }
+  
+  @Test public void cancelAll() throws Exception {
+    StubServer server = new StubServer();
+    server.gate = new CountDownLatch(1);
+    try {
+      OTPClient client = new OTPClient(server.getUrl());
+      Future<OTP.Plan> a = client.planAsync(request(38f));
+      Future<OTP.Plan> b = client.planAsync(request(38f));
+      a.cancel(true);
+      b.cancel(true);
+      // the cancelled request is not shared with new callers.
+      Future<OTP.Plan> c = client.planAsync(request(38f));
+      server.gate.countDown();
+      Assert.assertNotNull(c.get());
+      Assert.assertFalse(c.isCancelled());
+    } finally {
+      server.stop();
+    }
+  }
+  
+  @Test public void timeout() throws Exception {
+    StubServer server = new StubServer();
+    server.gate = new CountDownLatch(1);
+    try {
+      OTPClient client = new OTPClient(server.getUrl());
+      client.setReadTimeout(100);
+      try {
+        client.plan(request(38f));
+        Assert.fail();
+      } catch( SocketTimeoutException e ) {
+      }
+    } finally {
+      server.gate.countDown();
+      server.stop();
+    }
+  }
+}
@@ -0,0 +1,74 @@
+/*-------------------------------------------------------------------------
+ * Copyright (c) 2012,2013, Alex Athanasopoulos.  All Rights Reserved.
+ * alex@melato.org
+ *-------------------------------------------------------------------------
+ * This file is part of Athens Next Bus
+ *
+ * Athens Next Bus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Athens Next Bus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Athens Next Bus.  If not, see <http://www.gnu.org/licenses/>.
+ *-------------------------------------------------------------------------
+ */
+package org.melato.bus.test;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.melato.bus.model.RouteId;
+import org.melato.bus.model.cache.GpsRectangle;
+import org.melato.bus.model.cache.PackedRoutePoints;
+import org.melato.bus.model.cache.RoutePoints;
+import org.melato.gps.Point2D;
+
+public class PackedRoutePointsTest {
+  @Test public void pack() {
+    PackedRoutePoints packed = new PackedRoutePoints(2);
+    RouteId a = new RouteId("A", "1");
+    RouteId b = new RouteId("B", "1");
+    packed.add(a, Arrays.asList(new Point2D(38f, 23f), new Point2D(38.1f, 23.1f)));
+    float[] lat = { 39f, 39.1f, 39.2f, 0f };
+    float[] lon = { 24f, 24.1f, 24.2f, 0f };
+    packed.add(b, lat, lon, 3);
+    Assert.assertEquals(2, packed.getRouteCount());
+    Assert.assertEquals(5, packed.getPointCount());
+    Map<RouteId,RoutePoints> map = packed.getMap();
+    RoutePoints pb = map.get(b);
+    Assert.assertEquals(3, pb.size());
+    Assert.assertEquals(39.2f, pb.getLat(2));
+    Assert.assertEquals(24.1f, pb.getLon(1));
+    Assert.assertEquals(39.1f, pb.getCenter().getLat(), 0.0001f);
+    RoutePoints pa = map.get(a);
+    Assert.assertEquals(2, pa.size());
+    Assert.assertEquals(38.1f, pa.getLat(1));
+    GpsRectangle r = new GpsRectangle();
+    r.latMin = 39.05f;
+    r.latMax = 39.15f;
+    r.lonMin = 24f;
+    r.lonMax = 25f;
+    Assert.assertFalse(pb.isInside(0, r));
+    Assert.assertTrue(pb.isInside(1, r));
+  }
+  
+  @Test public void sealed() {
+    PackedRoutePoints packed = new PackedRoutePoints();
+    packed.add(new RouteId("A", "1"), new float[] { 1f }, new float[] { 2f }, 1);
+    packed.getRoutePoints(0);
+    try {
+      packed.add(new RouteId("B", "1"), new float[] { 1f }, new float[] { 2f }, 1);
+      Assert.fail();
+    } catch( IllegalStateException e ) {
+    }
+  }
+}
@@ -0,0 +1,134 @@
+/*-------------------------------------------------------------------------
+ * Copyright (c) 2012,2013, Alex Athanasopoulos.  All Rights Reserved.
+ * alex@melato.org
+ *-------------------------------------------------------------------------
+ * This file is part of Athens Next Bus
+ *
+ * Athens Next Bus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Athens Next Bus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Athens Next Bus.  If not, see <http://www.gnu.org/licenses/>.
+ *-------------------------------------------------------------------------
+ */
+package org.melato.bus.test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.melato.bus.model.DaySchedule;
+import org.melato.bus.model.HeadwayTimes;
+import org.melato.bus.model.PackedTimes;
+import org.melato.bus.model.ScheduleId;
+import org.melato.bus.model.TimeList;
+
+public class PackedTimesTest {
+  private static int[] randomTimes(Random random, int n) {
+    int[] times = new int[n];
+    for( int i = 0; i < n; i++ ) {
+      times[i] = 240 + random.nextInt(24 * 60);
+    }
+    if ( n > 0 ) {
+      times[n-1] = 100000; // a large gap, that needs several bytes
+    }
+    Arrays.sort(times);
+    return times;
+  }
+  
+  private static void checkSearch(int[] times, TimeList packed) {
+    int n = times.length;
+    Assert.assertEquals(n, packed.size());
+    Assert.assertTrue(Arrays.equals(times, packed.toArray()));
+    for( int i = 0; i < n; i++ ) {
+      Assert.assertEquals(times[i], packed.get(i));
+    }
+    for( int time = 200; time < 1800; time += 7 ) {
+      int expected = 0;
+      while( expected < n && times[expected] < time ) {
+        expected++;
+      }
+      Assert.assertEquals(expected, packed.findNext(time));
+      Assert.assertEquals(Arrays.binarySearch(times, time) >= 0, packed.contains(time));
+    }
+  }
+
+  @Test public void search() {
+    Random random = new Random(1);
+    for( int n: new int[] { 0, 1, 15, 16, 17, 100 } ) {
+      int[] times = randomTimes(random, n);
+      checkSearch(times, new PackedTimes(times));
+      checkSearch(times, new HeadwayTimes(times));
+    }
+  }
+  
+  /** A metro-like schedule, with a few fixed-headway runs and some extra trips. */
+  private static int[] headwayTimes() {
+    int[] times = new int[200];
+    int n = 0;
+    for( int t = 330; t < 420; t += 10 )
+      times[n++] = t;
+    times[n++] = 423;
+    for( int t = 425; t < 1200; t += 5 )
+      times[n++] = t;
+    times[n++] = 1201;
+    times[n++] = 1207;
+    for( int t = 1210; t < 1470; t += 12 )
+      times[n++] = t;
+    return Arrays.copyOf(times, n);
+  }
+  
+  @Test public void headways() {
+    int[] times = headwayTimes();
+    HeadwayTimes headways = new HeadwayTimes(times);
+    Assert.assertEquals(6, headways.getSegmentCount());
+    Assert.assertEquals(5, headways.getSegmentHeadway(2));
+    checkSearch(times, headways);
+    DaySchedule daySchedule = new DaySchedule(times.clone(), ScheduleId.forWeek(DaySchedule.EVERYDAY));
+    daySchedule.pack();
+    Assert.assertSame(HeadwayTimes.class, daySchedule.getHeadways().getClass());
+    Assert.assertTrue(Arrays.equals(times, daySchedule.getTimes()));
+  }
+  
+  @Test public void daySchedule() {
+    Random random = new Random(2);
+    int[] times = new int[50];
+    for( int i = 0, time = 300; i < times.length; i++ ) {
+      time += 1 + random.nextInt(40);
+      times[i] = time;
+    }
+    DaySchedule plain = new DaySchedule(times.clone(), ScheduleId.forWeek(DaySchedule.EVERYDAY));
+    DaySchedule packed = new DaySchedule(times.clone(), ScheduleId.forWeek(DaySchedule.EVERYDAY));
+    packed.pack();
+    Assert.assertTrue(packed.isPacked());
+    Assert.assertEquals(plain.getLastTime(), packed.getLastTime());
+    for( int time = 0; time < 1800; time += 3 ) {
+      Assert.assertEquals(plain.getNextIndex(time), packed.getNextIndex(time));
+      Assert.assertEquals(plain.getClosestIndex(time), packed.getClosestIndex(time));
+      Assert.assertEquals(plain.containsTime(time), packed.containsTime(time));
+      Assert.assertEquals(plain.findNext(time), packed.findNext(time));
+    }
+    for( int i = 0; i < times.length; i++ ) {
+      Assert.assertEquals(times[i], packed.get(i));
+      Assert.assertEquals(i, plain.findNext(times[i]));
+    }
+  }
+  
+  @Test public void intern() {
+    int[] times = { 300, 310, 320 };
+    PackedTimes.Pool pool = new PackedTimes.Pool();
+    Assert.assertSame(pool.intern(times), pool.intern(times.clone()));
+    Assert.assertNotSame(pool.intern(times), pool.intern(new int[] { 300, 310, 321 }));
+    Assert.assertEquals(2, pool.size());
+    Assert.assertNotSame(pool.intern(times), new PackedTimes.Pool().intern(times));
+  }
+}
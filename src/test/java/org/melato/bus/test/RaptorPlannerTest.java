@@ -0,0 +1,134 @@
+/*-------------------------------------------------------------------------
+ * Copyright (c) 2012,2013, Alex Athanasopoulos.  All Rights Reserved.
+ * alex@melato.org
+ *-------------------------------------------------------------------------
+ * This file is part of Athens Next Bus
+ *
+ * Athens Next Bus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Athens Next Bus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Athens Next Bus.  If not, see <http://www.gnu.org/licenses/>.
+ *-------------------------------------------------------------------------
+ */
+package org.melato.bus.test;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.melato.bus.model.RouteManager;
+import org.melato.bus.model.Stop;
+import org.melato.bus.otp.OTPRequest;
+import org.melato.bus.plan.Plan;
+import org.melato.bus.plan.RaptorPlanner;
+import org.melato.bus.plan.Timetable;
+import org.melato.bus.plan.TransitNetwork;
+import org.melato.gps.Point2D;
+
+public class RaptorPlannerTest {
+  private RouteManager routeManager;
+  
+  public RaptorPlannerTest() {
+    MemoryStorage storage = new MemoryStorage();
+    storage.addRoute("a", new Stop[] {
+        MemoryStorage.stop("a1", 37.90f, 23.70f, 0),
+        MemoryStorage.stop("a2", 37.91f, 23.70f, 300),
+        MemoryStorage.stop("x", 37.92f, 23.70f, 600)},
+        new int[] {480, 510});
+    storage.addRoute("b", new Stop[] {
+        MemoryStorage.stop("y", 37.9201f, 23.7001f, 0),
+        MemoryStorage.stop("b2", 37.93f, 23.70f, 300),
+        MemoryStorage.stop("b3", 37.94f, 23.70f, 600)},
+        new int[] {490, 500, 530});
+    storage.addRoute("c", new Stop[] {
+        MemoryStorage.stop("c1", 37.90f, 23.7001f, 0),
+        MemoryStorage.stop("c2", 37.94f, 23.7001f, 3000)},
+        new int[] {485});
+    routeManager = new RouteManager(storage);
+  }
+  
+  private OTPRequest request(int hour, int minute) {
+    OTPRequest request = new OTPRequest();
+    request.setFromPlace(new Point2D(37.90f, 23.70f));
+    request.setToPlace(new Point2D(37.94f, 23.70f));
+    Calendar cal = new GregorianCalendar(2013, Calendar.MARCH, 4, hour, minute);
+    request.setDate(cal.getTime());
+    return request;
+  }
+  
+  private static String labels(Plan[] plans) {
+    StringBuilder buf = new StringBuilder();
+    for( Plan plan: plans ) {
+      if ( buf.length() > 0 )
+        buf.append( ", ");
+      buf.append(plan.getLabel());
+    }
+    return buf.toString();
+  }
+  
+  @Test public void departAt() {
+    RaptorPlanner planner = new RaptorPlanner(routeManager);
+    Plan[] plans = planner.plan(request(7, 55));
+    Assert.assertEquals("C, A -> B", labels(plans));
+    Assert.assertEquals(8*3600 + 20*60, plans[1].getLegs()[1].getDepartureTime());
+    Assert.assertTrue(plans[1].getArrivalTime() < plans[0].getArrivalTime());
+  }
+  
+  @Test public void minTransferTime() {
+    RaptorPlanner planner = new RaptorPlanner(routeManager);
+    OTPRequest request = request(7, 55);
+    request.setMinTransferTime(900);
+    Assert.assertEquals("C", labels(planner.plan(request)));
+  }
+  
+  @Test public void bannedRoute() {
+    RaptorPlanner planner = new RaptorPlanner(routeManager);
+    OTPRequest request = request(7, 55);
+    request.getBannedRoutes().add("c");
+    Assert.assertEquals("A -> B", labels(planner.plan(request)));
+    request.setMaxTransfers(0);
+    Assert.assertEquals("", labels(planner.plan(request)));
+  }
+  
+  @Test public void arriveBy() {
+    RaptorPlanner planner = new RaptorPlanner(routeManager);
+    OTPRequest request = request(9, 0);
+    request.setArriveBy(true);
+    Plan[] plans = planner.plan(request);
+    Assert.assertEquals("C, A -> B", labels(plans));
+    Assert.assertEquals(8*3600 + 30*60, plans[1].getLegs()[0].getDepartureTime());
+    Assert.assertEquals(8*3600 + 50*60, plans[1].getLegs()[1].getDepartureTime());
+  }
+  
+  @Test public void afterMidnight() {
+    MemoryStorage storage = new MemoryStorage();
+    storage.addRoute("n", new Stop[] {
+        MemoryStorage.stop("n1", 37.90f, 23.70f, 0),
+        MemoryStorage.stop("n2", 37.91f, 23.70f, 1800)},
+        new int[] {600, 1430});
+    TransitNetwork network = new TransitNetwork(new RouteManager(storage), 200f);
+    int loads = storage.getScheduleLoads();
+    Timetable timetable = network.getTimetable(20130304);
+    // both days come from one schedule load.
+    Assert.assertEquals(loads + 1, storage.getScheduleLoads());
+    int[] times = timetable.getTimes(0);
+    Assert.assertEquals(3, times.length);
+    Assert.assertEquals(-10, times[0]);
+    Assert.assertEquals(600, times[1]);
+    Assert.assertEquals(1430, times[2]);
+    Assert.assertEquals(0, timetable.findNextTrip(0, 0, -20*60));
+    Assert.assertSame(timetable, network.getTimetable(20130304));
+    network.getTimetable(20130305);
+    Assert.assertEquals(loads + 1, storage.getScheduleLoads());
+  }
+}
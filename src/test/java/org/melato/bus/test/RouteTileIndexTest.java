@@ -0,0 +1,139 @@
+/*-------------------------------------------------------------------------
+ * Copyright (c) 2012,2013, Alex Athanasopoulos.  All Rights Reserved.
+ * alex@melato.org
+ *-------------------------------------------------------------------------
+ * This file is part of Athens Next Bus
+ *
+ * Athens Next Bus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Athens Next Bus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Athens Next Bus.  If not, see <http://www.gnu.org/licenses/>.
+ *-------------------------------------------------------------------------
+ */
+package org.melato.bus.test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.melato.bus.model.RouteId;
+import org.melato.bus.model.RouteManager;
+import org.melato.bus.model.Stop;
+import org.melato.bus.model.cache.GpsRectangle;
+import org.melato.bus.model.cache.RoutePointCache;
+import org.melato.bus.model.cache.RoutePoints;
+import org.melato.bus.model.cache.RouteTileIndex;
+import org.melato.bus.model.cache.RouteTileIndex.RouteRange;
+
+public class RouteTileIndexTest {
+  private static GpsRectangle rectangle(float latMin, float lonMin, float latMax, float lonMax) {
+    GpsRectangle r = new GpsRectangle();
+    r.latMin = latMin;
+    r.lonMin = lonMin;
+    r.latMax = latMax;
+    r.lonMax = lonMax;
+    return r;
+  }
+  
+  /** A route along a parallel, with a point every 0.001 degrees and a small zig-zag. */
+  private static RoutePoints parallel(float lat, float lon, int n) {
+    float[] lats = new float[n];
+    float[] lons = new float[n];
+    for( int i = 0; i < n; i++ ) {
+      lats[i] = lat + (i % 2) * 0.00001f;
+      lons[i] = lon + i * 0.001f;
+    }
+    return new RoutePoints(lats, lons);
+  }
+  
+  private Map<RouteId,RoutePoints> routes() {
+    Map<RouteId,RoutePoints> routes = new HashMap<RouteId,RoutePoints>();
+    routes.put(new RouteId("A", "1"), parallel(38f, 23.7f, 100));
+    routes.put(new RouteId("B", "1"), parallel(38.05f, 23.7f, 100));
+    return routes;
+  }
+
+  @Test public void find() {
+    RouteTileIndex index = new RouteTileIndex(routes());
+    Assert.assertEquals(2, index.getRouteCount());
+    // only route A, from about point 20 to point 30.
+    List<RouteRange> ranges = index.find(rectangle(37.99f, 23.7195f, 38.01f, 23.7295f), 0);
+    Assert.assertEquals(1, ranges.size());
+    RouteRange range = ranges.get(0);
+    Assert.assertEquals(new RouteId("A", "1"), range.getRouteId());
+    Assert.assertEquals(19, range.getStart());
+    Assert.assertEquals(30, range.getEnd());
+    Assert.assertEquals(19, range.getOriginalIndex(19));
+    
+    // both routes.
+    ranges = index.find(rectangle(37.9f, 23.75f, 38.1f, 23.76f), 0);
+    Assert.assertEquals(2, ranges.size());
+    Assert.assertEquals(new RouteId("B", "1"), ranges.get(1).getRouteId());
+    
+    // nothing.
+    ranges = index.find(rectangle(38.02f, 23.7f, 38.03f, 23.8f), 0);
+    Assert.assertEquals(0, ranges.size());
+  }
+  
+  @Test public void levels() {
+    RouteTileIndex index = new RouteTileIndex(routes());
+    RouteId a = new RouteId("A", "1");
+    Assert.assertEquals(100, index.getRoutePoints(a, 0).size());
+    // the zig-zag is below the tolerance, so the route becomes a straight line.
+    Assert.assertEquals(2, index.getRoutePoints(a, 1).size());
+    Assert.assertEquals(0, index.getLevel(rectangle(38f, 23.7f, 38.01f, 23.71f)));
+    Assert.assertEquals(index.getLevelCount() - 1, index.getLevel(rectangle(36f, 22f, 40f, 26f)));
+    List<RouteRange> ranges = index.find(rectangle(37.99f, 23.7195f, 38.01f, 23.7295f), 1);
+    Assert.assertEquals(1, ranges.size());
+    RouteRange range = ranges.get(0);
+    Assert.assertEquals(0, range.getStart());
+    Assert.assertEquals(1, range.getEnd());
+    Assert.assertEquals(99, range.getOriginalIndex(1));
+  }
+  
+  @Test public void incremental() {
+    Map<RouteId,RoutePoints> routes = routes();
+    RouteTileIndex index = new RouteTileIndex(routes);
+    RouteId a = new RouteId("A", "1");
+    RouteId c = new RouteId("C", "1");
+    routes.put(c, parallel(38.1f, 23.7f, 50));
+    RouteTileIndex extended = new RouteTileIndex(routes, index);
+    Assert.assertEquals(3, extended.getRouteCount());
+    // the simplified points of the existing routes are reused.
+    Assert.assertSame(index.getRoutePoints(a, 1), extended.getRoutePoints(a, 1));
+    Assert.assertEquals(2, extended.getRoutePoints(c, 1).size());
+    List<RouteRange> ranges = extended.find(rectangle(38.09f, 23.70f, 38.11f, 23.71f), 0);
+    Assert.assertEquals(1, ranges.size());
+    Assert.assertEquals(c, ranges.get(0).getRouteId());
+  }
+  
+  @Test public void cache() {
+    MemoryStorage storage = new MemoryStorage();
+    storage.addRoute("a", new Stop[] {
+        MemoryStorage.stop("1", 38f, 23.70f, 0),
+        MemoryStorage.stop("2", 38f, 23.71f, 60)},
+        new int[] {480});
+    RoutePointCache cache = new RouteManager(storage).getPointCache();
+    RouteTileIndex index = cache.getTileIndex();
+    Assert.assertEquals(0, index.getRouteCount());
+    Assert.assertSame(index, cache.getTileIndex());
+    Map<RouteId,RoutePoints> routes = routes();
+    cache.putAll(routes);
+    RouteTileIndex updated = cache.getTileIndex();
+    Assert.assertEquals(2, updated.getRouteCount());
+    Assert.assertSame(updated, cache.getTileIndex());
+    cache.getRoutePoints(new RouteId("a", "1"), true);
+    Assert.assertEquals(3, cache.getTileIndex().getRouteCount());
+  }
+}
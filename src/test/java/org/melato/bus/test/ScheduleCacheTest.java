@@ -0,0 +1,138 @@
+/*-------------------------------------------------------------------------
+ * Copyright (c) 2012,2013, Alex Athanasopoulos.  All Rights Reserved.
+ * alex@melato.org
+ *-------------------------------------------------------------------------
+ * This file is part of Athens Next Bus
+ *
+ * Athens Next Bus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Athens Next Bus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Athens Next Bus.  If not, see <http://www.gnu.org/licenses/>.
+ *-------------------------------------------------------------------------
+ */
+package org.melato.bus.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.melato.bus.model.NextDepartures;
+import org.melato.bus.model.RStop;
+import org.melato.bus.model.RouteId;
+import org.melato.bus.model.RouteManager;
+import org.melato.bus.model.Stop;
+import org.melato.bus.model.cache.ScheduleCache;
+
+public class ScheduleCacheTest {
+  private RouteId routeId = new RouteId("a", "1");
+  
+  private RouteManager createRouteManager() {
+    MemoryStorage storage = new MemoryStorage();
+    storage.addRoute("a", new Stop[] {
+        MemoryStorage.stop("1", 37.90f, 23.70f, 0),
+        MemoryStorage.stop("2", 37.91f, 23.70f, 300)},
+        new int[] {480, 600, 1430, 1450});
+    return new RouteManager(storage);
+  }
+  
+  private ScheduleCache createCache() {
+    return new ScheduleCache(createRouteManager());
+  }
+  
+  private static Date date(int hour, int minute) {
+    return new GregorianCalendar(2013, Calendar.MARCH, 4, hour, minute).getTime();
+  }
+  
+  private static String times(int[] buffer, int count) {
+    StringBuilder buf = new StringBuilder();
+    for( int i = 0; i < count; i++ ) {
+      if ( i > 0 )
+        buf.append(",");
+      buf.append(buffer[i]);
+    }
+    return buf.toString();
+  }
+  
+  @Test public void nextTimes() {
+    ScheduleCache cache = createCache();
+    int[] buffer = new int[3];
+    Assert.assertEquals("480,600,1430", times(buffer, cache.getNextTimes(routeId, date(7, 0), buffer)));
+    Assert.assertEquals("600,1430,1450", times(buffer, cache.getNextTimes(routeId, date(8, 0), buffer)));
+    Assert.assertEquals(2, cache.getNextTimes(routeId, date(9, 0)).length);
+  }
+  
+  @Test public void midnight() {
+    ScheduleCache cache = createCache();
+    int[] buffer = new int[3];
+    Assert.assertEquals("1450,1920,2040", times(buffer, cache.getNextTimes(routeId, date(23, 55), buffer)));
+    Assert.assertEquals("10,480,600", times(buffer, cache.getNextTimes(routeId, date(0, 5), buffer)));
+  }
+  
+  @Test public void nextDepartures() {
+    RouteManager routeManager = createRouteManager();
+    Stop[] stops = routeManager.getStops(routeId);
+    List<RStop> rstops = new ArrayList<RStop>();
+    rstops.add(new RStop(routeId, stops[0]));
+    rstops.add(new RStop(routeId, stops[1]));
+    NextDepartures departures = routeManager.getNextDepartures(rstops, date(8, 2), 2);
+    Assert.assertEquals(2, departures.size());
+    Assert.assertEquals(2, departures.getCount(0));
+    Assert.assertEquals(600*60, departures.getTime(0, 0));
+    Assert.assertEquals(1430*60, departures.getTime(0, 1));
+    Assert.assertEquals(480*60 + 300, departures.getTime(1, 0));
+    Assert.assertEquals(600*60 + 300, departures.getTime(1, 1));
+  }
+  
+  @Test public void loadOnce() {
+    MemoryStorage storage = new MemoryStorage();
+    storage.addRoute("a", new Stop[] {
+        MemoryStorage.stop("1", 37.90f, 23.70f, 0)},
+        new int[] {480, 600, 900});
+    RouteManager routeManager = new RouteManager(storage);
+    ScheduleCache cache = new ScheduleCache(routeManager);
+    cache.load(Arrays.asList(routeId), date(13, 0));
+    Assert.assertEquals(1, storage.getDaySchedulesLoads());
+    Assert.assertEquals(0, storage.getScheduleLoads());
+    int[] buffer = new int[3];
+    // the next day is needed, but the previous day is not.
+    Assert.assertEquals("900,1920,2040", times(buffer, cache.getNextTimes(routeId, date(13, 0), buffer)));
+    Assert.assertEquals(1, storage.getScheduleLoads());
+    Assert.assertEquals("900,1920,2040", times(buffer, cache.getNextTimes(routeId, date(13, 30), buffer)));
+    Assert.assertEquals(1, storage.getScheduleLoads());
+  }
+  
+  @Test public void coldLoad() {
+    MemoryStorage storage = new MemoryStorage();
+    List<RouteId> routeIds = new ArrayList<RouteId>();
+    for( String name: new String[] {"a", "b", "c", "d"} ) {
+      storage.addRoute(name, new Stop[] {
+          MemoryStorage.stop(name, 37.90f, 23.70f, 0)},
+          new int[] {480, 600});
+      routeIds.add(new RouteId(name, "1"));
+    }
+    ScheduleCache cache = new ScheduleCache(new RouteManager(storage));
+    cache.load(routeIds, date(8, 0));
+    Assert.assertEquals(1, storage.getDaySchedulesLoads());
+    Assert.assertEquals(0, storage.getScheduleLoads());
+    // the cached routes are not loaded again.
+    cache.load(routeIds.subList(0, 2), date(9, 0));
+    Assert.assertEquals(1, storage.getDaySchedulesLoads());
+    cache.load(Arrays.asList(new RouteId("e", "1")), date(9, 0));
+    Assert.assertEquals(2, storage.getDaySchedulesLoads());
+    Assert.assertEquals(0, storage.getScheduleLoads());
+  }
+}
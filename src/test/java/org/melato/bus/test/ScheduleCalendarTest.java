@@ -0,0 +1,77 @@
+/*-------------------------------------------------------------------------
+ * Copyright (c) 2012,2013, Alex Athanasopoulos.  All Rights Reserved.
+ * alex@melato.org
+ *-------------------------------------------------------------------------
+ * This file is part of Athens Next Bus
+ *
+ * Athens Next Bus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Athens Next Bus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Athens Next Bus.  If not, see <http://www.gnu.org/licenses/>.
+ *-------------------------------------------------------------------------
+ */
+package org.melato.bus.test;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.melato.bus.model.DaySchedule;
+import org.melato.bus.model.ScheduleCalendar;
+import org.melato.bus.model.ScheduleId;
+import org.melato.util.DateId;
+
+public class ScheduleCalendarTest {
+  private TimeZone timeZone = TimeZone.getTimeZone("Europe/Athens");
+  
+  /** Check every half hour, across the daylight saving changes of 2013. */
+  @Test public void times() {
+    Calendar cal = new GregorianCalendar(timeZone);
+    cal.set(2013, Calendar.MARCH, 1, 0, 0, 0);
+    cal.set(Calendar.MILLISECOND, 0);
+    ScheduleCalendar calendar = new ScheduleCalendar(timeZone, cal.getTimeInMillis(), 250);
+    for( int i = 0; i < 260 * 48; i++ ) {
+      long millis = cal.getTimeInMillis();
+      int seconds = 60 * (cal.get(Calendar.HOUR_OF_DAY) * 60 + cal.get(Calendar.MINUTE)) + cal.get(Calendar.SECOND);
+      Assert.assertEquals(seconds, calendar.getSeconds(millis));
+      Assert.assertEquals(DateId.dateId(cal), calendar.getDateId(millis));
+      Assert.assertEquals(cal.get(Calendar.DAY_OF_WEEK), calendar.getDayOfWeek(millis));
+      cal.add(Calendar.MINUTE, 30);
+    }
+  }
+  
+  @Test public void table() {
+    ScheduleId[] scheduleIds = {
+        ScheduleId.forDate(20130325),
+        ScheduleId.forWeek(DaySchedule.MONDAY_FRIDAY),
+        ScheduleId.forWeek(DaySchedule.SATURDAY) };
+    Calendar cal = new GregorianCalendar(timeZone);
+    cal.set(2013, Calendar.MARCH, 20, 12, 0, 0);
+    ScheduleCalendar calendar = new ScheduleCalendar(timeZone, cal.getTimeInMillis(), 10);
+    ScheduleCalendar.Table table = calendar.getTable(scheduleIds);
+    Assert.assertSame(table, calendar.getTable(scheduleIds.clone()));
+    cal.set(2013, Calendar.MARCH, 24, 12, 0, 0);
+    Assert.assertEquals(-1, table.find(0, cal.getTimeInMillis()));
+    cal.set(2013, Calendar.MARCH, 25, 12, 0, 0);
+    Assert.assertEquals(0, table.find(0, cal.getTimeInMillis()));
+    cal.set(2013, Calendar.MARCH, 26, 1, 0, 0);
+    Assert.assertEquals(0, table.find(120, cal.getTimeInMillis()));
+    Assert.assertEquals(1, table.find(0, cal.getTimeInMillis()));
+    cal.set(2013, Calendar.MARCH, 30, 12, 0, 0);
+    Assert.assertEquals(2, table.find(0, cal.getTimeInMillis()));
+    // outside the calendar
+    cal.set(2013, Calendar.MAY, 4, 12, 0, 0);
+    Assert.assertEquals(2, table.find(0, cal.getTimeInMillis()));
+  }
+}
@@ -0,0 +1,180 @@
+/*-------------------------------------------------------------------------
+ * Copyright (c) 2012,2013, Alex Athanasopoulos.  All Rights Reserved.
+ * alex@melato.org
+ *-------------------------------------------------------------------------
+ * This file is part of Athens Next Bus
+ *
+ * Athens Next Bus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Athens Next Bus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Athens Next Bus.  If not, see <http://www.gnu.org/licenses/>.
+ *-------------------------------------------------------------------------
+ */
+package org.melato.bus.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.melato.bus.model.DaySchedule;
+import org.melato.bus.model.RouteId;
+import org.melato.bus.model.RouteManager;
+import org.melato.bus.model.Schedule;
+import org.melato.bus.model.Stop;
+import org.melato.bus.plan.LegGroup;
+import org.melato.bus.plan.RouteLeg;
+import org.melato.bus.plan.Sequence;
+import org.melato.bus.plan.SequenceInstance;
+import org.melato.bus.plan.SequenceSchedule;
+import org.melato.bus.plan.WalkModel;
+
+public class SequenceScheduleTest {
+  private RouteManager routeManager;
+  private Sequence sequence;
+  private Schedule.ScheduleFactory scheduleFactory = new Schedule.DateScheduleFactory(20130304);
+  
+  private SequenceSchedule createSchedule() {
+    MemoryStorage storage = new MemoryStorage();
+    storage.addRoute("a", new Stop[] {
+        MemoryStorage.stop("1", 37.90f, 23.70f, 0),
+        MemoryStorage.stop("2", 37.91f, 23.70f, 300)},
+        new int[] {480, 490, 500, 510, 520, 530});
+    storage.addRoute("a2", new Stop[] {
+        MemoryStorage.stop("0", 37.89f, 23.70f, 0),
+        MemoryStorage.stop("1", 37.90f, 23.70f, 120),
+        MemoryStorage.stop("2", 37.91f, 23.70f, 420)},
+        new int[] {483, 503});
+    storage.addRoute("b", new Stop[] {
+        MemoryStorage.stop("3", 37.9101f, 23.70f, 0),
+        MemoryStorage.stop("4", 37.92f, 23.70f, 300)},
+        new int[] {495, 515, 535});
+    routeManager = new RouteManager(storage);
+    sequence = new Sequence();
+    RouteId a = new RouteId("a", "1");
+    RouteId b = new RouteId("b", "1");
+    sequence.addLeg(new RouteLeg(a, routeManager.getStops(a)[0], routeManager.getStops(a)[1]));
+    sequence.addLeg(new RouteLeg(b, routeManager.getStops(b)[0], routeManager.getStops(b)[1]));
+    return new SequenceSchedule(sequence, scheduleFactory, routeManager, new WalkModel());
+  }
+  
+  @Test public void merge() {
+    SequenceSchedule schedule = createSchedule();
+    SequenceSchedule.Level level = schedule.levels[0];
+    Assert.assertEquals(8, level.size());
+    for( int i = 1; i < level.size(); i++ ) {
+      Assert.assertTrue(level.getTime1(i-1) <= level.getTime1(i));
+    }
+    Assert.assertEquals(485*60, level.getTime1(1));
+    Assert.assertEquals("a2", level.getLegTime(1).getLeg().getRouteId().getName());
+    Assert.assertSame(level.getLegTime(1), level.getLegTime(1));
+  }
+  
+  @Test public void instancesFrom() {
+    SequenceSchedule schedule = createSchedule();
+    List<SequenceInstance> all = schedule.getInstances();
+    Assert.assertEquals(7, all.size());
+    for( int minutes = 470; minutes < 540; minutes += 3 ) {
+      int position = schedule.getTimePosition(minutes);
+      List<SequenceInstance> next = schedule.instancesFrom(minutes * 60 + 1, 2);
+      if ( position < 0 ) {
+        Assert.assertEquals(0, next.size());
+        continue;
+      }
+      Assert.assertEquals(Math.min(2, all.size() - position), next.size());
+      for( int i = 0; i < next.size(); i++ ) {
+        Assert.assertEquals(all.get(position + i).getStartTime(), next.get(i).getStartTime());
+        Assert.assertEquals(all.get(position + i).getEndTime(), next.get(i).getEndTime());
+      }
+    }
+  }
+  
+  /** A departure of a level, computed with LegTime objects, as before the levels were packed. */
+  private static class Departure implements Comparable<Departure> {
+    RouteLeg leg;
+    int time1;
+    int time2;
+    
+    Departure(RouteLeg leg, int minutes) {
+      this.leg = leg;
+      time1 = minutes * 60 + leg.getStop1().getSecondsFromStart();
+      time2 = minutes * 60 + leg.getStop2().getSecondsFromStart();
+    }
+    
+    @Override
+    public int compareTo(Departure d) {
+      return time1 - d.time1;
+    }
+  }
+  
+  /** Compute the departures of a level the old way, by creating, and sorting, an object per departure. */
+  private List<Departure> departures(LegGroup group) {
+    List<Departure> departures = new ArrayList<Departure>();
+    for( RouteLeg leg: group.getEquivalentLegs(routeManager) ) {
+      DaySchedule daySchedule = scheduleFactory.getSchedule(routeManager.getSchedule(leg.getRouteId()));
+      for( int minutes: daySchedule.getTimes() ) {
+        departures.add(new Departure(leg, minutes));
+      }
+    }
+    // a stable sort, so ties keep the order of the equivalent legs.
+    Collections.sort(departures);
+    return departures;
+  }
+  
+  private static int findTimeIndex(List<Departure> departures, int time) {
+    for( int i = 0; i < departures.size(); i++ ) {
+      if ( departures.get(i).time1 >= time )
+        return i;
+    }
+    return -1;
+  }
+  
+  @Test public void levels() {
+    SequenceSchedule schedule = createSchedule();
+    List<LegGroup> groups = sequence.getLegs();
+    List<List<Departure>> expected = new ArrayList<List<Departure>>();
+    for( int i = 0; i < schedule.levels.length; i++ ) {
+      SequenceSchedule.Level level = schedule.levels[i];
+      List<Departure> departures = departures(groups.get(i));
+      expected.add(departures);
+      Assert.assertEquals(departures.size(), level.size());
+      for( int j = 0; j < level.size(); j++ ) {
+        Departure d = departures.get(j);
+        Assert.assertEquals(d.time1, level.getTime1(j));
+        Assert.assertEquals(d.time2, level.getTime2(j));
+        Assert.assertSame(d.leg, level.getLegTime(j).getLeg());
+      }
+    }
+    // assemble the instances the old way.
+    List<SequenceInstance> instances = schedule.getInstances();
+    int count = 0;
+    for( Departure first: expected.get(0) ) {
+      int time = first.time2;
+      int i = 1;
+      for( ; i < schedule.levels.length; i++ ) {
+        time += schedule.levels[i].getWalkTime() + schedule.levels[i].getWaitTime();
+        int index = findTimeIndex(expected.get(i), time);
+        if ( index < 0 )
+          break;
+        time = expected.get(i).get(index).time2;
+      }
+      if ( i < schedule.levels.length )
+        break;
+      SequenceInstance instance = instances.get(count++);
+      Assert.assertEquals(first.time1, instance.getStartTime());
+      Assert.assertEquals(time, instance.getEndTime());
+      Assert.assertNotNull(instance.getItinerary());
+    }
+    Assert.assertEquals(count, instances.size());
+  }
+}
@@ -0,0 +1,147 @@
+/*-------------------------------------------------------------------------
+ * Copyright (c) 2012,2013, Alex Athanasopoulos.  All Rights Reserved.
+ * alex@melato.org
+ *-------------------------------------------------------------------------
+ * This file is part of Athens Next Bus
+ *
+ * Athens Next Bus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Athens Next Bus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Athens Next Bus.  If not, see <http://www.gnu.org/licenses/>.
+ *-------------------------------------------------------------------------
+ */
+package org.melato.bus.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.melato.bus.model.DaySchedule;
+import org.melato.bus.model.RStop;
+import org.melato.bus.model.Route;
+import org.melato.bus.model.RouteId;
+import org.melato.bus.model.RoutePointCallback;
+import org.melato.bus.model.ScheduleId;
+import org.melato.bus.model.Stop;
+import org.melato.bus.model.snapshot.SnapshotStorage;
+import org.melato.bus.model.snapshot.SnapshotWriter;
+import org.melato.gps.Point2D;
+
+public class SnapshotTest {
+  private SnapshotStorage createSnapshot() throws IOException {
+    MemoryStorage memory = new MemoryStorage();
+    memory.addRoute("a", new Stop[] {
+        MemoryStorage.stop("1", 38f, 23.70f, 0),
+        MemoryStorage.stop("2", 38f, 23.71f, 60),
+        MemoryStorage.stop("3", 38f, 23.72f, 120),
+    }, new int[] { 360, 420 });
+    memory.addRoute("b", new Stop[] {
+        MemoryStorage.stop("2", 38f, 23.71f, 0),
+        MemoryStorage.stop("4", 38.01f, 23.71f, 90),
+    }, new int[] { 400 });
+    File file = File.createTempFile("routes", ".snapshot");
+    file.deleteOnExit();
+    new SnapshotWriter().write(memory, file);
+    return new SnapshotStorage(file);
+  }
+  
+  @Test public void routes() throws IOException {
+    SnapshotStorage storage = createSnapshot();
+    List<Route> routes = storage.loadRoutes();
+    Assert.assertEquals(2, routes.size());
+    Route route = storage.loadRoute(new RouteId("b", "1"));
+    Assert.assertEquals("B", route.getLabel());
+    Assert.assertEquals("test", storage.loadAgencyName(route.getRouteId()));
+  }
+
+  @Test public void stops() throws IOException {
+    SnapshotStorage storage = createSnapshot();
+    List<Stop> stops = storage.loadStops(new RouteId("a", "1"));
+    Assert.assertEquals(3, stops.size());
+    Stop stop = stops.get(2);
+    Assert.assertEquals("3", stop.getSymbol());
+    Assert.assertEquals(2, stop.getIndex());
+    Assert.assertEquals(120, stop.getSecondsFromStart());
+    Assert.assertEquals(23.72f, stop.getLon(), 0.00001f);
+  }
+
+  @Test public void schedule() throws IOException {
+    SnapshotStorage storage = createSnapshot();
+    RouteId routeId = new RouteId("a", "1");
+    DaySchedule day = storage.loadDaySchedule(routeId, ScheduleId.forWeek(DaySchedule.MONDAY));
+    Assert.assertEquals(2, day.getTimes().length);
+    Assert.assertEquals(420, day.getTimes()[1]);
+  }
+  
+  @Test public void daySchedules() throws IOException {
+    SnapshotStorage storage = createSnapshot();
+    RouteId a = new RouteId("a", "1");
+    RouteId b = new RouteId("b", "1");
+    Date date = new GregorianCalendar(2013, Calendar.MARCH, 4, 12, 0).getTime();
+    Map<RouteId,DaySchedule> schedules = storage.loadDaySchedules(Arrays.asList(a, b, new RouteId("c", "1")), date);
+    Assert.assertEquals(2, schedules.size());
+    Assert.assertEquals(420, schedules.get(a).getTimes()[1]);
+    Assert.assertEquals(storage.loadDaySchedule(b, date).getTimes()[0], schedules.get(b).getTimes()[0]);
+  }
+  
+  @Test public void nearby() throws IOException {
+    SnapshotStorage storage = createSnapshot();
+    List<RStop> stops = new ArrayList<RStop>();
+    storage.iterateNearbyStops(new Point2D(38f, 23.71f), 0.001f, 0.001f, stops);
+    Assert.assertEquals(2, stops.size());
+  }
+
+  @Test public void legs() throws IOException {
+    SnapshotStorage storage = createSnapshot();
+    Assert.assertEquals(1, storage.loadLegsBetween("1", "3").size());
+    Assert.assertEquals(0, storage.loadLegsBetween("3", "1").size());
+  }
+
+  /** Collects the coordinates of each route as a string. */
+  private static class PointStrings implements RoutePointCallback {
+    List<String> routes = new ArrayList<String>();
+    @Override
+    public void addRoute(int routeIndex, float[] lat, float[] lon, int count) {
+      StringBuilder buf = new StringBuilder();
+      buf.append(routeIndex);
+      for( int i = 0; i < count; i++ ) {
+        buf.append(" " + lat[i] + "," + lon[i]);
+      }
+      routes.add(buf.toString());
+    }
+  }
+  
+  @Test public void routePoints() throws IOException {
+    SnapshotStorage storage = createSnapshot();
+    PointStrings points = new PointStrings();
+    storage.iterateAllRoutePoints(points);
+    Assert.assertEquals(2, points.routes.size());
+    Assert.assertEquals("1 38.0,23.71 38.01,23.71", points.routes.get(1));
+    // the default implementation, from the waypoints.
+    PointStrings waypoints = new PointStrings();
+    MemoryStorage memory = new MemoryStorage();
+    memory.addRoute("b", new Stop[] {
+        MemoryStorage.stop("2", 38f, 23.71f, 0),
+        MemoryStorage.stop("4", 38.01f, 23.71f, 90),
+    }, new int[] { 400 });
+    memory.iterateAllRoutePoints(waypoints);
+    Assert.assertEquals("0 38.0,23.71 38.01,23.71", waypoints.routes.get(0));
+  }
+}
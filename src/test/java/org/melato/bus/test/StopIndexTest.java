@@ -0,0 +1,107 @@
+/*-------------------------------------------------------------------------
+ * Copyright (c) 2012,2013, Alex Athanasopoulos.  All Rights Reserved.
+ * alex@melato.org
+ *-------------------------------------------------------------------------
+ * This file is part of Athens Next Bus
+ *
+ * Athens Next Bus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Athens Next Bus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Athens Next Bus.  If not, see <http://www.gnu.org/licenses/>.
+ *-------------------------------------------------------------------------
+ */
+package org.melato.bus.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.melato.bus.model.RStop;
+import org.melato.bus.model.RouteId;
+import org.melato.bus.model.Stop;
+import org.melato.bus.model.StopIndex;
+import org.melato.gps.GlobalDistance;
+import org.melato.gps.Metric;
+import org.melato.gps.Point2D;
+
+public class StopIndexTest {
+  private Metric metric = new GlobalDistance();
+  private RouteId[] routeIds;
+  private Stop[][] stops;
+  
+  public StopIndexTest() {
+    Random random = new Random(1);
+    routeIds = new RouteId[20];
+    stops = new Stop[routeIds.length][];
+    for( int r = 0; r < routeIds.length; r++ ) {
+      routeIds[r] = new RouteId(String.valueOf(r), "1");
+      stops[r] = new Stop[30];
+      for( int i = 0; i < stops[r].length; i++ ) {
+        Stop stop = new Stop(37.9f + random.nextFloat() * 0.1f, 23.7f + random.nextFloat() * 0.1f);
+        stop.setIndex(i);
+        stops[r][i] = stop;
+      }
+    }
+  }
+  
+  private int countNearby(Point2D point, float distance) {
+    int count = 0;
+    for( Stop[] routeStops: stops ) {
+      for( Stop stop: routeStops ) {
+        if ( metric.distance(point, stop) < distance ) {
+          count++;
+        }
+      }
+    }
+    return count;
+  }
+  
+  @Test public void nearby() {
+    StopIndex index = new StopIndex(routeIds, stops);
+    Assert.assertEquals(600, index.size());
+    Point2D point = new Point2D(37.95f, 23.75f);
+    for( float distance = 100; distance < 5000; distance *= 2 ) {
+      List<RStop> result = new ArrayList<RStop>();
+      index.findNearby(point, distance, metric, result);
+      Assert.assertEquals(countNearby(point, distance), result.size());
+      for( RStop rstop: result ) {
+        Assert.assertTrue(rstop.getDistance() < distance);
+      }
+    }
+  }
+  
+  @Test public void nearest() {
+    StopIndex index = new StopIndex(routeIds, stops);
+    Point2D point = new Point2D(37.93f, 23.78f);
+    List<RStop> all = new ArrayList<RStop>();
+    index.findNearby(point, 100000f, metric, all);
+    RStop[] sorted = all.toArray(new RStop[0]);
+    Arrays.sort(sorted);
+    for( int k: new int[] { 1, 5, 20, 700 } ) {
+      RStop[] nearest = index.findNearest(point, k, 100000f, metric);
+      Assert.assertEquals(Math.min(k, sorted.length), nearest.length);
+      for( int i = 0; i < nearest.length; i++ ) {
+        Assert.assertEquals(sorted[i].getDistance(), nearest[i].getDistance(), 0.01f);
+      }
+    }
+  }
+  
+  @Test public void nearestWithinDistance() {
+    StopIndex index = new StopIndex(routeIds, stops);
+    Point2D point = new Point2D(37.95f, 23.75f);
+    RStop[] nearest = index.findNearest(point, 1000, 500f, metric);
+    Assert.assertEquals(countNearby(point, 500f), nearest.length);
+  }
+}
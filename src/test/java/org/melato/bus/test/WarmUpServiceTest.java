@@ -0,0 +1,105 @@
+/*-------------------------------------------------------------------------
+ * Copyright (c) 2012,2013, Alex Athanasopoulos.  All Rights Reserved.
+ * alex@melato.org
+ *-------------------------------------------------------------------------
+ * This file is part of Athens Next Bus
+ *
+ * Athens Next Bus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Athens Next Bus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Athens Next Bus.  If not, see <http://www.gnu.org/licenses/>.
+ *-------------------------------------------------------------------------
+ */
+package org.melato.bus.test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.melato.bus.model.RouteId;
+import org.melato.bus.model.RouteManager;
+import org.melato.bus.model.Stop;
+import org.melato.bus.model.cache.WarmUpService;
+
+public class WarmUpServiceTest {
+  @Test public void warmUp() throws Exception {
+    MemoryStorage storage = new MemoryStorage();
+    for( int r = 0; r < 10; r++ ) {
+      storage.addRoute("r" + r, new Stop[] {
+          MemoryStorage.stop("a" + r, 37.90f, 23.70f + r * 0.01f, 0),
+          MemoryStorage.stop("b" + r, 37.91f, 23.70f + r * 0.01f, 300)},
+          new int[] {480, 600});
+    }
+    RouteManager routeManager = new RouteManager(storage, 5);
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      WarmUpService warmUp = new WarmUpService(routeManager, executor, 4);
+      warmUp.start();
+      Assert.assertTrue(warmUp.await(10, TimeUnit.SECONDS));
+      Assert.assertNull(warmUp.getError());
+      Assert.assertEquals(10, warmUp.getLoadedCount());
+      Assert.assertTrue(routeManager.getPointCache().isLoaded(true));
+      Assert.assertEquals(10, routeManager.getStopsCache().size());
+      Assert.assertNotNull(routeManager.getPointCache().getRoutePoints(new RouteId("r7", "1"), false));
+    } finally {
+      executor.shutdown();
+    }
+  }
+  
+  @Test public void failure() throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    MemoryStorage storage = new MemoryStorage() {
+      @Override
+      public List<Stop> loadStops(RouteId routeId) {
+        try {
+          if ( routeId.getName().equals("r0") ) {
+            // fail while the other partition is loading.
+            started.await();
+            throw new IllegalStateException("r0");
+          }
+          started.countDown();
+          release.await();
+        } catch( InterruptedException e ) {
+          Thread.currentThread().interrupt();
+        }
+        return super.loadStops(routeId);
+      }
+    };
+    for( int r = 0; r < 4; r++ ) {
+      storage.addRoute("r" + r, new Stop[] {
+          MemoryStorage.stop("a" + r, 37.90f, 23.70f + r * 0.01f, 0)},
+          new int[] {480});
+    }
+    RouteManager routeManager = new RouteManager(storage);
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      WarmUpService warmUp = new WarmUpService(routeManager, executor, 2);
+      warmUp.start();
+      // the second partition is still running.
+      Assert.assertFalse(warmUp.await(200, TimeUnit.MILLISECONDS));
+      Assert.assertFalse(warmUp.isDone());
+      release.countDown();
+      Assert.assertTrue(warmUp.await(10, TimeUnit.SECONDS));
+      Assert.assertEquals("r0", warmUp.getError().getMessage());
+      Assert.assertFalse(routeManager.getPointCache().isLoaded(true));
+      // the second partition stopped after its current route.
+      Assert.assertEquals(1, warmUp.getLoadedCount());
+    } finally {
+      executor.shutdown();
+    }
+  }
+}